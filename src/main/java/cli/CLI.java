@@ -1,6 +1,10 @@
 package cli;
 
+import java.io.BufferedReader;
 import java.io.Console;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 
 import tributary.Tributary;
 
@@ -8,6 +12,10 @@ public class CLI {
 
     public static void main(String[] args) {
         Tributary ctrl = new Tributary();
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(args, ctrl);
+            return;
+        }
         Console console = System.console();
         if (console == null) {
             return;
@@ -24,4 +32,39 @@ public class CLI {
             }
         }
     }
+
+    /**
+     * Runs commands non-interactively, one per line, from a file or from stdin.
+     * Blank lines and lines starting with # are skipped. A command that fails is
+     * reported and the rest of the batch still runs.
+     * @param args arguments in the format [--batch] or [--batch fileName]
+     * @param ctrl tributary system the commands are run against
+     * @pre if a file name is given, the file exists
+     * @post every command up to the end of input or a q command has been executed
+     * @return void
+     */
+    public static void runBatch(String[] args, Tributary ctrl) {
+        try (BufferedReader reader = (args.length > 1 && !args[1].equals("-"))
+                ? new BufferedReader(new FileReader(args[1]))
+                : new BufferedReader(new InputStreamReader(System.in))) {
+            String str;
+            while ((str = reader.readLine()) != null) {
+                str = str.trim();
+                if (str.isEmpty() || str.startsWith("#")) {
+                    continue;
+                }
+                String[] command = str.split("\\s+");
+                if (command[0].equals("q")) {
+                    return;
+                }
+                try {
+                    CommandFactory.execute(command, ctrl);
+                } catch (RuntimeException e) {
+                    System.out.println("Command failed: " + str + " (" + e + ")");
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Batch input could not be read!", e);
+        }
+    }
 }
@@ -1,15 +1,22 @@
 package cli;
 
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.regex.Pattern;
+
 import tributary.Tributary;
 
 public class CommandFactory {
     public static void createEntity(String[] args, Tributary ctrl) {
         switch (args[1]) {
             case "topic":
-                if (args[3].equals("String")) {
-                    ctrl.createTopic(args[2], String.class);
+                Class<?> type = args[3].equals("String") ? String.class : Integer.class;
+                if (args.length > 4 && args[4].equals("offheap")) {
+                    ctrl.createOffHeapTopic(args[2], type);
                 } else {
-                    ctrl.createTopic(args[2], Integer.class);
+                    ctrl.createTopic(args[2], type);
                 }
                 return;
             case "partition":
@@ -34,6 +41,23 @@ public class CommandFactory {
         }
     }
 
+    /**
+     * Parses an inline event payload from the command line
+     * @param type one of String, Integer or Bytes (base64 encoded)
+     * @param value text of the payload
+     * @return payload as a String, Integer or byte[]
+     */
+    public static Object parseValue(String type, String value) {
+        switch (type) {
+            case "Integer":
+                return Integer.valueOf(value);
+            case "Bytes":
+                return Base64.getDecoder().decode(value);
+            default:
+                return value;
+        }
+    }
+
     public static void execute(String[] args, Tributary ctrl) {
         switch (args[0]) {
             case "create":
@@ -43,7 +67,26 @@ public class CommandFactory {
                 ctrl.deleteConsumer(args[2]);
                 return;
             case "produce":
-                if (args.length == 5) {
+                if (args[1].equals("inline")) {
+                    Object value = parseValue(args[4], args[5]);
+                    if (args.length == 6) {
+                        ctrl.produceValue(args[2], args[3], value);
+                    } else {
+                        ctrl.produceValue(args[2], args[3], value, args[6]);
+                    }
+                } else if (args[1].equals("keyed")) {
+                    ctrl.produceKeyedValue(args[2], args[3], args[4], parseValue(args[5], args[6]));
+                } else if (args[1].equals("delayed")) {
+                    // delivery time is either an ISO date-time or a delay in milliseconds
+                    LocalDateTime deliverAt = args[6].contains("T") ? LocalDateTime.parse(args[6])
+                        : LocalDateTime.now().plus(Duration.ofMillis(Long.parseLong(args[6])));
+                    ctrl.produceDelayedValue(args[2], args[3], parseValue(args[4], args[5]),
+                        args.length > 7 ? args[7] : null, deliverAt);
+                } else if (args[1].equals("fanout")) {
+                    ctrl.produceEventToTopics(args[2], Arrays.asList(args).subList(4, args.length), args[3]);
+                } else if (args[1].equals("bulk")) {
+                    ctrl.ingestEvents(args[2], args[3], args[4], args.length > 5 ? Integer.parseInt(args[5]) : 500);
+                } else if (args.length == 5) {
                     ctrl.produceEvent(args[2], args[3], args[4]);
                 } else {
                     ctrl.produceEvent(args[2], args[3], args[4], args[5]);
@@ -56,9 +99,21 @@ public class CommandFactory {
                     ctrl.consumeEvents(args[2], args[3], Integer.parseInt(args[4]));
                 }
                 return;
+            case "subscribe":
+                if (args[3].equals("pattern")) {
+                    ctrl.subscribe(args[1], args[2], Pattern.compile(args[4]));
+                } else {
+                    ctrl.subscribe(args[1], args[2], Arrays.asList(args).subList(3, args.length));
+                }
+                return;
+            case "poll":
+                ctrl.poll(args[1], Integer.parseInt(args[2]));
+                return;
             case "show":
                 if (args[1].equals("topic")) {
                     ctrl.showTopic(args[2]);
+                } else if (args[1].equals("metrics")) {
+                    ctrl.showMetrics();
                 } else {
                     ctrl.showConsumerGroup(args[3]);
                 }
@@ -70,6 +125,76 @@ public class CommandFactory {
                     ctrl.parallelConsume(args);
                 }
                 return;
+            case "export":
+                ctrl.exportMetrics(args[2]);
+                return;
+            case "load":
+                new LoadGenerator(ctrl, args[2], args[3], Integer.parseInt(args[4]),
+                    Double.parseDouble(args[5]), Arrays.asList(args).subList(6, args.length)).run();
+                return;
+            case "expand":
+                ctrl.expandTopic(args[2], Arrays.asList(args).subList(4, args.length), args[3].equals("migrate"));
+                return;
+            case "enable":
+                if (args[1].equals("sharding")) {
+                    ctrl.enableSharding(args.length > 2 ? Integer.parseInt(args[2]) : 0);
+                } else {
+                    ctrl.enableLiveness(Long.parseLong(args[2]));
+                }
+                return;
+            case "heartbeat":
+                ctrl.heartbeat(args[1]);
+                return;
+            case "checkpoint":
+                ctrl.checkpoint(args[1]);
+                return;
+            case "restore":
+                ctrl.restore(args[1]);
+                return;
+            case "retain":
+                ctrl.setRetention(args[1], Long.parseLong(args[2]));
+                return;
+            case "index":
+                ctrl.enableEventIndex(args[1]);
+                return;
+            case "find":
+                if (args[1].equals("source")) {
+                    ctrl.findEventsBySource(args[2], args[3]);
+                } else {
+                    ctrl.findEventById(args[2], args[3]);
+                }
+                return;
+            case "dedup":
+                ctrl.enablePayloadDedup(args[1]);
+                return;
+            case "tier":
+                ctrl.enableTiering(args[1], args[2], Long.parseLong(args[3]));
+                return;
+            case "memory":
+                ctrl.setMemoryLimits(Long.parseLong(args[1]), Long.parseLong(args[2]));
+                return;
+            case "quota":
+                if (args[1].equals("producer")) {
+                    ctrl.setProducerQuota(args[2], Double.parseDouble(args[3]), Double.parseDouble(args[4]));
+                } else {
+                    ctrl.setTopicQuota(args[2], Double.parseDouble(args[3]), Double.parseDouble(args[4]));
+                }
+                return;
+            case "filter":
+                ctrl.setConsumerFilter(args[1], args[2].equals("none") ? null : args[2]);
+                return;
+            case "project":
+                ctrl.setConsumerProjection(args[1],
+                    args[2].equals("none") ? null : Arrays.asList(args).subList(2, args.length));
+                return;
+            case "playback":
+                if (args[3].contains("T")) {
+                    ctrl.playback(args[1], args[2], LocalDateTime.parse(args[3]),
+                        args.length > 4 ? LocalDateTime.parse(args[4]) : null);
+                } else {
+                    ctrl.playback(args[1], args[2], Integer.parseInt(args[3]));
+                }
+                return;
             case "set":
                 ctrl.setConsumerGroupRebalancing(args[4], args[5]);
                 return;
@@ -0,0 +1,99 @@
+package cli;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import tributary.LatencyHistogram;
+import tributary.Tributary;
+
+public class LoadGenerator {
+    private Tributary ctrl;
+    private String topicId;
+    private String eventFileName;
+    private int numEvents;
+    private double eventsPerSecond;
+    private List<String> producerIds;
+    private LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Constructor for a load generator that produces through the same command
+     * path as the CLI
+     * @param ctrl tributary system to produce to
+     * @param topicId unique identifier of the topic to produce to
+     * @param eventFileName name of JSON file containing event/message value
+     * @param numEvents total number of events to produce across all producers
+     * @param eventsPerSecond target total rate, or 0 to produce as fast as possible
+     * @param producerIds producers to share the load between, one thread each
+     * @return new load generator
+     */
+    public LoadGenerator(Tributary ctrl, String topicId, String eventFileName, int numEvents,
+        double eventsPerSecond, List<String> producerIds) {
+        this.ctrl = ctrl;
+        this.topicId = topicId;
+        this.eventFileName = eventFileName;
+        this.numEvents = numEvents;
+        this.eventsPerSecond = eventsPerSecond;
+        this.producerIds = producerIds;
+    }
+
+    /**
+     * Produces every event, each producer on its own thread pacing itself to its
+     * share of the target rate, and reports the achieved throughput and latency.
+     * @pre the topic, event file and producers exist
+     * @post numEvents events have been produced to the topic
+     * @return histogram of the latency of each produce command in nanoseconds
+     */
+    public LatencyHistogram run() {
+        int numProducers = producerIds.size();
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < numProducers; i++) {
+            String producerId = producerIds.get(i);
+            int share = numEvents / numProducers + (i < numEvents % numProducers ? 1 : 0);
+            long interval = eventsPerSecond > 0 ? (long) (1_000_000_000.0 * numProducers / eventsPerSecond) : 0;
+            Thread thread = new Thread(() -> produce(producerId, share, interval, start));
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return latency;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Load generation complete with: ");
+        System.out.println("Events: " + latency.getCount());
+        System.out.println("Producers: " + numProducers);
+        System.out.println("Elapsed (ms): " + elapsed / 1_000_000);
+        System.out.println("Throughput (events/s): " + String.format("%.1f", latency.getCount() * 1e9 / elapsed));
+        System.out.println("Latency p50 (us): " + latency.getPercentile(50) / 1000);
+        System.out.println("Latency p99 (us): " + latency.getPercentile(99) / 1000);
+        System.out.println("Latency p99.9 (us): " + latency.getPercentile(99.9) / 1000);
+        System.out.println("Latency max (us): " + latency.getMax() / 1000);
+        return latency;
+    }
+
+    private void produce(String producerId, int share, long interval, long start) {
+        String[] command = {"produce", "event", producerId, topicId, eventFileName};
+        for (int i = 0; i < share; i++) {
+            if (interval > 0) {
+                long wait = start + i * interval - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            long sent = System.nanoTime();
+            CommandFactory.execute(command, ctrl);
+            latency.record(System.nanoTime() - sent);
+            long throttle = ctrl.getThrottleMillis(producerId, topicId);
+            if (throttle > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(throttle));
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import tributary.Event;
+
+public class FetchPrefetcher {
+    private static final int INITIAL_BATCH = 64;
+
+    private TributaryClient client;
+    private String topicId;
+    private String partitionId;
+    private String filter;
+    private List<String> fields;
+    private long nextOffset;
+    private int batchSize;
+    private int maxBatchSize;
+    private ArrayDeque<Event<Object>> buffer = new ArrayDeque<>();
+    private CompletableFuture<TributaryClient.FetchResult> inFlight;
+
+    /**
+     * Constructor for a reader of a partition's log that keeps the next fetch in flight
+     * while the events of the last one are being processed, so the round trip to the
+     * server overlaps with the caller's work. The size of each fetch starts small and
+     * doubles whenever the caller had to wait for a full fetch, up to maxBatchSize.
+     * @param client client connected to the server
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition
+     * @param fromOffset offset of the first event to read
+     * @param maxBatchSize most events requested in one fetch
+     * @return new prefetcher, which has not yet sent any fetch
+     */
+    public FetchPrefetcher(TributaryClient client, String topicId, String partitionId, long fromOffset,
+        int maxBatchSize) {
+        this(client, topicId, partitionId, fromOffset, maxBatchSize, null, null);
+    }
+
+    /**
+     * Constructor for a prefetching reader of the events of a partition's log matching a filter
+     * @param client client connected to the server
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition
+     * @param fromOffset offset of the first event to read
+     * @param maxBatchSize most events requested in one fetch
+     * @param filter EventFilter expression the events must match, or null for every event
+     * @param fields names of the top-level fields of JSON values to send, or null to send values whole
+     * @return new prefetcher, which has not yet sent any fetch
+     */
+    public FetchPrefetcher(TributaryClient client, String topicId, String partitionId, long fromOffset,
+        int maxBatchSize, String filter, List<String> fields) {
+        this.client = client;
+        this.topicId = topicId;
+        this.partitionId = partitionId;
+        this.nextOffset = fromOffset;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.batchSize = Math.min(INITIAL_BATCH, this.maxBatchSize);
+        this.filter = filter;
+        this.fields = fields;
+    }
+
+    /**
+     * Gets the next event of the log, waiting for the fetch in flight if none has arrived yet
+     * @param timeoutMillis longest time to wait for the server
+     * @return the next event, or null if there is none yet, the server did not respond
+     * in time or the thread was interrupted
+     * @throws IllegalStateException if the server could not carry out the fetch
+     */
+    public synchronized Event<Object> poll(long timeoutMillis) {
+        if (inFlight != null && inFlight.isDone()) {
+            receive(false);
+        }
+        if (buffer.isEmpty()) {
+            if (inFlight == null) {
+                request();
+            }
+            try {
+                inFlight.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                inFlight = null;
+                throw new IllegalStateException("Fetch from " + partitionId + " failed", e.getCause());
+            }
+            if (!receive(true)) {
+                // caught up with the log, or nothing matched yet, so the next poll carries on
+                return null;
+            }
+        }
+        if (inFlight == null && buffer.size() <= batchSize) {
+            request();
+        }
+        return buffer.poll();
+    }
+
+    /**
+     * Gets the offset the next fetch will start from
+     * @return offset one past the last event received, or the last event the server scanned if that is later
+     */
+    public synchronized long getNextOffset() {
+        return nextOffset;
+    }
+
+    private void request() {
+        long fromOffset = nextOffset;
+        inFlight = filter == null && fields == null
+            ? client.fetch(topicId, partitionId, fromOffset, batchSize).thenApply(events ->
+                new TributaryClient.FetchResult(events,
+                    events.isEmpty() ? fromOffset : events.get(events.size() - 1).getOffset() + 1))
+            : client.fetch(topicId, partitionId, fromOffset, batchSize, filter, fields);
+    }
+
+    private boolean receive(boolean waited) {
+        TributaryClient.FetchResult result;
+        try {
+            result = inFlight.join();
+        } catch (RuntimeException e) {
+            inFlight = null;
+            throw new IllegalStateException("Fetch from " + partitionId + " failed", e.getCause());
+        }
+        inFlight = null;
+        List<Event<Object>> events = result.getEvents();
+        // moves past events the server scanned without a match, so they are not scanned again
+        long scannedFrom = nextOffset;
+        nextOffset = Math.max(nextOffset, result.getNextOffset());
+        if (events.isEmpty()) {
+            if (nextOffset > scannedFrom) {
+                // not caught up yet, so carry on scanning straight away
+                request();
+            }
+            return false;
+        }
+        if (waited && events.size() == batchSize) {
+            // the caller outran a full fetch, so fetch more at a time
+            batchSize = Math.min(maxBatchSize, batchSize * 2);
+        }
+        buffer.addAll(events);
+        return true;
+    }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import tributary.Event;
+import tributary.Snapshot;
+
+public class Protocol {
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    public static final byte PRODUCE = 1;
+    public static final byte CONSUME = 2;
+    public static final byte FETCH = 3;
+    public static final byte COMMIT = 4;
+    public static final byte ADMIN = 5;
+    public static final byte HEARTBEAT = 6;
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    /**
+     * Returns a buffer with room for at least the given number of extra bytes,
+     * copying the contents of the original into a larger buffer if needed
+     * @param buffer buffer in write mode
+     * @param bytes number of bytes about to be written
+     * @return the original buffer, or a larger copy of it
+     */
+    public static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string, or -1 for null
+     * @param buffer buffer with enough room for the string
+     * @param value string to be written
+     * @return void
+     */
+    public static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Reads a string written by putString
+     * @param buffer buffer positioned at the string
+     * @return the string, or null
+     */
+    public static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the number of bytes putString will write
+     * @param value string to be written
+     * @return encoded size in bytes
+     */
+    public static int sizeOf(String value) {
+        return 4 + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    /**
+     * Writes an event value as a length-prefixed encoded value
+     * @param buffer buffer to write to
+     * @param value value of an event
+     * @return the buffer written to, which may be a larger copy of the original
+     */
+    public static ByteBuffer putValue(ByteBuffer buffer, Object value) {
+        ByteBuffer encoded = Snapshot.encodeValue(value);
+        buffer = ensure(buffer, 4 + encoded.remaining());
+        buffer.putInt(encoded.remaining());
+        buffer.put(encoded);
+        return buffer;
+    }
+
+    /**
+     * Writes an event with its headers, offset and encoded value
+     * @param buffer buffer to write to
+     * @param event event to be written
+     * @return the buffer written to, which may be a larger copy of the original
+     */
+    public static ByteBuffer putEvent(ByteBuffer buffer, Event<?> event) {
+        buffer = ensure(buffer, sizeOf(event.getId()) + sizeOf(event.getPayloadType())
+            + sizeOf(event.getSource()) + sizeOf(event.getKey()) + 20);
+        putString(buffer, event.getId());
+        putString(buffer, event.getPayloadType());
+        putString(buffer, event.getSource());
+        putString(buffer, event.getKey());
+        buffer.putLong(event.getOffset());
+        LocalDateTime created = event.getCreationDate();
+        buffer.putLong(created.toEpochSecond(ZoneOffset.UTC));
+        buffer.putInt(created.getNano());
+        ByteBuffer encoded = event.getEncodedValue();
+        if (encoded == null) {
+            return putValue(buffer, event.getValue());
+        }
+        buffer = ensure(buffer, 4 + encoded.remaining());
+        buffer.putInt(encoded.remaining());
+        buffer.put(encoded.duplicate());
+        return buffer;
+    }
+
+    /**
+     * Reads an event written by putEvent. The value is decoded when first read.
+     * @param buffer buffer positioned at the event
+     * @return the event
+     */
+    public static Event<Object> getEvent(ByteBuffer buffer) {
+        String id = getString(buffer);
+        String payloadType = getString(buffer);
+        String source = getString(buffer);
+        String key = getString(buffer);
+        long offset = buffer.getLong();
+        LocalDateTime created = LocalDateTime.ofEpochSecond(buffer.getLong(), buffer.getInt(), ZoneOffset.UTC);
+        int length = buffer.getInt();
+        ByteBuffer encoded = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        Event<Object> event = new Event<>(id, payloadType, source, key, created, encoded);
+        event.setOffset(offset);
+        return event;
+    }
+}
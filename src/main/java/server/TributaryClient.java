@@ -0,0 +1,388 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tributary.Event;
+
+public class TributaryClient implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private SocketChannel channel;
+    private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+    private AtomicInteger nextCorrelationId = new AtomicInteger();
+    private Map<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+    private boolean autoFlush = true;
+    private volatile long throttledUntil = 0;
+    private volatile Exception failure;
+    private Thread reader;
+
+    /**
+     * Events returned by a filtered fetch, with the offset the next fetch carries on from
+     */
+    public static class FetchResult {
+        private final List<Event<Object>> events;
+        private final long nextOffset;
+
+        FetchResult(List<Event<Object>> events, long nextOffset) {
+            this.events = events;
+            this.nextOffset = nextOffset;
+        }
+
+        /**
+         * Gets the events that matched the filter
+         * @return matching events in offset order, which may be empty
+         */
+        public List<Event<Object>> getEvents() {
+            return events;
+        }
+
+        /**
+         * Gets the offset the next fetch carries on from
+         * @return offset one past the last event the server scanned
+         */
+        public long getNextOffset() {
+            return nextOffset;
+        }
+    }
+
+    /**
+     * Constructor for a client connected to a tributary server. Requests are
+     * pipelined: each call returns straight away with a future that completes
+     * when the server responds, so many requests can be in flight at once.
+     * @param host address of the server
+     * @param port port of the server
+     * @return new connected client
+     */
+    public TributaryClient(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        reader = new Thread(this::readResponses, "tributary-client-" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sets whether every request is sent as soon as it is made. When turned off,
+     * requests are buffered until flush is called, so a batch of requests goes out
+     * in as few writes as possible.
+     * @param autoFlush whether requests are sent straight away
+     * @return void
+     */
+    public synchronized void setAutoFlush(boolean autoFlush) {
+        this.autoFlush = autoFlush;
+    }
+
+    /**
+     * Produces an event with an inline payload
+     * @param producerId unique identifier of the producer
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition, or null to use the producer's strategy
+     * @param value payload of the event, e.g. a String, an Integer or a byte[]
+     * @return future completing with the offset of the event in its partition
+     */
+    public CompletableFuture<Long> produce(String producerId, String topicId, String partitionId, Object value) {
+        return produce(producerId, topicId, partitionId, null, value);
+    }
+
+    /**
+     * Produces an event with an inline payload and a partitioning key
+     * @param producerId unique identifier of the producer
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition, or null
+     * @param key partitioning key of the event, or null
+     * @param value payload of the event
+     * @post if the server reports that the producer or topic is over its quota, later
+     * produces wait out the throttle delay before being sent
+     * @return future completing with the offset of the event in its partition
+     */
+    public CompletableFuture<Long> produce(String producerId, String topicId, String partitionId, String key,
+        Object value) {
+        // waited out before taking the client lock, so other requests are not held back
+        waitForThrottle();
+        ByteBuffer request = ByteBuffer.allocate(Protocol.sizeOf(producerId) + Protocol.sizeOf(topicId)
+            + Protocol.sizeOf(partitionId) + Protocol.sizeOf(key));
+        Protocol.putString(request, producerId);
+        Protocol.putString(request, topicId);
+        Protocol.putString(request, partitionId);
+        Protocol.putString(request, key);
+        request = Protocol.putValue(request, value);
+        return send(Protocol.PRODUCE, request).thenApply(response -> {
+            long offset = response.getLong();
+            Protocol.getString(response);
+            int throttle = response.getInt();
+            if (throttle > 0) {
+                throttledUntil = Math.max(throttledUntil, System.currentTimeMillis() + throttle);
+            }
+            return offset;
+        });
+    }
+
+    /**
+     * Consumes up to maxEvents waiting events from a partition
+     * @param consumerId unique identifier of the consumer
+     * @param partitionId unique identifier of the partition
+     * @param maxEvents maximum number of events to consume
+     * @return future completing with the consumed events, which may be empty
+     */
+    public CompletableFuture<List<Event<Object>>> consume(String consumerId, String partitionId, int maxEvents) {
+        ByteBuffer request = ByteBuffer.allocate(Protocol.sizeOf(consumerId) + Protocol.sizeOf(partitionId) + 4);
+        Protocol.putString(request, consumerId);
+        Protocol.putString(request, partitionId);
+        request.putInt(maxEvents);
+        return send(Protocol.CONSUME, request).thenApply(TributaryClient::getEvents);
+    }
+
+    /**
+     * Reads events from the log of a partition by offset without consuming them
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition
+     * @param fromOffset offset of the first event to read
+     * @param maxEvents maximum number of events to read
+     * @return future completing with the events read
+     */
+    public CompletableFuture<List<Event<Object>>> fetch(String topicId, String partitionId, long fromOffset,
+        int maxEvents) {
+        ByteBuffer request = ByteBuffer.allocate(Protocol.sizeOf(topicId) + Protocol.sizeOf(partitionId) + 12);
+        Protocol.putString(request, topicId);
+        Protocol.putString(request, partitionId);
+        request.putLong(fromOffset);
+        request.putInt(maxEvents);
+        return send(Protocol.FETCH, request).thenApply(TributaryClient::getEvents);
+    }
+
+    /**
+     * Reads the events matching a filter from the log of a partition by offset. The filter
+     * and projection are applied by the server, so events that do not match are never sent.
+     * The server scans a bounded stretch of the log for each fetch, so the result may hold
+     * fewer than maxEvents events, or none, before the end of the log is reached.
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition
+     * @param fromOffset offset of the first event to read
+     * @param maxEvents maximum number of matching events to read
+     * @param filter EventFilter expression the events must match
+     * @param fields names of the top-level fields of JSON values to send, or null to send values whole
+     * @return future completing with the events read and the offset to fetch from next
+     */
+    public CompletableFuture<FetchResult> fetch(String topicId, String partitionId, long fromOffset,
+        int maxEvents, String filter, List<String> fields) {
+        String projection = fields == null ? null : String.join(",", fields);
+        ByteBuffer request = ByteBuffer.allocate(Protocol.sizeOf(topicId) + Protocol.sizeOf(partitionId) + 12
+            + Protocol.sizeOf(filter) + Protocol.sizeOf(projection));
+        Protocol.putString(request, topicId);
+        Protocol.putString(request, partitionId);
+        request.putLong(fromOffset);
+        request.putInt(maxEvents);
+        Protocol.putString(request, filter);
+        Protocol.putString(request, projection);
+        return send(Protocol.FETCH, request).thenApply(response -> {
+            List<Event<Object>> events = getEvents(response);
+            return new FetchResult(events, response.getLong());
+        });
+    }
+
+    /**
+     * Commits how far the group of a consumer has processed a partition
+     * @param consumerId unique identifier of the consumer
+     * @param partitionId unique identifier of the partition
+     * @param offset offset of the next event the group has not yet processed
+     * @return future completing when the commit has been recorded
+     */
+    public CompletableFuture<Void> commit(String consumerId, String partitionId, long offset) {
+        return commit(consumerId, partitionId, offset, -1);
+    }
+
+    /**
+     * Commits how far a consumer has processed a partition, fenced by the generation of
+     * its assignment, so that the commit fails if the partition has moved since then
+     * @param consumerId unique identifier of the consumer
+     * @param partitionId unique identifier of the partition
+     * @param offset offset of the next event the consumer has not yet processed
+     * @param generation generation of the consumer's assignment, or -1 to commit unfenced
+     * @return future completing when the commit has been recorded, or exceptionally if it was fenced off
+     */
+    public CompletableFuture<Void> commit(String consumerId, String partitionId, long offset, int generation) {
+        ByteBuffer request = ByteBuffer.allocate(Protocol.sizeOf(consumerId) + Protocol.sizeOf(partitionId) + 12);
+        Protocol.putString(request, consumerId);
+        Protocol.putString(request, partitionId);
+        request.putLong(offset);
+        request.putInt(generation);
+        return send(Protocol.COMMIT, request).thenApply(response -> null);
+    }
+
+    /**
+     * Sends a heartbeat for a consumer so that it is not evicted from its group
+     * @param consumerId unique identifier of the consumer
+     * @return future completing with whether the consumer is still a live member of its group
+     */
+    public CompletableFuture<Boolean> heartbeat(String consumerId) {
+        ByteBuffer request = ByteBuffer.allocate(Protocol.sizeOf(consumerId));
+        Protocol.putString(request, consumerId);
+        return send(Protocol.HEARTBEAT, request).thenApply(response -> response.get() != 0);
+    }
+
+    /**
+     * Runs an admin command on the server, written the same way as a CLI command,
+     * e.g. "create topic orders String"
+     * @param command command to be run
+     * @return future completing when the command has been run
+     */
+    public CompletableFuture<Void> admin(String command) {
+        ByteBuffer request = ByteBuffer.allocate(Protocol.sizeOf(command));
+        Protocol.putString(request, command);
+        return send(Protocol.ADMIN, request).thenApply(response -> null);
+    }
+
+    /**
+     * Sends every buffered request
+     * @post every request made so far has been written to the server
+     * @return void
+     */
+    public synchronized void flush() {
+        out.flip();
+        try {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        } catch (IOException e) {
+            failAll(e);
+        }
+        out.clear();
+    }
+
+    /**
+     * Closes the connection. Requests still waiting for a response fail.
+     * @post the client is disconnected from the server
+     * @return void
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        failAll(new IOException("Client closed"));
+    }
+
+    private synchronized CompletableFuture<ByteBuffer> send(byte opcode, ByteBuffer request) {
+        request.flip();
+        int correlationId = nextCorrelationId.incrementAndGet();
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        pending.put(correlationId, future);
+        // checked after registering, so a reader failing at the same time cannot miss the future
+        if (failure != null) {
+            pending.remove(correlationId);
+            future.completeExceptionally(failure);
+            return future;
+        }
+        if (out.remaining() < 9 + request.remaining()) {
+            flush();
+            out = Protocol.ensure(out, 9 + request.remaining());
+        }
+        out.putInt(5 + request.remaining());
+        out.putInt(correlationId);
+        out.put(opcode);
+        out.put(request);
+        if (autoFlush) {
+            flush();
+        }
+        return future;
+    }
+
+    /**
+     * Gets how long produces from this client are being held back because the server
+     * reported that a producer or topic quota was exceeded
+     * @return milliseconds until produces are sent again, or 0
+     */
+    public long getThrottleMillis() {
+        return Math.max(0, throttledUntil - System.currentTimeMillis());
+    }
+
+    private void waitForThrottle() {
+        long delay;
+        while ((delay = getThrottleMillis()) > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void readResponses() {
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        try {
+            while (channel.read(in) >= 0) {
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < 5 || length > Protocol.MAX_FRAME_SIZE) {
+                        throw new IOException("Invalid frame length " + length);
+                    }
+                    if (in.remaining() < 4 + length) {
+                        break;
+                    }
+                    in.getInt();
+                    int correlationId = in.getInt();
+                    byte status = in.get();
+                    byte[] payload = new byte[length - 5];
+                    in.get(payload);
+                    CompletableFuture<ByteBuffer> future = pending.remove(correlationId);
+                    if (future == null) {
+                        continue;
+                    }
+                    ByteBuffer response = ByteBuffer.wrap(payload);
+                    if (status == Protocol.OK) {
+                        future.complete(response);
+                    } else {
+                        future.completeExceptionally(new IllegalStateException(Protocol.getString(response)));
+                    }
+                }
+                in.compact();
+                if (!in.hasRemaining()) {
+                    in = Protocol.ensure(in, in.capacity());
+                }
+            }
+            fail(new IOException("Server closed the connection"));
+        } catch (IOException | RuntimeException e) {
+            // a broken response stream cannot be resynchronised, so nothing pending will ever complete
+            fail(e);
+        }
+    }
+
+    private void fail(Exception e) {
+        failure = e;
+        try {
+            channel.close();
+        } catch (IOException closeError) {
+        }
+        failAll(e);
+    }
+
+    private void failAll(Exception e) {
+        pending.keySet().forEach(id -> {
+            CompletableFuture<ByteBuffer> future = pending.remove(id);
+            if (future != null) {
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
+    private static List<Event<Object>> getEvents(ByteBuffer response) {
+        int numEvents = response.getInt();
+        List<Event<Object>> events = new ArrayList<>(numEvents);
+        for (int i = 0; i < numEvents; i++) {
+            events.add(Protocol.getEvent(response));
+        }
+        return events;
+    }
+}
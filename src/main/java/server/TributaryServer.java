@@ -0,0 +1,378 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import cli.CommandFactory;
+import tributary.Consumer;
+import tributary.ConsumerGroup;
+import tributary.Event;
+import tributary.EventFilter;
+import tributary.Partition;
+import tributary.Producer;
+import tributary.Snapshot;
+import tributary.Topic;
+import tributary.Tributary;
+
+public class TributaryServer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+    // admin commands run on the event loop, so only ones that change state in memory and
+    // return quickly are allowed; commands that touch files or run for long are CLI only
+    private static final Set<String> ADMIN_COMMANDS = Set.of("create", "delete", "show", "set", "retain",
+        "index", "quota", "filter", "project", "subscribe", "memory", "dedup");
+
+    private Tributary tributary;
+    private String host;
+    private int port;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread loop;
+
+    private static class Connection {
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor for a server exposing a tributary system over the network
+     * @param tributary system the requests are run against
+     * @param host address to listen on, e.g. 127.0.0.1
+     * @param port port to listen on, or 0 for any free port
+     * @return new server
+     */
+    public TributaryServer(Tributary tributary, String host, int port) {
+        this.tributary = tributary;
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9092;
+        // requests are not authenticated, so only local clients can connect unless a host is given
+        String host = args.length > 1 ? args[1] : "127.0.0.1";
+        TributaryServer server = new TributaryServer(new Tributary(), host, port);
+        server.start();
+        System.out.println("Tributary server listening on " + host + ":" + server.getPort());
+        server.awaitTermination();
+    }
+
+    /**
+     * Binds the server and starts its event loop. Every connection is served by
+     * one selector thread, which reads as many requests as have arrived, runs them
+     * in order and writes all of their responses back together.
+     * @post the server accepts connections until stop is called
+     * @return void
+     */
+    public synchronized void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(host, port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        port = serverChannel.socket().getLocalPort();
+        loop = new Thread(this::run, "tributary-server-" + port);
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * Waits for the event loop to finish
+     * @post the server has been stopped
+     * @return void
+     */
+    public void awaitTermination() throws InterruptedException {
+        Thread current;
+        synchronized (this) {
+            current = loop;
+        }
+        if (current != null) {
+            current.join();
+        }
+    }
+
+    /**
+     * Gets the port the server is listening on
+     * @return port number
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Stops the event loop and closes every connection
+     * @post the server no longer accepts connections
+     * @return void
+     */
+    public synchronized void stop() {
+        if (loop == null) {
+            return;
+        }
+        loop.interrupt();
+        selector.wakeup();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        loop = null;
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Tributary server stopped: " + e);
+        } finally {
+            selector.keys().forEach(this::close);
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(connection.in) < 0) {
+            close(key);
+            return;
+        }
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 5 || length > Protocol.MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            in.getInt();
+            int correlationId = in.getInt();
+            byte opcode = in.get();
+            ByteBuffer request = in.slice(in.position(), length - 5);
+            in.position(in.position() + length - 5);
+            connection.out = respond(connection.out, correlationId, opcode, request);
+        }
+        in.compact();
+        if (!in.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(in.capacity() * 2, Protocol.MAX_FRAME_SIZE + 4));
+            in.flip();
+            larger.put(in);
+            connection.in = larger;
+        }
+        write(key);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer out = connection.out;
+        out.flip();
+        ((SocketChannel) key.channel()).write(out);
+        out.compact();
+        if (out.position() == 0) {
+            key.interestOps(SelectionKey.OP_READ);
+        } else if (out.position() < MAX_PENDING_OUTPUT) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+        }
+    }
+
+    private ByteBuffer respond(ByteBuffer out, int correlationId, byte opcode, ByteBuffer request) {
+        ByteBuffer payload;
+        byte status = Protocol.OK;
+        try {
+            payload = handle(opcode, request);
+        } catch (RuntimeException e) {
+            status = Protocol.ERROR;
+            String message = String.valueOf(e);
+            payload = ByteBuffer.allocate(Protocol.sizeOf(message));
+            Protocol.putString(payload, message);
+        }
+        payload.flip();
+        out = Protocol.ensure(out, 9 + payload.remaining());
+        out.putInt(5 + payload.remaining());
+        out.putInt(correlationId);
+        out.put(status);
+        out.put(payload);
+        return out;
+    }
+
+    private ByteBuffer handle(byte opcode, ByteBuffer request) {
+        switch (opcode) {
+            case Protocol.PRODUCE:
+                return produce(request);
+            case Protocol.CONSUME:
+                return consume(request);
+            case Protocol.FETCH:
+                return fetch(request);
+            case Protocol.COMMIT:
+                return commit(request);
+            case Protocol.ADMIN:
+                String[] command = Protocol.getString(request).trim().split("\\s+");
+                if (!ADMIN_COMMANDS.contains(command[0])) {
+                    throw new IllegalArgumentException("Admin command " + command[0]
+                        + " is not allowed over the network");
+                }
+                CommandFactory.execute(command, tributary);
+                return ByteBuffer.allocate(0);
+            case Protocol.HEARTBEAT:
+                ByteBuffer live = ByteBuffer.allocate(1);
+                live.put((byte) (tributary.heartbeat(Protocol.getString(request)) ? 1 : 0));
+                return live;
+            default:
+                throw new IllegalArgumentException("Unknown opcode " + opcode);
+        }
+    }
+
+    private ByteBuffer commit(ByteBuffer request) {
+        String consumerId = Protocol.getString(request);
+        String partitionId = Protocol.getString(request);
+        long offset = request.getLong();
+        int generation = request.getInt();
+        Topic<?> topic = tributary.getConsumerTopic(consumerId, partitionId);
+        ConsumerGroup<?> group = topic.getGroupWithConsumer(consumerId);
+        if (generation < 0) {
+            group.commitOffset(partitionId, offset);
+        } else {
+            group.commitOffset(consumerId, partitionId, offset, generation);
+        }
+        return ByteBuffer.allocate(0);
+    }
+
+    private ByteBuffer produce(ByteBuffer request) {
+        String producerId = Protocol.getString(request);
+        // checked before the event is made, so ids sent by clients are never interned unless registered
+        Producer<?> producer = tributary.getProducer(producerId);
+        Topic<?> topic = tributary.getTopic(Protocol.getString(request));
+        String partitionId = Protocol.getString(request);
+        String key = Protocol.getString(request);
+        int length = request.getInt();
+        Object value = Snapshot.decodeValue(request.slice(request.position(), length));
+        // a full broker fails the produce; a nearly full one adds to the producer's throttle
+        long memoryDelay = tributary.getMemory().admit();
+        Event<?> event;
+        if (key != null) {
+            event = topic.addKeyedValue(producerId, key, value);
+        } else {
+            if (partitionId == null) {
+                partitionId = producer.getAllocation(0, topic);
+            }
+            event = topic.addValue(producerId, value, partitionId);
+        }
+        long throttle = Math.max(memoryDelay, tributary.getQuotas().record(producerId, topic.getId(), 1, length));
+        ByteBuffer response = ByteBuffer.allocate(12 + Protocol.sizeOf(event.getId()));
+        response.putLong(event.getOffset());
+        Protocol.putString(response, event.getId());
+        response.putInt((int) Math.min(Integer.MAX_VALUE, throttle));
+        return response;
+    }
+
+    private ByteBuffer consume(ByteBuffer request) {
+        String consumerId = Protocol.getString(request);
+        String partitionId = Protocol.getString(request);
+        int maxEvents = request.getInt();
+        return consume(tributary.getConsumerTopic(consumerId, partitionId), consumerId, partitionId, maxEvents);
+    }
+
+    private <E> ByteBuffer consume(Topic<E> topic, String consumerId, String partitionId, int maxEvents) {
+        Consumer<E> consumer = topic.getGroupWithConsumer(consumerId).getConsumer(consumerId);
+        Partition<E> partition = topic.getPartition(partitionId);
+        List<Event<E>> events = new ArrayList<>();
+        Event<E> event;
+        while (events.size() < maxEvents && (event = partition.pollEvent(consumer, 0)) != null) {
+            events.add(event);
+        }
+        return putEvents(events);
+    }
+
+    private ByteBuffer fetch(ByteBuffer request) {
+        Topic<?> topic = tributary.getTopic(Protocol.getString(request));
+        return fetch(topic.getPartition(Protocol.getString(request)), request);
+    }
+
+    private <E> ByteBuffer fetch(Partition<E> partition, ByteBuffer request) {
+        long fromOffset = request.getLong();
+        int maxEvents = request.getInt();
+        if (!request.hasRemaining()) {
+            return putEvents(partition.getEvents(fromOffset, maxEvents));
+        }
+        String filter = Protocol.getString(request);
+        String projection = Protocol.getString(request);
+        // a filtered fetch scans a bounded stretch of the log and says where the next fetch carries on
+        List<Event<E>> matching = new ArrayList<>();
+        long scannedTo = partition.getEvents(fromOffset, maxEvents, filter == null ? null : EventFilter.parse(filter),
+            matching);
+        List<? extends Event<?>> events = matching;
+        if (projection != null) {
+            List<String> fields = Arrays.asList(projection.split(","));
+            events = events.stream().<Event<?>>map(event -> EventFilter.project(event, fields)).collect(Collectors.toList());
+        }
+        ByteBuffer response = putEvents(events);
+        response = Protocol.ensure(response, 8);
+        response.putLong(scannedTo);
+        return response;
+    }
+
+    private ByteBuffer putEvents(List<? extends Event<?>> events) {
+        ByteBuffer response = ByteBuffer.allocate(BUFFER_SIZE);
+        response.putInt(events.size());
+        for (Event<?> event : events) {
+            response = Protocol.putEvent(response, event);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,40 @@
+package tributary;
+
+import java.util.List;
+
+/**
+ * An immutable snapshot of the partitions allocated to a consumer. A rebalance
+ * publishes a new snapshot for every consumer instead of editing their allocations
+ * in place, so a consumer never sees a partly rebalanced allocation.
+ */
+public class Assignment<E> {
+    private final int generation;
+    private final List<Partition<E>> partitions;
+
+    /**
+     * Constructor for an assignment
+     * @param generation generation of the consumer group the assignment was published in
+     * @param partitions partitions allocated to the consumer
+     * @return new assignment holding a copy of partitions
+     */
+    public Assignment(int generation, List<Partition<E>> partitions) {
+        this.generation = generation;
+        this.partitions = List.copyOf(partitions);
+    }
+
+    /**
+     * Gets the generation of the consumer group the assignment was published in
+     * @return generation, counting up from 0 with each rebalance of the group
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Gets the partitions allocated to the consumer
+     * @return unmodifiable list of partitions
+     */
+    public List<Partition<E>> getPartitions() {
+        return partitions;
+    }
+}
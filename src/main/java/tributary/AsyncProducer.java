@@ -0,0 +1,275 @@
+package tributary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Produces events to a topic without making the caller wait for the append. Records are
+ * gathered into a batch per partition, and a batch is appended in one go by a sender
+ * thread once it is full or its first record has waited for the linger time. The number
+ * of records waiting is bounded: once the buffer is full, sending either blocks until
+ * there is room or fails straight away.
+ */
+public class AsyncProducer implements AutoCloseable {
+    /** Memory account the payloads waiting in every asynchronous producer are reported under */
+    public static final String BUFFER_ACCOUNT = "buffer.async";
+
+    private Tributary tributary;
+    private Topic<?> topic;
+    private Producer<?> producer;
+    private int batchSize;
+    private long lingerNanos;
+    private boolean blockWhenFull;
+    private Semaphore buffer;
+    private Map<String, Batch> batches = new LinkedHashMap<>();
+    private Map<String, Batch> keyedBatches = new LinkedHashMap<>();
+    private ArrayDeque<Batch> ready = new ArrayDeque<>();
+    private Batch sending;
+    private volatile boolean closed = false;
+    private Thread sender;
+
+    private static class Batch {
+        private String partitionId;
+        private boolean keyed;
+        private long created = System.nanoTime();
+        private List<Object> values = new ArrayList<>();
+        private List<String> keys = new ArrayList<>();
+        private List<CompletableFuture<Long>> futures = new ArrayList<>();
+        private long bytes = 0;
+
+        Batch(String partitionId, boolean keyed) {
+            this.partitionId = partitionId;
+            this.keyed = keyed;
+        }
+    }
+
+    /**
+     * Constructor for an asynchronous producer
+     * @param tributary system the topic belongs to
+     * @param producerId unique identifier of the producer the events are produced by
+     * @param topicId unique identifier of the topic the events are produced to
+     * @param batchSize number of records in a partition after which they are appended straight away
+     * @param lingerMillis longest time a record waits for its batch to fill up
+     * @param bufferRecords most records that can be waiting to be appended at once
+     * @param blockWhenFull whether sending blocks when the buffer is full, rather than failing
+     * @pre the producer and topic exist
+     * @return new asynchronous producer, with its sender thread running
+     */
+    public AsyncProducer(Tributary tributary, String producerId, String topicId, int batchSize, long lingerMillis,
+        int bufferRecords, boolean blockWhenFull) {
+        this.tributary = tributary;
+        this.topic = tributary.getTopic(topicId);
+        this.producer = tributary.getProducer(producerId);
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.buffer = new Semaphore(bufferRecords);
+        this.blockWhenFull = blockWhenFull;
+        this.sender = new Thread(this::run, "async-producer-" + producerId);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Sends an event to the partition chosen by the producer's strategy
+     * @param value payload of the event
+     * @pre value is not null
+     * @return future completing with the offset of the event in its partition
+     */
+    public CompletableFuture<Long> send(Object value) {
+        return send(value, producer.getAllocation(0, topic));
+    }
+
+    /**
+     * Sends an event to a partition with a specified ID
+     * @param value payload of the event
+     * @param partitionId unique identifier of the partition
+     * @pre value is not null. the partition exists.
+     * @return future completing with the offset of the event in its partition. it fails with an
+     * IllegalStateException if the buffer is full and the producer does not block, or it has been closed
+     */
+    public CompletableFuture<Long> send(Object value, String partitionId) {
+        return add(batches, partitionId, false, null, value);
+    }
+
+    /**
+     * Sends an event with a partitioning key to the partition its key maps to. Events with the
+     * same key are appended in the order they were sent.
+     * @param key partitioning key of the event
+     * @param value payload of the event
+     * @pre value is not null. the topic has at least one partition.
+     * @return future completing with the offset of the event in its partition
+     */
+    public CompletableFuture<Long> sendKeyed(String key, Object value) {
+        // batched by the partition the key maps to now, but routed again when appended
+        // so that keys follow the topic if it is expanded in the meantime
+        String partitionId = topic.getPartitions().get(topic.partitionIndexForKey(key)).getId();
+        return add(keyedBatches, partitionId, true, key, value);
+    }
+
+    private CompletableFuture<Long> add(Map<String, Batch> open, String partitionId, boolean keyed, String key,
+        Object value) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        if (!reserve()) {
+            future.completeExceptionally(new IllegalStateException("Producer " + producer.getId()
+                + (closed ? " has been closed" : " has no room in its buffer")));
+            return future;
+        }
+        synchronized (this) {
+            if (closed) {
+                buffer.release();
+                future.completeExceptionally(new IllegalStateException("Producer " + producer.getId()
+                    + " has been closed"));
+                return future;
+            }
+            Batch batch = open.computeIfAbsent(partitionId, id -> new Batch(id, keyed));
+            long bytes = QuotaManager.sizeOf(value);
+            batch.bytes += bytes;
+            tributary.getMemory().add(BUFFER_ACCOUNT, bytes);
+            batch.values.add(value);
+            batch.keys.add(key);
+            batch.futures.add(future);
+            if (batch.values.size() >= batchSize) {
+                open.remove(partitionId);
+                ready.add(batch);
+                notifyAll();
+            } else if (batch.values.size() == 1) {
+                // the sender may be waiting without a deadline
+                notifyAll();
+            }
+        }
+        return future;
+    }
+
+    private boolean reserve() {
+        if (closed) {
+            return false;
+        }
+        if (!blockWhenFull) {
+            return buffer.tryAcquire();
+        }
+        try {
+            buffer.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Appends every waiting record without waiting for the linger time
+     * @post every record sent before the call has been appended or has failed
+     * @return void
+     */
+    public void flush() {
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        synchronized (this) {
+            drainOpen(true);
+            if (sending != null) {
+                futures.addAll(sending.futures);
+            }
+            ready.forEach(batch -> futures.addAll(batch.futures));
+            notifyAll();
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+    }
+
+    /**
+     * Appends every waiting record and stops the sender thread
+     * @post every record sent before the call has been appended or has failed. later sends fail.
+     * @return void
+     */
+    @Override
+    public void close() {
+        flush();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainOpen(boolean all) {
+        long now = System.nanoTime();
+        for (Map<String, Batch> open : List.of(batches, keyedBatches)) {
+            open.values().removeIf(batch -> {
+                if (all || now - batch.created >= lingerNanos) {
+                    ready.add(batch);
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
+    private synchronized Batch nextBatch() throws InterruptedException {
+        while (true) {
+            drainOpen(false);
+            if (!ready.isEmpty()) {
+                sending = ready.poll();
+                return sending;
+            }
+            sending = null;
+            if (closed) {
+                return null;
+            }
+            long oldest = Long.MAX_VALUE;
+            for (Map<String, Batch> open : List.of(batches, keyedBatches)) {
+                for (Batch batch : open.values()) {
+                    oldest = Math.min(oldest, batch.created);
+                }
+            }
+            if (oldest == Long.MAX_VALUE) {
+                wait();
+            } else {
+                TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, oldest + lingerNanos - System.nanoTime()));
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            Batch batch;
+            while ((batch = nextBatch()) != null) {
+                append(batch);
+                long throttle = tributary.getQuotas().record(producer.getId(), topic.getId(), batch.values);
+                if (throttle > 0) {
+                    Thread.sleep(throttle);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(Batch batch) throws InterruptedException {
+        try {
+            // held back, or failed, while the broker is short of memory
+            long delay = tributary.getMemory().admit();
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            List<? extends Event<?>> events = batch.keyed
+                ? topic.addKeyedValues(producer.getId(), batch.keys, batch.values)
+                : topic.addValues(producer.getId(), batch.values, batch.partitionId);
+            for (int i = 0; i < events.size(); i++) {
+                batch.futures.get(i).complete(events.get(i).getOffset());
+            }
+        } catch (RuntimeException e) {
+            batch.futures.forEach(future -> future.completeExceptionally(e));
+        } finally {
+            tributary.getMemory().add(BUFFER_ACCOUNT, -batch.bytes);
+            buffer.release(batch.values.size());
+        }
+    }
+}
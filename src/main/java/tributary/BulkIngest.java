@@ -0,0 +1,137 @@
+package tributary;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.json.JSONObject;
+
+public class BulkIngest {
+    private static final int CHANNEL_CAPACITY = 4;
+    private static final List<Object> END = new ArrayList<>();
+
+    private Topic<?> topic;
+    private Producer<?> producer;
+    private String fileName;
+    private int batchSize;
+    private QuotaManager quotas;
+    private MemoryAccountant memory;
+    private BlockingQueue<List<Object>> channel = new ArrayBlockingQueue<>(CHANNEL_CAPACITY);
+    private volatile RuntimeException readFailure;
+
+    /**
+     * Constructor for a bulk ingest of a newline-delimited JSON file that keeps to the quotas
+     * of the producer and topic, waiting out any throttle delay after each batch, and is held
+     * back while the system is short of memory
+     * @param topic topic the events are produced to
+     * @param producer producer the events are produced by
+     * @param fileName path of the newline-delimited JSON file
+     * @param batchSize maximum number of events handed over at once
+     * @param quotas quotas each batch is recorded against, or null
+     * @param memory memory accountant each batch must be admitted by, or null
+     * @return new bulk ingest
+     */
+    public BulkIngest(Topic<?> topic, Producer<?> producer, String fileName, int batchSize, QuotaManager quotas,
+        MemoryAccountant memory) {
+        this.topic = topic;
+        this.producer = producer;
+        this.fileName = fileName;
+        this.batchSize = Math.max(1, batchSize);
+        this.quotas = quotas;
+        this.memory = memory;
+    }
+
+    /**
+     * Streams the file on a reader thread into a bounded channel of batches and
+     * produces each batch on the calling thread. The reader blocks when the
+     * channel is full, so memory stays bounded however large the file is.
+     * @pre the file exists and every non-blank line is valid JSON
+     * @post every non-blank line of the file has been produced as an event
+     * @return number of events produced
+     */
+    public long run() {
+        Thread reader = new Thread(this::read, "bulk-ingest-" + fileName);
+        reader.setDaemon(true);
+        reader.start();
+        long count = 0;
+        try {
+            List<Object> batch;
+            while ((batch = channel.take()) != END) {
+                long delay = memory == null ? 0 : memory.admit();
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                count += produce(batch);
+                long throttle = quotas == null ? 0 : quotas.record(producer.getId(), topic.getId(), batch);
+                if (throttle > 0) {
+                    Thread.sleep(throttle);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            reader.interrupt();
+        }
+        if (readFailure != null) {
+            throw readFailure;
+        }
+        return count;
+    }
+
+    private void read() {
+        try (BufferedReader lines = Files.newBufferedReader(Paths.get(fileName))) {
+            List<Object> batch = new ArrayList<>(batchSize);
+            String line;
+            while ((line = lines.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                batch.add(parseValue(line));
+                if (batch.size() == batchSize) {
+                    channel.put(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                channel.put(batch);
+            }
+        } catch (IOException e) {
+            readFailure = new IllegalArgumentException(fileName + " could not be loaded!", e);
+        } catch (InterruptedException e) {
+            return;
+        } catch (RuntimeException e) {
+            readFailure = new IllegalArgumentException(fileName + " contains invalid JSON!", e);
+        }
+        try {
+            channel.put(END);
+        } catch (InterruptedException e) {
+            return;
+        }
+    }
+
+    private static Object parseValue(String line) {
+        if (!line.startsWith("{")) {
+            return new JSONObject("{\"value\": " + line + "}").get("value");
+        }
+        JSONObject json = new JSONObject(line);
+        return json.has("value") ? json.get("value") : json;
+    }
+
+    private int produce(List<Object> batch) {
+        Map<String, List<Object>> byPartition = new LinkedHashMap<>();
+        for (Object value : batch) {
+            String partitionId = producer.getAllocation(0, topic);
+            byPartition.computeIfAbsent(partitionId, p -> new ArrayList<>()).add(value);
+        }
+        byPartition.forEach((partitionId, values) -> topic.addValues(producer.getId(), values, partitionId));
+        return batch.size();
+    }
+}
@@ -2,11 +2,16 @@ package tributary;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Consumer<E> {
     private String id;
+    private int handle;
     private List<Event<E>> eventsConsumed;
-    private List<Partition<E>> partitions = new ArrayList<>();
+    private volatile Assignment<E> assignment = new Assignment<>(0, List.of());
+    private List<Runnable> assignmentListeners = new CopyOnWriteArrayList<>();
+    private volatile EventFilter filter;
+    private volatile List<String> projection;
 
     /**
      * Constructor for consumer
@@ -15,6 +20,7 @@ public class Consumer<E> {
      */
     public Consumer(String id) {
         this.id = id;
+        this.handle = Identifiers.intern(id);
         this.eventsConsumed = new ArrayList<>();
     }
 
@@ -27,11 +33,45 @@ public class Consumer<E> {
     }
 
     /**
-     * Gets the ID of the partition this consumer is allocated to
-     * @return String corresponding to partition Id
+     * Gets the interned id of the consumer
+     * @return handle of the consumer ID
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    /**
+     * Gets the partitions this consumer is allocated to
+     * @return unmodifiable list of partitions, which a later rebalance replaces rather than changes
      */
     public List<Partition<E>> getPartitions() {
-        return partitions;
+        return assignment.getPartitions();
+    }
+
+    /**
+     * Gets the current assignment of this consumer
+     * @return snapshot of the partitions allocated to this consumer and its generation
+     */
+    public Assignment<E> getAssignment() {
+        return assignment;
+    }
+
+    /**
+     * Gets the generation of the consumer group this consumer was last assigned in
+     * @return generation to commit offsets with
+     */
+    public int getGeneration() {
+        return assignment.getGeneration();
+    }
+
+    /**
+     * Publishes a new assignment for this consumer, replacing the current one as a whole
+     * @param assignment the new assignment
+     * @post readers of this consumer's partitions see either the old or the new assignment
+     * @return void
+     */
+    public synchronized void assign(Assignment<E> assignment) {
+        this.assignment = assignment;
     }
 
     /**
@@ -42,6 +82,41 @@ public class Consumer<E> {
         return eventsConsumed;
     }
 
+    /**
+     * Gets the filter partitions apply before handing events to this consumer
+     * @return filter, or null if the consumer receives every event
+     */
+    public EventFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Sets the filter partitions apply before handing events to this consumer.
+     * Events that do not match are skipped rather than consumed.
+     * @param filter filter events must match, or null to receive every event
+     * @return void
+     */
+    public void setFilter(EventFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Gets the fields of JSON values this consumer receives
+     * @return names of the fields kept, or null if values are received whole
+     */
+    public List<String> getProjection() {
+        return projection;
+    }
+
+    /**
+     * Sets the fields of JSON values this consumer receives
+     * @param projection names of the top-level fields to keep, or null to receive values whole
+     * @return void
+     */
+    public void setProjection(List<String> projection) {
+        this.projection = projection == null ? null : List.copyOf(projection);
+    }
+
     /**
      * Consumes an event and adds it to the list of consumed events
      * @param event event to be consumed
@@ -72,7 +147,9 @@ public class Consumer<E> {
      * @return void
      */
     public synchronized void addPartition(Partition<E> partition) {
+        List<Partition<E>> partitions = new ArrayList<>(assignment.getPartitions());
         partitions.add(partition);
+        assignment = new Assignment<>(assignment.getGeneration(), partitions);
     }
 
     /**
@@ -80,8 +157,8 @@ public class Consumer<E> {
      * @return void
      */
     public void displayPartitions() {
-        partitions.stream()
-                  .forEach(p -> System.out.println(p.getId() + " "));
+        getPartitions().stream()
+                       .forEach(p -> System.out.println(p.getId() + " "));
     }
 
     /**
@@ -89,8 +166,35 @@ public class Consumer<E> {
      * @post this consumer has no partitions allocated to it
      * @return void
      */
-    public void resetAllocation() {
-        this.partitions = new ArrayList<>();
+    public synchronized void resetAllocation() {
+        assignment = new Assignment<>(assignment.getGeneration(), List.of());
+    }
+
+    /**
+     * Registers a listener to be run whenever this consumer's partitions are reassigned
+     * @param listener listener to be run after each rebalance
+     * @post the listener is run after every later rebalance of this consumer's group
+     * @return void
+     */
+    public void addAssignmentListener(Runnable listener) {
+        assignmentListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener registered with addAssignmentListener
+     * @param listener listener to be removed
+     * @post the listener is no longer run after rebalances
+     * @return void
+     */
+    public void removeAssignmentListener(Runnable listener) {
+        assignmentListeners.remove(listener);
     }
 
+    /**
+     * Runs every assignment listener of this consumer
+     * @return void
+     */
+    public void notifyAssignmentChanged() {
+        assignmentListeners.forEach(Runnable::run);
+    }
 }
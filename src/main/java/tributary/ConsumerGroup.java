@@ -1,12 +1,23 @@
 package tributary;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class ConsumerGroup<E> {
     private String id;
+    private int handle;
     private RebalanceStrategy<E> rebalancingStrategy;
-    private List<Consumer<E>> consumers = new ArrayList<>();
+    private List<Consumer<E>> consumers = new CopyOnWriteArrayList<>();
+    private Map<String, Long> committedOffsets = new ConcurrentHashMap<>();
+    private int generation = 0;
+    // generation in which each partition was last given to the consumer that now holds it
+    private volatile Map<String, Integer> assignedIn = Map.of();
 
     /**
      * Constructor for consumer group
@@ -16,6 +27,7 @@ public class ConsumerGroup<E> {
      */
     public ConsumerGroup(String id, String strategy) {
         this.id = id;
+        this.handle = Identifiers.intern(id);
         switch (strategy) {
             case "Range":
                 this.rebalancingStrategy = new Range<E>();
@@ -37,6 +49,22 @@ public class ConsumerGroup<E> {
         return id;
     }
 
+    /**
+     * Gets the interned id of the consumer group
+     * @return handle of the consumer group ID
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    /**
+     * Gets the generation of this group, which goes up by one with every rebalance
+     * @return current generation
+     */
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
     /**
      * Gets the list of consumers in this group
      * @return list of consumers in this consumer group
@@ -65,18 +93,53 @@ public class ConsumerGroup<E> {
      * @post the consumer with the specified id no longer exists in this group
      * @return void
      */
-    public synchronized void deleteConsumer(String consumerId) {
-        Consumer<E> consToBeDeleted;
-        try {
-            consToBeDeleted = consumers.stream()
-                                        .filter(consumer -> consumer.getId()
-                                        .equals(consumerId))
-                                        .findFirst()
-                                        .get();
-        } catch (Exception e) {
-            return;
+    public void deleteConsumer(String consumerId) {
+        Consumer<E> removed;
+        synchronized (this) {
+            removed = removeConsumer(consumerId);
+        }
+        if (removed != null) {
+            removed.notifyAssignmentChanged();
+        }
+    }
+
+    /**
+     * Removes a consumer that has failed and hands only its partitions to the
+     * remaining consumers, each to whichever consumer has the fewest partitions.
+     * Every other allocation is left as it is.
+     * @param consumerId unique ID of the consumer to be evicted
+     * @param topic topic this group belongs to
+     * @post the consumer no longer exists in this group and its partitions are allocated to other consumers
+     * @return whether the consumer was in this group
+     */
+    public boolean evictConsumer(String consumerId, Topic<E> topic) {
+        List<Consumer<E>> changed = new ArrayList<>();
+        synchronized (this) {
+            if (!containsConsumer(consumerId)) {
+                return false;
+            }
+            List<Partition<E>> orphaned = new ArrayList<>(getConsumer(consumerId).getPartitions());
+            // counted before the consumer is removed, so whoever sees it gone also sees the eviction
+            topic.getMetrics().counter("group." + topic.getId() + "." + id + ".evictions").increment();
+            changed.add(removeConsumer(consumerId));
+            if (!consumers.isEmpty()) {
+                long start = System.nanoTime();
+                Map<Consumer<E>, List<Partition<E>>> plan = currentPlan();
+                for (Partition<E> partition : orphaned) {
+                    Consumer<E> leastLoaded = consumers.get(0);
+                    for (Consumer<E> consumer : consumers) {
+                        if (plan.get(consumer).size() < plan.get(leastLoaded).size()) {
+                            leastLoaded = consumer;
+                        }
+                    }
+                    plan.get(leastLoaded).add(partition);
+                }
+                changed.addAll(publish(plan));
+                recordRebalance(topic, start);
+            }
         }
-        consumers.remove(consToBeDeleted);
+        changed.forEach(Consumer::notifyAssignmentChanged);
+        return true;
     }
 
     /**
@@ -85,7 +148,16 @@ public class ConsumerGroup<E> {
      * @return boolean corresponding to whether consumer is present in this group
      */
     public boolean containsConsumer(String consumerId) {
-        return consumers.stream().anyMatch(consumer -> consumer.getId().equals(consumerId));
+        return containsConsumer(Identifiers.lookup(consumerId));
+    }
+
+    /**
+     * Checks whether a consumer is in this group by its interned id
+     * @param consumerHandle handle of the consumer ID
+     * @return whether the consumer is in this group
+     */
+    public boolean containsConsumer(int consumerHandle) {
+        return consumers.stream().anyMatch(consumer -> consumer.getHandle() == consumerHandle);
     }
 
     /**
@@ -94,7 +166,8 @@ public class ConsumerGroup<E> {
      * @return consumer with specified ID
      */
     public Consumer<E> getConsumer(String consumerId) {
-        return consumers.stream().filter(consumer -> consumer.getId().equals(consumerId)).findFirst().get();
+        int consumerHandle = Identifiers.lookup(consumerId);
+        return consumers.stream().filter(consumer -> consumer.getHandle() == consumerHandle).findFirst().get();
     }
 
     /**
@@ -111,6 +184,14 @@ public class ConsumerGroup<E> {
                  });
     }
 
+    /**
+     * Gets the name of the rebalancing strategy of this consumer group
+     * @return Range or RoundRobin
+     */
+    public String getRebalancingStrategyName() {
+        return rebalancingStrategy.getClass().getSimpleName();
+    }
+
     /**
      * Sets the rebalancing strategy for this consumer group
      * @param strategy rebalancing strategy
@@ -133,23 +214,149 @@ public class ConsumerGroup<E> {
     }
 
     /**
-     * Rebalances the consumer allocations in the group for a specific topic
+     * Rebalances the consumer allocations in the group for a specific topic. The new
+     * allocation is planned first and then published to every consumer at once, so
+     * consumers keep consuming their current partitions meanwhile, and ones whose
+     * partitions do not change are not interrupted at all.
      * @param topic unique identifier for a topic
      * @pre the topic is a valid topic
      * @post the consumers in this group are reallocated properly according to the strategy
      * @return void
      */
     public void rebalance(Topic<E> topic) {
-        if (consumers.size() == 0) return;
-        rebalancingStrategy.rebalance(topic, this);
+        List<Consumer<E>> changed;
+        synchronized (this) {
+            if (consumers.size() == 0) return;
+            long start = System.nanoTime();
+            changed = publish(rebalancingStrategy.rebalance(topic, this));
+            recordRebalance(topic, start);
+        }
+        changed.forEach(Consumer::notifyAssignmentChanged);
     }
 
     /**
-     * Resets the consumer allocations for this consumer group
-     * @post the consumers in this group are unallocated all their partitions
+     * Allocates a partition newly added to a topic without moving any existing allocation
+     * @param topic topic the partition was added to
+     * @param partition the newly added partition
+     * @pre the partition is the last partition of the topic
+     * @post the partition is allocated to one consumer in this group, if the group has consumers
      * @return void
      */
-    public void resetConsumerAllocations() {
-        consumers.stream().forEach(c -> c.resetAllocation());
+    public void assignNewPartition(Topic<E> topic, Partition<E> partition) {
+        List<Consumer<E>> changed;
+        synchronized (this) {
+            if (consumers.size() == 0) return;
+            long start = System.nanoTime();
+            Map<Consumer<E>, List<Partition<E>>> plan = currentPlan();
+            plan.get(rebalancingStrategy.assignNewPartition(topic, this, partition)).add(partition);
+            changed = publish(plan);
+            recordRebalance(topic, start);
+        }
+        changed.forEach(Consumer::notifyAssignmentChanged);
+    }
+
+    private void recordRebalance(Topic<E> topic, long start) {
+        // named after the topic as well, as groups in different topics may share an id
+        String prefix = "group." + topic.getId() + "." + id;
+        Metrics metrics = topic.getMetrics();
+        metrics.counter(prefix + ".rebalances").increment();
+        metrics.histogram(prefix + ".rebalance.duration").record(System.nanoTime() - start);
+    }
+
+    /**
+     * Records the offset this group has processed a partition up to
+     * @param partitionId unique identifier of the partition
+     * @param offset offset of the next event the group has not yet processed
+     * @post the committed offset of the partition is at least offset
+     * @return void
+     */
+    public void commitOffset(String partitionId, long offset) {
+        committedOffsets.merge(partitionId, offset, Math::max);
+    }
+
+    /**
+     * Records the offset a consumer has processed a partition up to, unless the partition
+     * has been given to another consumer, or taken away and given back, since the
+     * generation the consumer read it in. This stops a consumer that has lost a partition
+     * from overwriting the progress of its new owner. The check and the commit hold the
+     * group lock, so a rebalance cannot move the partition in between.
+     * @param consumerId unique identifier of the committing consumer
+     * @param partitionId unique identifier of the partition
+     * @param offset offset of the next event the consumer has not yet processed
+     * @param generation generation of the consumer's assignment when it read the events
+     * @post the committed offset of the partition is at least offset
+     * @return void
+     * @throws IllegalStateException if the commit is fenced off
+     */
+    public synchronized void commitOffset(String consumerId, String partitionId, long offset, int generation) {
+        Assignment<E> current = containsConsumer(consumerId) ? getConsumer(consumerId).getAssignment() : null;
+        boolean owned = current != null
+            && current.getPartitions().stream().anyMatch(partition -> partition.getId().equals(partitionId));
+        if (!owned || generation < assignedIn.getOrDefault(partitionId, 0) || generation > current.getGeneration()) {
+            throw new IllegalStateException("Commit of partition " + partitionId + " by consumer " + consumerId
+                + " in generation " + generation + " is fenced off");
+        }
+        commitOffset(partitionId, offset);
+    }
+
+    /**
+     * Gets the offset this group has processed a partition up to
+     * @param partitionId unique identifier of the partition
+     * @return committed offset, or 0 if nothing has been committed
+     */
+    public long getCommittedOffset(String partitionId) {
+        return committedOffsets.getOrDefault(partitionId, 0L);
+    }
+
+    /**
+     * Gets every committed offset of this group
+     * @return map of partition ids to committed offsets
+     */
+    public Map<String, Long> getCommittedOffsets() {
+        return committedOffsets;
+    }
+
+    private Map<Consumer<E>, List<Partition<E>>> currentPlan() {
+        Map<Consumer<E>, List<Partition<E>>> plan = new LinkedHashMap<>();
+        consumers.forEach(consumer -> plan.put(consumer, new ArrayList<>(consumer.getPartitions())));
+        return plan;
+    }
+
+    private Consumer<E> removeConsumer(String consumerId) {
+        int consumerHandle = Identifiers.lookup(consumerId);
+        Consumer<E> removed = consumers.stream()
+                                       .filter(consumer -> consumer.getHandle() == consumerHandle)
+                                       .findFirst()
+                                       .orElse(null);
+        if (removed != null) {
+            consumers.remove(removed);
+            removed.assign(new Assignment<>(++generation, List.of()));
+        }
+        return removed;
+    }
+
+    /**
+     * Publishes a planned allocation as the next generation of this group. Every
+     * consumer gets a new assignment, but only those whose partitions changed are
+     * returned, to be told about it once the group lock is released. Their listeners
+     * may wait for consumer threads that are themselves waiting for the group lock.
+     */
+    private List<Consumer<E>> publish(Map<Consumer<E>, List<Partition<E>>> plan) {
+        generation++;
+        Map<String, Integer> moved = new HashMap<>(assignedIn);
+        List<Consumer<E>> changed = new ArrayList<>();
+        for (Consumer<E> consumer : consumers) {
+            List<Partition<E>> partitions = plan.getOrDefault(consumer, List.of());
+            List<Partition<E>> previous = consumer.getPartitions();
+            partitions.stream()
+                      .filter(partition -> !previous.contains(partition))
+                      .forEach(partition -> moved.put(partition.getId(), generation));
+            if (!new HashSet<>(partitions).equals(new HashSet<>(previous))) {
+                changed.add(consumer);
+            }
+            consumer.assign(new Assignment<>(generation, partitions));
+        }
+        assignedIn = Map.copyOf(moved);
+        return changed;
     }
 }
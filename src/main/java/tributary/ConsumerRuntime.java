@@ -0,0 +1,134 @@
+package tributary;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class ConsumerRuntime<E> {
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private Consumer<E> consumer;
+    private EventHandler handler;
+    private int prefetch;
+    private Map<Partition<E>, Thread> workers = new IdentityHashMap<>();
+    private Runnable listener = this::reconcile;
+    private volatile boolean running = false;
+
+    /**
+     * Constructor for a runtime that consumes every partition assigned to a consumer
+     * @param consumer consumer whose partitions are consumed
+     * @param handler called with each event after it has been consumed
+     * @return new consumer runtime
+     */
+    public ConsumerRuntime(Consumer<E> consumer, EventHandler handler) {
+        this(consumer, handler, 0);
+    }
+
+    /**
+     * Constructor for a runtime that reads ahead of its handler. Each worker keeps a
+     * prefetch buffer that is refilled in batches in the background, so the handler is
+     * not held up by the partition lock. Events still buffered when a partition is
+     * revoked are put back at the head of the partition.
+     * @param consumer consumer whose partitions are consumed
+     * @param handler called with each event after it has been consumed
+     * @param prefetch most events buffered per partition, or 0 to consume from the partition directly
+     * @return new consumer runtime
+     */
+    public ConsumerRuntime(Consumer<E> consumer, EventHandler handler, int prefetch) {
+        this.consumer = consumer;
+        this.handler = handler;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Starts one worker thread per assigned partition. Each worker consumes its
+     * partition strictly in order, so partitions are consumed in parallel but
+     * events within a partition are never reordered. Whenever the consumer's group
+     * rebalances, workers for revoked partitions are stopped before workers for
+     * newly assigned partitions are started.
+     * @pre the handler does not add or remove consumers or partitions
+     * @post the runtime is consuming every partition assigned to the consumer
+     * @return void
+     */
+    public synchronized void start() {
+        running = true;
+        consumer.addAssignmentListener(listener);
+        reconcile();
+    }
+
+    /**
+     * Stops every worker, waiting for any event currently being handled
+     * @post no partition is being consumed by this runtime
+     * @return void
+     */
+    public synchronized void stop() {
+        running = false;
+        consumer.removeAssignmentListener(listener);
+        new ArrayList<>(workers.keySet()).forEach(this::stopWorker);
+    }
+
+    /**
+     * Gets the partitions this runtime is currently consuming
+     * @return list of partitions with a running worker
+     */
+    public synchronized List<Partition<E>> getPartitions() {
+        return new ArrayList<>(workers.keySet());
+    }
+
+    private synchronized void reconcile() {
+        if (!running) {
+            return;
+        }
+        Set<Partition<E>> assigned = new HashSet<>(consumer.getPartitions());
+        new ArrayList<>(workers.keySet()).stream()
+                                        .filter(partition -> !assigned.contains(partition))
+                                        .forEach(this::stopWorker);
+        assigned.stream()
+                .filter(partition -> !workers.containsKey(partition))
+                .forEach(this::startWorker);
+    }
+
+    private void startWorker(Partition<E> partition) {
+        Thread worker = new Thread(() -> consume(partition), "consumer-" + consumer.getId() + "-" + partition.getId());
+        worker.setDaemon(true);
+        workers.put(partition, worker);
+        worker.start();
+    }
+
+    private void stopWorker(Partition<E> partition) {
+        Thread worker = workers.remove(partition);
+        worker.interrupt();
+        if (worker == Thread.currentThread()) {
+            return;
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consume(Partition<E> partition) {
+        Thread self = Thread.currentThread();
+        PrefetchBuffer<E> buffer = prefetch > 0 ? new PrefetchBuffer<>(partition, consumer, prefetch) : null;
+        try {
+            while (!self.isInterrupted()) {
+                Event<E> event = buffer != null ? buffer.poll(POLL_TIMEOUT_MS)
+                                                : partition.pollEvent(consumer, POLL_TIMEOUT_MS);
+                if (event != null) {
+                    handler.handle(event, partition);
+                } else if (!self.isInterrupted()) {
+                    handler.idle(partition);
+                }
+            }
+        } finally {
+            if (buffer != null) {
+                buffer.close();
+            }
+        }
+        handler.stopped(partition);
+    }
+}
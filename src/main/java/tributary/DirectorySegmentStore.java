@@ -0,0 +1,52 @@
+package tributary;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+public class DirectorySegmentStore implements SegmentStore {
+    private Path directory;
+
+    /**
+     * Constructor for a segment store keeping each segment as a file in a local directory
+     * @param directory path of the directory, which is created if it does not exist
+     * @return new segment store
+     */
+    public DirectorySegmentStore(String directory) {
+        this.directory = Paths.get(directory);
+        try {
+            Files.createDirectories(this.directory);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(directory + " could not be created!", e);
+        }
+    }
+
+    /**
+     * Gets the directory the segments are kept in
+     * @return path of the directory
+     */
+    public String getDirectory() {
+        return directory.toString();
+    }
+
+    @Override
+    public void put(String name, byte[] data) throws IOException {
+        // written to a temporary file first so a partly written segment is never read
+        Path temporary = directory.resolve(name + ".tmp");
+        Files.write(temporary, data);
+        Files.move(temporary, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public byte[] get(String name) throws IOException {
+        return Files.readAllBytes(directory.resolve(name));
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        Files.deleteIfExists(directory.resolve(name));
+    }
+}
@@ -1,13 +1,18 @@
 package tributary;
 
+import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
 
 public class Event<E> {
     private LocalDateTime creationDate;
     private String id;
-    private String payloadType;
-    private String source;
+    private int payloadType;
+    private int source;
     private Object value;
+    private String key;
+    private long offset = -1;
+    private volatile ByteBuffer encodedValue;
+    private PayloadStore.Payload payload;
 
     /**
      * Constructor for a new message/event
@@ -17,13 +22,73 @@ public class Event<E> {
      * @param value the payload of the message
      */
     public Event(String id, String payloadType, String source, Object value) {
+        this(id, Identifiers.intern(payloadType), Identifiers.intern(source), value, null);
+    }
+
+    /**
+     * Constructor for a new message/event with a partitioning key
+     * @param id unique identifier for event
+     * @param payloadType type of payload
+     * @param source id of producer which sent the message
+     * @param value the payload of the message
+     * @param key key that decides which partition the message is sent to, or null
+     */
+    public Event(String id, String payloadType, String source, Object value, String key) {
+        this(id, Identifiers.intern(payloadType), Identifiers.intern(source), value, key);
+    }
+
+    /**
+     * Constructor for a new message/event from interned identifiers
+     * @param id unique identifier for event
+     * @param payloadType handle of the type of payload
+     * @param source handle of the id of producer which sent the message
+     * @param value the payload of the message
+     * @param key key that decides which partition the message is sent to, or null
+     */
+    public Event(String id, int payloadType, int source, Object value, String key) {
         this.id = id;
         this.payloadType = payloadType;
         this.source = source;
         this.value = value;
+        this.key = key;
         this.creationDate = LocalDateTime.now();
     }
 
+    /**
+     * Constructor for an event restored from a snapshot. The value is kept in
+     * its encoded form and only decoded when it is first read.
+     * @param id unique identifier for event
+     * @param payloadType type of payload
+     * @param source id of producer which sent the message
+     * @param key key that decides which partition the message is sent to, or null
+     * @param creationDate date when the event was originally created
+     * @param encodedValue the payload of the message as encoded by Snapshot.encodeValue
+     */
+    public Event(String id, String payloadType, String source, String key, LocalDateTime creationDate,
+        ByteBuffer encodedValue) {
+        this(id, Identifiers.intern(payloadType), Identifiers.intern(source), key, creationDate, encodedValue);
+    }
+
+    /**
+     * Constructor for an event restored from a log from interned identifiers. The value
+     * is kept in its encoded form and only decoded when it is first read.
+     * @param id unique identifier for event
+     * @param payloadType handle of the type of payload
+     * @param source handle of the id of producer which sent the message
+     * @param key key that decides which partition the message is sent to, or null
+     * @param creationDate date when the event was originally created
+     * @param encodedValue the payload of the message as encoded by Snapshot.encodeValue
+     */
+    public Event(String id, int payloadType, int source, String key, LocalDateTime creationDate,
+        ByteBuffer encodedValue) {
+        this.id = id;
+        this.key = key;
+        this.payloadType = payloadType;
+        this.source = source;
+        this.creationDate = creationDate;
+        this.encodedValue = encodedValue;
+    }
+
     /**
      * Gets the id of the event
      * @return String corresponding to event ID
@@ -37,9 +102,30 @@ public class Event<E> {
      * @return Value of the event
      */
     public Object getValue() {
+        ByteBuffer encoded = encodedValue;
+        if (encoded != null) {
+            value = Snapshot.decodeValue(encoded.duplicate());
+            encodedValue = null;
+        }
         return value;
     }
 
+    /**
+     * Gets the encoded value of an event restored from a snapshot
+     * @return encoded value, or null if the value has already been decoded
+     */
+    public ByteBuffer getEncodedValue() {
+        return encodedValue;
+    }
+
+    /**
+     * Gets the stored payload the value of the event is shared from
+     * @return payload held in a PayloadStore, or null if the event has a value of its own
+     */
+    public PayloadStore.Payload getPayload() {
+        return payload;
+    }
+
     /**
      * Gets the date when the event was created
      * @return date when the event was created
@@ -53,6 +139,14 @@ public class Event<E> {
      * @return id of producer
      */
     public String getSource() {
+        return Identifiers.name(source);
+    }
+
+    /**
+     * Gets the interned id of the producer which produced the event
+     * @return handle of the id of the producer
+     */
+    public int getSourceHandle() {
         return source;
     }
 
@@ -61,6 +155,80 @@ public class Event<E> {
      * @return type of payload
      */
     public String getPayloadType() {
+        return Identifiers.name(payloadType);
+    }
+
+    /**
+     * Gets the interned type of the payload
+     * @return handle of the type of payload
+     */
+    public int getPayloadTypeHandle() {
         return payloadType;
     }
+
+    /**
+     * Gets the key used to choose the partition of the event
+     * @return key of the event, or null if it was not produced with a key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the position of the event in the log of the partition it was appended to
+     * @return offset of the event, or -1 if it has not been appended to a partition
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Sets the position of the event in the log of the partition it is appended to
+     * @param offset offset of the event
+     * @pre the event has not yet been appended to a partition
+     * @post the event has the given offset
+     * @return void
+     */
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * Shares the value of the event from a stored payload instead of holding a value of its own
+     * @param sharedPayload payload equal to the value of the event, taken from a PayloadStore
+     * @pre the event has not yet been appended to a partition
+     * @post the value of the event is the value of the payload
+     * @return void
+     */
+    public void setPayload(PayloadStore.Payload sharedPayload) {
+        this.payload = sharedPayload;
+        this.value = sharedPayload.getValue();
+        this.encodedValue = null;
+    }
+
+    /**
+     * Creates a copy of this event, with the same id, headers and value, to be
+     * appended to another partition at a new offset
+     * @param newOffset offset of the copy
+     * @return copy of this event with the given offset
+     */
+    public Event<E> withOffset(long newOffset) {
+        Event<E> copy = new Event<E>(id, payloadType, source, key, creationDate, encodedValue);
+        copy.value = value;
+        copy.offset = newOffset;
+        return copy;
+    }
+
+    /**
+     * Creates a copy of this event, with the same id, headers and offset, holding a different value
+     * @param newValue value of the copy, e.g. a projection of this event's value
+     * @return copy of this event with the given value
+     */
+    public Event<E> withValue(Object newValue) {
+        Event<E> copy = new Event<E>(id, payloadType, source, key, creationDate, null);
+        copy.value = newValue;
+        copy.offset = offset;
+        return copy;
+    }
+
 }
@@ -0,0 +1,178 @@
+package tributary;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * A condition on events evaluated by the partition before events are handed to
+ * a consumer. Header terms (payloadType, source and key) never read the value.
+ * A value term compares against the encoded value of an event restored from a
+ * snapshot where it can, so the value is not decoded onto the event.
+ *
+ * An expression is a list of terms joined by '&', each of the form field=value or
+ * field!=value, where field is payloadType, source, key, value or value.path for a
+ * dotted path into a JSON value, e.g. "payloadType=JSONObject&value.user.country=AU".
+ */
+public class EventFilter {
+    private static final String[] HEADERS = {"payloadType", "source", "key"};
+
+    private String expression;
+    private List<Term> terms = new ArrayList<>();
+
+    private static class Term {
+        private String field;
+        private String[] path;
+        private String expected;
+        private int expectedHandle;
+        private boolean negated;
+    }
+
+    private EventFilter(String expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * Parses a filter expression
+     * @param expression terms joined by '&'
+     * @pre every term is of the form field=value or field!=value with a known field
+     * @return filter accepting the events matching every term
+     */
+    public static EventFilter parse(String expression) {
+        EventFilter filter = new EventFilter(expression);
+        for (String text : expression.split("&")) {
+            int eq = text.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Invalid filter term: " + text);
+            }
+            Term term = new Term();
+            term.negated = text.charAt(eq - 1) == '!';
+            term.field = text.substring(0, term.negated ? eq - 1 : eq).trim();
+            term.expected = text.substring(eq + 1).trim();
+            if (term.field.equals("payloadType") || term.field.equals("source")) {
+                // compared by handle, so each event is checked with an int comparison
+                term.expectedHandle = Identifiers.intern(term.expected);
+            }
+            if (term.field.startsWith("value.")) {
+                term.path = term.field.substring("value.".length()).split("\\.");
+            } else if (!term.field.equals("value") && !List.of(HEADERS).contains(term.field)) {
+                throw new IllegalArgumentException("Unknown filter field: " + term.field);
+            }
+            filter.terms.add(term);
+        }
+        // header terms are cheapest, so they are checked before any value is read
+        filter.terms.sort((a, b) -> Boolean.compare(a.field.startsWith("value"), b.field.startsWith("value")));
+        return filter;
+    }
+
+    /**
+     * Gets the expression this filter was parsed from
+     * @return filter expression
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Checks whether an event matches this filter
+     * @param event event to check
+     * @return true if the event matches every term
+     */
+    public boolean test(Event<?> event) {
+        for (Term term : terms) {
+            if (matches(term, event) == term.negated) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(Term term, Event<?> event) {
+        switch (term.field) {
+            case "payloadType":
+                return term.expectedHandle == event.getPayloadTypeHandle();
+            case "source":
+                return term.expectedHandle == event.getSourceHandle();
+            case "key":
+                return term.expected.equals(event.getKey());
+            default:
+                break;
+        }
+        ByteBuffer encoded = event.getEncodedValue();
+        if (term.path == null && encoded != null) {
+            ByteBuffer expected = encodeExpected(term.expected, event.getPayloadType());
+            if (expected != null) {
+                return encoded.equals(expected);
+            }
+        }
+        // decode into a local copy so the event itself stays encoded
+        Object value = encoded != null ? Snapshot.decodeValue(encoded.duplicate()) : event.getValue();
+        if (term.path == null) {
+            return term.expected.equals(String.valueOf(value));
+        }
+        if (!(value instanceof JSONObject)) {
+            return false;
+        }
+        Object node = value;
+        for (String name : term.path) {
+            if (!(node instanceof JSONObject) || !((JSONObject) node).has(name)) {
+                return false;
+            }
+            node = ((JSONObject) node).get(name);
+        }
+        return term.expected.equals(String.valueOf(node));
+    }
+
+    // encodes the expected text as a value of the event's type, or returns null when no value of that
+    // type prints as exactly that text, so the caller compares the decoded value as text like it does on the heap
+    private static ByteBuffer encodeExpected(String expected, String payloadType) {
+        Object parsed;
+        try {
+            switch (payloadType) {
+                case "Integer":
+                    parsed = Integer.parseInt(expected);
+                    break;
+                case "Long":
+                    parsed = Long.parseLong(expected);
+                    break;
+                case "Double":
+                    parsed = Double.parseDouble(expected);
+                    break;
+                case "Boolean":
+                    parsed = Boolean.parseBoolean(expected);
+                    break;
+                case "String":
+                    parsed = expected;
+                    break;
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return String.valueOf(parsed).equals(expected) ? Snapshot.encodeValue(parsed) : null;
+    }
+
+    /**
+     * Creates a copy of an event holding only some of the fields of its JSON value.
+     * Events whose value is not a JSON object are returned unchanged.
+     * @param event event to project
+     * @param fields names of the top-level fields to keep
+     * @return the projected event, with the same id, headers and offset
+     */
+    public static <E> Event<E> project(Event<E> event, List<String> fields) {
+        Object value = event.getValue();
+        if (!(value instanceof JSONObject)) {
+            return event;
+        }
+        JSONObject projected = new JSONObject();
+        for (String field : fields) {
+            if (((JSONObject) value).has(field)) {
+                projected.put(field, ((JSONObject) value).get(field));
+            }
+        }
+        return event.withValue(projected);
+    }
+}
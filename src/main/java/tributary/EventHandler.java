@@ -0,0 +1,22 @@
+package tributary;
+
+public interface EventHandler {
+    public void handle(Event<?> event, Partition<?> partition);
+
+    /**
+     * Called when no event was produced to a partition within the poll timeout
+     * @param partition partition being consumed
+     * @return void
+     */
+    public default void idle(Partition<?> partition) {
+    }
+
+    /**
+     * Called by the worker of a partition after it has stopped consuming it,
+     * e.g. because the partition was revoked or the runtime was stopped
+     * @param partition partition that is no longer being consumed
+     * @return void
+     */
+    public default void stopped(Partition<?> partition) {
+    }
+}
@@ -0,0 +1,123 @@
+package tributary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Secondary indexes of the events in a partition log by source and by id. Both are
+ * updated as each event is appended and pruned as the log start moves forward, so
+ * lookups never scan the log and only return offsets of events still in it.
+ */
+public class EventIndex {
+    private Map<Integer, OffsetList> bySource = new HashMap<>();
+    private Map<String, Long> byId = new HashMap<>();
+    // ids of the indexed events in offset order, so pruning knows which ids to drop
+    private ArrayDeque<String> ids = new ArrayDeque<>();
+    private long idsStart = 0;
+
+    /**
+     * Sorted offsets of the events from one source. Pruned offsets are skipped by
+     * moving the head, and the array is compacted once most of it is pruned.
+     */
+    private static class OffsetList {
+        private long[] offsets = new long[8];
+        private int head = 0;
+        private int size = 0;
+
+        private void add(long offset) {
+            if (size == offsets.length) {
+                if (head > size / 2) {
+                    System.arraycopy(offsets, head, offsets, 0, size - head);
+                    size -= head;
+                    head = 0;
+                } else {
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                }
+            }
+            offsets[size++] = offset;
+        }
+
+        private int firstAtOrAfter(long offset) {
+            int index = Arrays.binarySearch(offsets, head, size, offset);
+            return index >= 0 ? index : -index - 1;
+        }
+
+        private boolean isEmpty() {
+            return head == size;
+        }
+    }
+
+    /**
+     * Adds an event to the indexes
+     * @param event event just appended to the log
+     * @pre the event's offset is one past the last indexed event, if any
+     * @return void
+     */
+    public void add(Event<?> event) {
+        if (ids.isEmpty()) {
+            idsStart = event.getOffset();
+        }
+        ids.addLast(event.getId());
+        byId.put(event.getId(), event.getOffset());
+        bySource.computeIfAbsent(event.getSourceHandle(), source -> new OffsetList()).add(event.getOffset());
+    }
+
+    /**
+     * Drops the events before an offset from the indexes
+     * @param offset new log start offset
+     * @post no lookup returns an offset before offset
+     * @return void
+     */
+    public void pruneBefore(long offset) {
+        while (!ids.isEmpty() && idsStart < offset) {
+            // a later event with the same id replaces the earlier one, so only drop our own entry
+            byId.remove(ids.removeFirst(), idsStart);
+            idsStart++;
+        }
+        bySource.values().forEach(list -> list.head = list.firstAtOrAfter(offset));
+        bySource.values().removeIf(OffsetList::isEmpty);
+    }
+
+    /**
+     * Removes every event from the indexes
+     * @return void
+     */
+    public void clear() {
+        bySource.clear();
+        byId.clear();
+        ids.clear();
+    }
+
+    /**
+     * Gets the offsets of the events from a source
+     * @param sourceHandle interned id of the producer
+     * @param fromOffset offset of the first event of interest
+     * @param maxOffsets maximum number of offsets to get
+     * @return offsets at or after fromOffset of events from the source, in order
+     */
+    public List<Long> offsetsBySource(int sourceHandle, long fromOffset, int maxOffsets) {
+        OffsetList list = bySource.get(sourceHandle);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        List<Long> offsets = new ArrayList<>();
+        for (int i = list.firstAtOrAfter(fromOffset); i < list.size && offsets.size() < maxOffsets; i++) {
+            offsets.add(list.offsets[i]);
+        }
+        return offsets;
+    }
+
+    /**
+     * Gets the offset of the event with an id
+     * @param eventId id of the event
+     * @return offset of the latest event with the id, or -1 if there is none
+     */
+    public long offsetOfId(String eventId) {
+        return byId.getOrDefault(eventId, -1L);
+    }
+}
@@ -0,0 +1,50 @@
+package tributary;
+
+public interface EventLog<E> {
+    /**
+     * Appends an event at the end of the log
+     * @param event event whose offset is the end offset of the log
+     * @return void
+     */
+    public void append(Event<E> event);
+
+    /**
+     * Gets the event at an offset
+     * @param offset offset between the start and end offsets of the log
+     * @return the event at the offset
+     */
+    public Event<E> get(long offset);
+
+    /**
+     * Gets the offset of the first event held
+     * @return start offset
+     */
+    public long getStartOffset();
+
+    /**
+     * Discards the events before an offset. Implementations may keep some of them
+     * if they discard events in blocks.
+     * @param offset offset of the first event that must be kept
+     * @return the new start offset, at most offset
+     */
+    public long truncateBefore(long offset);
+
+    /**
+     * Discards every event and starts the log again at an offset
+     * @param startOffset offset of the next event appended
+     * @return void
+     */
+    public void reset(long startOffset);
+
+    /**
+     * Gets the number of bytes the log holds outside the Java heap
+     * @return off-heap bytes allocated
+     */
+    public long getOffHeapBytes();
+
+    /**
+     * Gets the number of bytes of events the log holds in memory, on or off the heap
+     * @return bytes held, estimated for events on the heap
+     */
+    public long getHeldBytes();
+}
@@ -0,0 +1,326 @@
+package tributary;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+
+/**
+ * An embedded stream processor reading one topic and writing another. Operators are
+ * added in order and run separately for each source partition, on the workers of a
+ * consumer group named after the application, so partitions are processed in parallel
+ * and follow the group through rebalances. Window state is held per partition and is
+ * discarded when a partition is revoked.
+ */
+public class EventStream {
+    private static final long LINGER_MS = 100;
+
+    private Tributary tributary;
+    private String applicationId;
+    private Topic<?> source;
+    private Topic<?> sink;
+    private int batchSize;
+    private List<Supplier<Operator>> operators = new ArrayList<>();
+    private List<ConsumerRuntime<?>> runtimes = new ArrayList<>();
+    private LongAdder processed;
+    private LongAdder emitted;
+
+    private interface Downstream {
+        void emit(StreamRecord record);
+    }
+
+    private interface Operator {
+        void process(StreamRecord record, Downstream downstream);
+
+        default void advance(long watermark, Downstream downstream) {
+        }
+    }
+
+    /**
+     * Constructor for an event stream
+     * @param tributary system the stream runs in
+     * @param applicationId unique identifier of the stream, used as the id of its consumer group
+     * @param source topic the stream reads from
+     * @pre there is a consumer group with id applicationId on the source topic
+     * @return new event stream without operators
+     */
+    public EventStream(Tributary tributary, String applicationId, Topic<?> source) {
+        this.tributary = tributary;
+        this.applicationId = applicationId;
+        this.source = source;
+        this.processed = tributary.getMetrics().counter("stream." + applicationId + ".processed");
+        this.emitted = tributary.getMetrics().counter("stream." + applicationId + ".emitted");
+    }
+
+    /**
+     * Adds an operator replacing the value of each record
+     * @param mapper function from a value to its replacement
+     * @return this stream
+     */
+    public EventStream map(Function<Object, Object> mapper) {
+        operators.add(() -> (record, out) ->
+            out.emit(new StreamRecord(record.getKey(), mapper.apply(record.getValue()), record.getTimestamp())));
+        return this;
+    }
+
+    /**
+     * Adds an operator dropping the records whose value does not match a condition
+     * @param condition condition the value of a record must match to be kept
+     * @return this stream
+     */
+    public EventStream filter(Predicate<Object> condition) {
+        operators.add(() -> (record, out) -> {
+            if (condition.test(record.getValue())) {
+                out.emit(record);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Adds an operator replacing each record with zero or more records
+     * @param mapper function from a value to the values replacing it, in order
+     * @return this stream
+     */
+    public EventStream flatMap(Function<Object, List<Object>> mapper) {
+        operators.add(() -> (record, out) -> mapper.apply(record.getValue()).forEach(value ->
+            out.emit(new StreamRecord(record.getKey(), value, record.getTimestamp()))));
+        return this;
+    }
+
+    /**
+     * Adds an operator replacing the key of each record
+     * @param selector function from a value to its new key
+     * @return this stream
+     */
+    public EventStream selectKey(Function<Object, String> selector) {
+        operators.add(() -> (record, out) ->
+            out.emit(new StreamRecord(selector.apply(record.getValue()), record.getValue(), record.getTimestamp())));
+        return this;
+    }
+
+    /**
+     * Adds an operator aggregating the values of each key over time windows. Windows are
+     * tumbling if advanceMillis equals sizeMillis and sliding (hopping) if it is smaller.
+     * Aggregates are updated as each record arrives, and a window is emitted once the event
+     * time of the partition has passed its end, as a JSON object with the fields key, start,
+     * end and value. Records arriving after their windows were emitted are dropped.
+     * @param sizeMillis length of each window
+     * @param advanceMillis time between the starts of consecutive windows
+     * @param initial supplies the aggregate of a key before its first value
+     * @param aggregator combines an aggregate with the next value
+     * @pre 0 < advanceMillis <= sizeMillis
+     * @return this stream
+     */
+    public <A> EventStream aggregate(long sizeMillis, long advanceMillis, Supplier<A> initial,
+        BiFunction<A, Object, A> aggregator) {
+        if (advanceMillis <= 0 || advanceMillis > sizeMillis) {
+            throw new IllegalArgumentException("Window advance must be positive and at most the window size");
+        }
+        operators.add(() -> new WindowOperator<>(sizeMillis, advanceMillis, initial, aggregator));
+        return this;
+    }
+
+    /**
+     * Sets the topic the records leaving the last operator are written to. Records with a key
+     * are written to the partition their key maps to, and the rest to the partition with the
+     * same index as their source partition.
+     * @param topicId unique identifier of the sink topic
+     * @param batchSize number of records written together
+     * @pre there is a topic with id topicId with at least one partition
+     * @return this stream
+     */
+    public EventStream to(String topicId, int batchSize) {
+        this.sink = tributary.getTopic(topicId);
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Starts processing with a number of consumers in the stream's consumer group
+     * @param parallelism number of consumers to create
+     * @pre the sink has been set. no consumer ids of the form applicationId-n exist.
+     * @post the partitions of the source topic are being processed by the new consumers
+     * @return void
+     */
+    public synchronized void start(int parallelism) {
+        if (sink == null) {
+            throw new IllegalStateException("Stream " + applicationId + " has no sink");
+        }
+        for (int i = 0; i < parallelism; i++) {
+            Consumer<?> consumer = tributary.createConsumer(applicationId, applicationId + "-" + runtimes.size());
+            ConsumerRuntime<?> runtime = new ConsumerRuntime<>(consumer, new StreamHandler());
+            runtimes.add(runtime);
+            runtime.start();
+        }
+    }
+
+    /**
+     * Stops processing, writing out any buffered records
+     * @post no partition is being processed by this stream
+     * @return void
+     */
+    public synchronized void stop() {
+        runtimes.forEach(ConsumerRuntime::stop);
+    }
+
+    private class StreamHandler implements EventHandler {
+        // each task is only used by the worker of its partition
+        private Map<Partition<?>, Task> tasks = new ConcurrentHashMap<>();
+
+        @Override
+        public void handle(Event<?> event, Partition<?> partition) {
+            tasks.computeIfAbsent(partition, Task::new).process(event);
+        }
+
+        @Override
+        public void idle(Partition<?> partition) {
+            Task task = tasks.get(partition);
+            if (task != null) {
+                task.idle();
+            }
+        }
+
+        @Override
+        public void stopped(Partition<?> partition) {
+            Task task = tasks.remove(partition);
+            if (task != null) {
+                task.flush();
+            }
+        }
+    }
+
+    private class Task {
+        private List<Operator> chain = new ArrayList<>();
+        private int sourceIndex;
+        private long watermark = Long.MIN_VALUE;
+        private List<StreamRecord> buffer = new ArrayList<>();
+        private long lastFlush = System.currentTimeMillis();
+
+        Task(Partition<?> partition) {
+            operators.forEach(operator -> chain.add(operator.get()));
+            sourceIndex = source.getPartitions().indexOf(partition);
+        }
+
+        void process(Event<?> event) {
+            long timestamp = event.getCreationDate().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            emit(0, new StreamRecord(event.getKey(), event.getValue(), timestamp));
+            advance(timestamp);
+            processed.increment();
+            if (buffer.size() >= batchSize || System.currentTimeMillis() - lastFlush >= LINGER_MS) {
+                flush();
+            }
+        }
+
+        void idle() {
+            // no event arrived within the poll timeout, so event time has moved on
+            advance(System.currentTimeMillis() - LINGER_MS);
+            flush();
+        }
+
+        private void advance(long time) {
+            if (time <= watermark) {
+                return;
+            }
+            watermark = time;
+            for (int i = 0; i < chain.size(); i++) {
+                int next = i + 1;
+                chain.get(i).advance(watermark, record -> emit(next, record));
+            }
+        }
+
+        private void emit(int stage, StreamRecord record) {
+            if (stage == chain.size()) {
+                buffer.add(record);
+                return;
+            }
+            chain.get(stage).process(record, out -> emit(stage + 1, out));
+        }
+
+        void flush() {
+            lastFlush = System.currentTimeMillis();
+            if (buffer.isEmpty()) {
+                return;
+            }
+            List<String> keys = new ArrayList<>();
+            List<Object> keyedValues = new ArrayList<>();
+            List<Object> values = new ArrayList<>();
+            for (StreamRecord record : buffer) {
+                if (record.getKey() != null) {
+                    keys.add(record.getKey());
+                    keyedValues.add(record.getValue());
+                } else {
+                    values.add(record.getValue());
+                }
+            }
+            if (!keys.isEmpty()) {
+                sink.addKeyedValues(applicationId, keys, keyedValues);
+            }
+            if (!values.isEmpty()) {
+                List<? extends Partition<?>> sinkPartitions = sink.getPartitions();
+                String partitionId = sinkPartitions.get(Math.floorMod(sourceIndex, sinkPartitions.size())).getId();
+                sink.addValues(applicationId, values, partitionId);
+            }
+            emitted.add(buffer.size());
+            buffer = new ArrayList<>();
+        }
+    }
+
+    private static class WindowOperator<A> implements Operator {
+        private long size;
+        private long advance;
+        private Supplier<A> initial;
+        private BiFunction<A, Object, A> aggregator;
+        // open windows by start time, each holding the aggregate of every key seen in it
+        private TreeMap<Long, Map<String, A>> windows = new TreeMap<>();
+        private long watermark = Long.MIN_VALUE;
+
+        WindowOperator(long size, long advance, Supplier<A> initial, BiFunction<A, Object, A> aggregator) {
+            this.size = size;
+            this.advance = advance;
+            this.initial = initial;
+            this.aggregator = aggregator;
+        }
+
+        @Override
+        public void process(StreamRecord record, Downstream out) {
+            long time = record.getTimestamp();
+            for (long start = time - Math.floorMod(time, advance); start > time - size; start -= advance) {
+                if (start + size <= watermark) {
+                    // this window and every earlier one has already been emitted
+                    break;
+                }
+                windows.computeIfAbsent(start, s -> new HashMap<>())
+                       .compute(record.getKey(), (key, aggregate) ->
+                           aggregator.apply(aggregate == null ? initial.get() : aggregate, record.getValue()));
+            }
+        }
+
+        @Override
+        public void advance(long time, Downstream out) {
+            watermark = Math.max(watermark, time);
+            while (!windows.isEmpty() && windows.firstKey() + size <= watermark) {
+                Map.Entry<Long, Map<String, A>> window = windows.pollFirstEntry();
+                long start = window.getKey();
+                window.getValue().forEach((key, aggregate) -> {
+                    JSONObject result = new JSONObject();
+                    result.put("key", key == null ? JSONObject.NULL : key);
+                    result.put("start", start);
+                    result.put("end", start + size);
+                    result.put("value", aggregate);
+                    out.emit(new StreamRecord(key, result, start + size - 1));
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package tributary;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class GroupCoordinator {
+    private static final int WHEEL_SIZE = 512;
+
+    private Tributary tributary;
+    private long defaultSessionTimeoutMillis;
+    private Map<String, Member> members = new ConcurrentHashMap<>();
+    private TimerWheel wheel;
+
+    private static class Member {
+        private String consumerId;
+        private long sessionTimeoutMillis;
+        private volatile long lastHeartbeat;
+    }
+
+    /**
+     * Constructor for a coordinator that evicts consumers which stop sending heartbeats
+     * @param tributary system whose consumers are monitored
+     * @param defaultSessionTimeoutMillis time without a heartbeat after which a consumer is evicted
+     * @return new group coordinator
+     */
+    public GroupCoordinator(Tributary tributary, long defaultSessionTimeoutMillis) {
+        this.tributary = tributary;
+        this.defaultSessionTimeoutMillis = defaultSessionTimeoutMillis;
+        long tickMillis = Math.min(100, Math.max(10, defaultSessionTimeoutMillis / 10));
+        this.wheel = new TimerWheel("group-coordinator", tickMillis, WHEEL_SIZE);
+    }
+
+    /**
+     * Starts monitoring a consumer with the default session timeout
+     * @param consumerId unique identifier of the consumer
+     * @post the consumer is evicted if it goes longer than the session timeout without a heartbeat
+     * @return void
+     */
+    public void register(String consumerId) {
+        register(consumerId, defaultSessionTimeoutMillis);
+    }
+
+    /**
+     * Starts monitoring a consumer with its own session timeout. Only one timeout
+     * per consumer is ever pending on the shared timer wheel: heartbeats just
+     * record the time, and when the timeout fires it is rescheduled if a
+     * heartbeat arrived in the meantime.
+     * @param consumerId unique identifier of the consumer
+     * @param sessionTimeoutMillis time without a heartbeat after which the consumer is evicted
+     * @post the consumer is evicted if it goes longer than sessionTimeoutMillis without a heartbeat
+     * @return void
+     */
+    public void register(String consumerId, long sessionTimeoutMillis) {
+        Member member = new Member();
+        member.consumerId = consumerId;
+        member.sessionTimeoutMillis = sessionTimeoutMillis;
+        member.lastHeartbeat = System.currentTimeMillis();
+        members.put(consumerId, member);
+        wheel.schedule(() -> check(member), sessionTimeoutMillis);
+    }
+
+    /**
+     * Records a heartbeat from a consumer
+     * @param consumerId unique identifier of the consumer
+     * @return whether the consumer is still a live member; false if it has been evicted or was never registered
+     */
+    public boolean heartbeat(String consumerId) {
+        Member member = members.get(consumerId);
+        if (member == null) {
+            return false;
+        }
+        member.lastHeartbeat = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Stops monitoring a consumer, e.g. because it left its group
+     * @param consumerId unique identifier of the consumer
+     * @post the consumer will not be evicted by this coordinator
+     * @return void
+     */
+    public void unregister(String consumerId) {
+        members.remove(consumerId);
+    }
+
+    /**
+     * Stops the coordinator's timer wheel
+     * @post no consumer will be evicted by this coordinator
+     * @return void
+     */
+    public void stop() {
+        wheel.stop();
+    }
+
+    private void check(Member member) {
+        if (members.get(member.consumerId) != member) {
+            return;
+        }
+        long expiry = member.lastHeartbeat + member.sessionTimeoutMillis;
+        long now = System.currentTimeMillis();
+        if (expiry > now) {
+            wheel.schedule(() -> check(member), expiry - now);
+            return;
+        }
+        members.remove(member.consumerId);
+        tributary.evictConsumer(member.consumerId);
+    }
+}
@@ -0,0 +1,66 @@
+package tributary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class HeapEventLog<E> implements EventLog<E> {
+    private List<Event<E>> events = new ArrayList<>();
+    private long startOffset = 0;
+    // estimated size of each event when it was appended, so exactly that much is released later
+    private int[] sizes = new int[16];
+    private long heldBytes = 0;
+
+    @Override
+    public void append(Event<E> event) {
+        int index = events.size();
+        if (index == sizes.length) {
+            sizes = Arrays.copyOf(sizes, index * 2);
+        }
+        sizes[index] = (int) Math.min(Integer.MAX_VALUE, MemoryAccountant.sizeOf(event));
+        heldBytes += sizes[index];
+        events.add(event);
+    }
+
+    @Override
+    public Event<E> get(long offset) {
+        return events.get((int) (offset - startOffset));
+    }
+
+    @Override
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    @Override
+    public long truncateBefore(long offset) {
+        if (offset > startOffset) {
+            int discarded = (int) (offset - startOffset);
+            for (int i = 0; i < discarded; i++) {
+                heldBytes -= sizes[i];
+            }
+            System.arraycopy(sizes, discarded, sizes, 0, events.size() - discarded);
+            events.subList(0, discarded).clear();
+            startOffset = offset;
+        }
+        return startOffset;
+    }
+
+    @Override
+    public void reset(long startOffset) {
+        events = new ArrayList<>();
+        sizes = new int[16];
+        heldBytes = 0;
+        this.startOffset = startOffset;
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return 0;
+    }
+
+    @Override
+    public long getHeldBytes() {
+        return heldBytes;
+    }
+}
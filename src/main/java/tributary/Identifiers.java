@@ -0,0 +1,92 @@
+package tributary;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns identifiers (topic, partition, group, consumer and producer ids, and payload
+ * type names) into small integer handles. Each distinct identifier is given a handle
+ * once, when it is registered, so events can hold handles instead of strings and
+ * entities can be found by comparing ints. Handles are never given up, and events
+ * resolve them without knowing their broker, so one registry serves every broker in
+ * the JVM. Only ids of entities that have been created may be interned; ids that
+ * arrive from outside, e.g. over the network, are checked with lookup or against the
+ * registered entities first.
+ */
+public class Identifiers {
+    /** Handle standing for a missing (null) identifier */
+    public static final int NONE = -1;
+
+    private static final Map<String, Integer> HANDLES = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[256];
+    private static int count = 0;
+
+    private static final ClassValue<Integer> TYPE_HANDLES = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            return intern(type.getSimpleName());
+        }
+    };
+
+    private Identifiers() {
+    }
+
+    /**
+     * Gets the handle of an identifier, giving it one if it has none yet
+     * @param name identifier
+     * @return handle of the identifier, or NONE if name is null
+     */
+    public static int intern(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        Integer handle = HANDLES.get(name);
+        if (handle != null) {
+            return handle;
+        }
+        synchronized (Identifiers.class) {
+            handle = HANDLES.get(name);
+            if (handle == null) {
+                if (count == names.length) {
+                    names = Arrays.copyOf(names, count * 2);
+                }
+                names[count] = name;
+                handle = count++;
+                HANDLES.put(name, handle);
+            }
+            return handle;
+        }
+    }
+
+    /**
+     * Gets the handle of an identifier without registering it
+     * @param name identifier
+     * @return handle of the identifier, or NONE if it is null or has never been interned
+     */
+    public static int lookup(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        Integer handle = HANDLES.get(name);
+        return handle == null ? NONE : handle;
+    }
+
+    /**
+     * Gets the identifier a handle stands for
+     * @param handle handle returned by intern
+     * @return the interned identifier, or null for NONE
+     */
+    public static String name(int handle) {
+        return handle == NONE ? null : names[handle];
+    }
+
+    /**
+     * Gets the handle of the type name of a value. The name is derived once per class.
+     * @param value value of an event
+     * @return handle of the simple name of the value's class
+     */
+    public static int typeOf(Object value) {
+        return TYPE_HANDLES.get(value.getClass());
+    }
+}
@@ -0,0 +1,50 @@
+package tributary;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class LoopbackTransport implements ReplicationTransport {
+    private Map<String, ReplicaManager> nodes = new ConcurrentHashMap<>();
+    private Set<String> disconnected = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Registers a node so that other nodes in the same JVM can fetch from it
+     * @param manager replica manager of the node
+     * @post fetches addressed to the node's id are handled by the manager
+     * @return void
+     */
+    public void register(ReplicaManager manager) {
+        nodes.put(manager.getNodeId(), manager);
+    }
+
+    /**
+     * Simulates losing the network connection to a node
+     * @param nodeId unique identifier of the node
+     * @post every fetch to or from the node fails until it is reconnected
+     * @return void
+     */
+    public void disconnect(String nodeId) {
+        disconnected.add(nodeId);
+    }
+
+    /**
+     * Restores the network connection to a node
+     * @param nodeId unique identifier of the node
+     * @post fetches to and from the node succeed again
+     * @return void
+     */
+    public void reconnect(String nodeId) {
+        disconnected.remove(nodeId);
+    }
+
+    @Override
+    public List<Event<?>> fetch(String leaderId, String followerId, String topicId, String partitionId,
+        long fromOffset, int maxEvents) {
+        if (disconnected.contains(leaderId) || disconnected.contains(followerId) || !nodes.containsKey(leaderId)) {
+            throw new IllegalStateException("Node " + leaderId + " is unreachable from " + followerId);
+        }
+        return nodes.get(leaderId).handleFetch(followerId, topicId, partitionId, fromOffset, maxEvents);
+    }
+}
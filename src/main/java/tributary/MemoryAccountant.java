@@ -0,0 +1,169 @@
+package tributary;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accounts for the bytes of events held in memory by every partition and producer buffer,
+ * and applies backpressure to producers as the total nears its limits. Below the low
+ * watermark producers are not held back. Above it, events that have already been consumed
+ * are first discarded from the partition logs, so they can no longer be played back; if
+ * usage is still between the watermarks each produce is delayed, by more the closer usage
+ * is to the high watermark, and at or above the high watermark produces are rejected until
+ * consumers, retention or tiering bring usage back down.
+ * Usage is reported as the metrics memory.used.bytes and memory.[account].bytes.
+ */
+public class MemoryAccountant {
+    /** Delay given to a produce just below the high watermark */
+    public static final long MAX_DELAY_MILLIS = 100;
+
+    private Metrics metrics;
+    private AtomicLong used = new AtomicLong();
+    private Map<String, AtomicLong> accounts = new ConcurrentHashMap<>();
+    private volatile long lowWatermark = Long.MAX_VALUE;
+    private volatile long highWatermark = Long.MAX_VALUE;
+    private LongAdder delayed;
+    private LongAdder delayMillis;
+    private LongAdder rejected;
+    private volatile Runnable reclaimer;
+
+    /**
+     * Constructor for a memory accountant
+     * @param metrics registry that memory usage is reported to
+     * @return new memory accountant without any limits
+     */
+    public MemoryAccountant(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge("memory.used.bytes", used::get);
+        metrics.gauge("memory.low.watermark", () -> lowWatermark);
+        metrics.gauge("memory.high.watermark", () -> highWatermark);
+        delayed = metrics.counter("memory.delayed");
+        delayMillis = metrics.counter("memory.delay.ms");
+        rejected = metrics.counter("memory.rejected");
+    }
+
+    /**
+     * Sets the usage at which producers start to be delayed and at which they are rejected
+     * @param lowWatermark bytes in use above which produces are delayed
+     * @param highWatermark bytes in use at or above which produces are rejected
+     * @pre 0 < lowWatermark <= highWatermark
+     * @post later produces are held back according to the new watermarks
+     * @return void
+     */
+    public void setWatermarks(long lowWatermark, long highWatermark) {
+        if (lowWatermark <= 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException("Watermarks must be positive with the low one at most the high one");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Sets what is run to free memory when a produce is admitted above the low watermark
+     * @param reclaimer frees what memory it can, e.g. by discarding consumed events
+     * @return void
+     */
+    public void setReclaimer(Runnable reclaimer) {
+        this.reclaimer = reclaimer;
+    }
+
+    /**
+     * Records a change in the bytes held by an account, e.g. a topic's partitions
+     * @param account name of the account
+     * @param bytes number of bytes now held in addition, or negative if released
+     * @return void
+     */
+    public void add(String account, long bytes) {
+        accounts.computeIfAbsent(account, name -> {
+            AtomicLong held = new AtomicLong();
+            metrics.gauge("memory." + name + ".bytes", held::get);
+            return held;
+        }).addAndGet(bytes);
+        used.addAndGet(bytes);
+    }
+
+    /**
+     * Releases every account whose name starts with a prefix, e.g. when their topics are discarded
+     * @param prefix start of the names of the accounts
+     * @post the accounts no longer count towards usage
+     * @return void
+     */
+    public void remove(String prefix) {
+        accounts.keySet().removeIf(name -> {
+            if (!name.startsWith(prefix)) {
+                return false;
+            }
+            used.addAndGet(-accounts.get(name).get());
+            metrics.remove("memory." + name + ".bytes");
+            return true;
+        });
+    }
+
+    /**
+     * Gets the total number of bytes held
+     * @return bytes held across every account
+     */
+    public long getUsedBytes() {
+        return used.get();
+    }
+
+    /**
+     * Gets the number of bytes held by an account
+     * @param account name of the account
+     * @return bytes held, or 0 if nothing has been recorded for the account
+     */
+    public long getBytes(String account) {
+        AtomicLong held = accounts.get(account);
+        return held == null ? 0 : held.get();
+    }
+
+    /**
+     * Admits a produce, working out how long the producer should be held back first
+     * @return milliseconds the producer should wait before producing, or 0
+     * @throws IllegalStateException if usage is at or above the high watermark
+     */
+    public long admit() {
+        Runnable reclaim = reclaimer;
+        if (reclaim != null && used.get() > lowWatermark) {
+            reclaim.run();
+        }
+        long usage = used.get();
+        long low = lowWatermark;
+        long high = highWatermark;
+        if (usage >= high) {
+            rejected.increment();
+            throw new IllegalStateException("Memory in use (" + usage + " bytes) is over the high watermark of "
+                + high + " bytes, so the produce was rejected");
+        }
+        if (usage <= low) {
+            return 0;
+        }
+        // grows linearly from 1ms just above the low watermark to MAX_DELAY_MILLIS at the high one
+        long delay = Math.max(1, MAX_DELAY_MILLIS * (usage - low) / (high - low));
+        delayed.increment();
+        delayMillis.add(delay);
+        return delay;
+    }
+
+    /**
+     * Works out roughly how many heap bytes an event takes up
+     * @param event event held on the heap
+     * @return estimated size of the event, its id, key and payload in bytes
+     */
+    public static long sizeOf(Event<?> event) {
+        long size = 64 + 2L * event.getId().length();
+        if (event.getKey() != null) {
+            size += 40 + 2L * event.getKey().length();
+        }
+        if (event.getPayload() != null) {
+            // a shared payload is accounted for once by the payload store
+            return size + 8;
+        }
+        // restored events keep their encoded value until it is first read
+        ByteBuffer encoded = event.getEncodedValue();
+        return size + (encoded != null ? encoded.capacity() : QuotaManager.sizeOf(event.getValue()));
+    }
+}
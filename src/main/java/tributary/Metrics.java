@@ -0,0 +1,122 @@
+package tributary;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMXBean {
+    private Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private ObjectName exportedName;
+
+    /**
+     * Gets the counter with the specified name, creating it if it does not exist.
+     * Counters are striped, so incrementing them from many threads does not contend.
+     * @param name unique name of the counter
+     * @return counter with the specified name
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Gets the histogram with the specified name, creating it if it does not exist
+     * @param name unique name of the histogram
+     * @return histogram with the specified name
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers a gauge whose value is read whenever a snapshot is taken
+     * @param name unique name of the gauge
+     * @param supplier function returning the current value of the gauge
+     * @post the gauge is included in every later snapshot
+     * @return void
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Removes every metric whose name starts with the given prefix
+     * @param prefix prefix of the metric names to be removed
+     * @post no metric with a name starting with prefix exists in this registry
+     * @return void
+     */
+    public void remove(String prefix) {
+        counters.keySet().removeIf(name -> name.startsWith(prefix));
+        histograms.keySet().removeIf(name -> name.startsWith(prefix));
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * Takes a snapshot of every metric in the registry. Histograms are
+     * summarised as count, mean, p50, p99, p999 and max entries.
+     * @return snapshot of every metric, sorted by name
+     */
+    public MetricsSnapshot snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean", histogram.getMean());
+            values.put(name + ".p50", histogram.getPercentile(50));
+            values.put(name + ".p99", histogram.getPercentile(99));
+            values.put(name + ".p999", histogram.getPercentile(99.9));
+            values.put(name + ".max", histogram.getMax());
+        });
+        return new MetricsSnapshot(System.nanoTime(), values);
+    }
+
+    /**
+     * Gets the current value of every metric, for JMX clients
+     * @return map of metric names to values
+     */
+    @Override
+    public Map<String, Long> getValues() {
+        return snapshot().getValues();
+    }
+
+    /**
+     * Exports this registry as an MXBean on the platform MBean server
+     * @param name name to register the MXBean under
+     * @pre no registry is already exported with the same name
+     * @post the registry is visible to JMX clients as tributary:type=Metrics,name=name
+     * @return void
+     */
+    public synchronized void export(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            exportedName = new ObjectName("tributary:type=Metrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, exportedName);
+        } catch (Exception e) {
+            throw new IllegalStateException("Metrics could not be exported as " + name, e);
+        }
+    }
+
+    /**
+     * Removes this registry from the platform MBean server if it was exported
+     * @post the registry is no longer visible to JMX clients
+     * @return void
+     */
+    public synchronized void unexport() {
+        if (exportedName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(exportedName);
+        } catch (Exception e) {
+        }
+        exportedName = null;
+    }
+}
@@ -0,0 +1,7 @@
+package tributary;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+    public Map<String, Long> getValues();
+}
@@ -0,0 +1,68 @@
+package tributary;
+
+import java.util.Collections;
+import java.util.Map;
+
+public class MetricsSnapshot {
+    private long timestamp;
+    private Map<String, Long> values;
+
+    /**
+     * Constructor for a point-in-time copy of every metric in a registry
+     * @param timestamp value of System.nanoTime() when the snapshot was taken
+     * @param values metric values keyed by metric name
+     * @return new snapshot
+     */
+    public MetricsSnapshot(long timestamp, Map<String, Long> values) {
+        this.timestamp = timestamp;
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Gets the time the snapshot was taken
+     * @return value of System.nanoTime() when the snapshot was taken
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets every metric in the snapshot
+     * @return read-only map of metric names to values, sorted by name
+     */
+    public Map<String, Long> getValues() {
+        return values;
+    }
+
+    /**
+     * Gets the value of a single metric
+     * @param name name of the metric
+     * @return value of the metric, or 0 if the metric does not exist
+     */
+    public long get(String name) {
+        return values.getOrDefault(name, 0L);
+    }
+
+    /**
+     * Calculates the per-second rate of a counter between an earlier snapshot and this one
+     * @param name name of the counter
+     * @param earlier snapshot taken before this one
+     * @pre earlier was taken from the same registry before this snapshot
+     * @return change in the counter per second, or 0 if no time has passed
+     */
+    public double ratePerSecond(String name, MetricsSnapshot earlier) {
+        long elapsed = timestamp - earlier.getTimestamp();
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (get(name) - earlier.get(name)) * 1_000_000_000.0 / elapsed;
+    }
+
+    /**
+     * Displays every metric in the snapshot
+     * @return void
+     */
+    public void display() {
+        values.forEach((name, value) -> System.out.println(name + ": " + value));
+    }
+}
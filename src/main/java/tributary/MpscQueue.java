@@ -0,0 +1,68 @@
+package tributary;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded lock-free queue for many producer threads and a single consumer thread.
+ * Producers swap themselves in as the tail with one atomic exchange and then link the
+ * previous tail to their node; the consumer follows the links from the head without any
+ * atomic operation at all.
+ */
+public class MpscQueue<T> {
+    private static class Node<T> {
+        private T value;
+        private volatile Node<T> next;
+
+        Node(T value) {
+            this.value = value;
+        }
+    }
+
+    private AtomicReference<Node<T>> tail;
+    // only read and written by the consumer thread
+    private Node<T> head;
+
+    /**
+     * Constructor for an empty queue
+     * @return new queue
+     */
+    public MpscQueue() {
+        head = new Node<>(null);
+        tail = new AtomicReference<>(head);
+    }
+
+    /**
+     * Adds a value at the tail of the queue. Can be called from any thread.
+     * @param value value to be added
+     * @pre value is not null
+     * @return void
+     */
+    public void offer(T value) {
+        Node<T> node = new Node<>(value);
+        tail.getAndSet(node).next = node;
+    }
+
+    /**
+     * Removes the value at the head of the queue. Must only be called from the consumer thread.
+     * @return the value, or null if the queue is empty or the next value is not linked in yet
+     */
+    public T poll() {
+        Node<T> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        T value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Checks whether any value has been offered and not yet polled. Must only be called
+     * from the consumer thread.
+     * @return true if the queue is empty
+     */
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+}
@@ -0,0 +1,227 @@
+package tributary;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An event log keeping the encoded events in direct buffers outside the Java heap.
+ * Events are appended to fixed size segments, with their payload type and source as
+ * interned handles; only the position of each event in its segment is kept on the heap. Reading an event decodes its headers and copies
+ * its encoded value onto the heap, so events read never refer to off-heap memory and
+ * a segment can be freed as soon as it is truncated.
+ */
+public class OffHeapEventLog<E> implements EventLog<E> {
+    /** Default number of bytes in each segment */
+    public static final int SEGMENT_BYTES = 1 << 20;
+
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // segments are then freed by the garbage collector instead
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private static class Segment {
+        private ByteBuffer buffer;
+        private long baseOffset;
+        private int[] positions = new int[256];
+        private int count = 0;
+
+        Segment(long baseOffset, int size) {
+            this.baseOffset = baseOffset;
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    private int segmentBytes;
+    private List<Segment> segments = new ArrayList<>();
+    private long startOffset = 0;
+    private long nextOffset = 0;
+    private long offHeapBytes = 0;
+
+    /**
+     * Constructor for an off-heap log with segments of the default size
+     * @return new empty log
+     */
+    public OffHeapEventLog() {
+        this(SEGMENT_BYTES);
+    }
+
+    /**
+     * Constructor for an off-heap log
+     * @param segmentBytes number of bytes in each segment. larger events get a segment of their own.
+     * @return new empty log
+     */
+    public OffHeapEventLog(int segmentBytes) {
+        this.segmentBytes = segmentBytes;
+    }
+
+    @Override
+    public void append(Event<E> event) {
+        byte[] id = bytesOf(event.getId());
+        byte[] key = bytesOf(event.getKey());
+        ByteBuffer value = event.getEncodedValue();
+        if (value == null) {
+            value = Snapshot.encodeValue(event.getValue());
+        }
+        value = value.duplicate();
+        int size = 20 + sizeOf(id) + sizeOf(key) + 4 + value.remaining();
+
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.buffer.remaining() < size) {
+            segment = new Segment(nextOffset, Math.max(segmentBytes, size));
+            segments.add(segment);
+            offHeapBytes += segment.buffer.capacity();
+        }
+        if (segment.count == segment.positions.length) {
+            segment.positions = Arrays.copyOf(segment.positions, segment.count * 2);
+        }
+        ByteBuffer out = segment.buffer;
+        segment.positions[segment.count++] = out.position();
+        putBytes(out, id);
+        out.putInt(event.getPayloadTypeHandle());
+        out.putInt(event.getSourceHandle());
+        putBytes(out, key);
+        LocalDateTime created = event.getCreationDate();
+        out.putLong(created.toEpochSecond(ZoneOffset.UTC));
+        out.putInt(created.getNano());
+        out.putInt(value.remaining());
+        out.put(value);
+        nextOffset++;
+    }
+
+    @Override
+    public Event<E> get(long offset) {
+        if (offset < startOffset || offset >= nextOffset) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " is not in the log");
+        }
+        Segment segment = segmentOf(offset);
+        ByteBuffer in = segment.buffer.duplicate();
+        in.position(segment.positions[(int) (offset - segment.baseOffset)]);
+        String id = getString(in);
+        int payloadType = in.getInt();
+        int source = in.getInt();
+        String key = getString(in);
+        LocalDateTime created = LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC);
+        ByteBuffer value = ByteBuffer.allocate(in.getInt());
+        in.limit(in.position() + value.capacity());
+        value.put(in).flip();
+        Event<E> event = new Event<>(id, payloadType, source, key, created, value);
+        event.setOffset(offset);
+        return event;
+    }
+
+    @Override
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    @Override
+    public long truncateBefore(long offset) {
+        // only whole segments are dropped, so the log may still start before offset
+        while (!segments.isEmpty()) {
+            Segment first = segments.get(0);
+            long end = segments.size() > 1 ? segments.get(1).baseOffset : nextOffset;
+            if (end > offset || end == first.baseOffset) {
+                break;
+            }
+            segments.remove(0);
+            free(first);
+            startOffset = end;
+        }
+        if (segments.isEmpty()) {
+            startOffset = Math.max(startOffset, Math.min(offset, nextOffset));
+        }
+        return startOffset;
+    }
+
+    @Override
+    public void reset(long startOffset) {
+        segments.forEach(this::free);
+        segments = new ArrayList<>();
+        this.startOffset = startOffset;
+        this.nextOffset = startOffset;
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    @Override
+    public long getHeldBytes() {
+        return offHeapBytes;
+    }
+
+    private Segment segmentOf(long offset) {
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).baseOffset <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return segments.get(lo);
+    }
+
+    private void free(Segment segment) {
+        offHeapBytes -= segment.buffer.capacity();
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, segment.buffer);
+            } catch (ReflectiveOperationException e) {
+                // left for the garbage collector
+            }
+        }
+        segment.buffer = null;
+    }
+
+    private static byte[] bytesOf(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
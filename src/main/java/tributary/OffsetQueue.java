@@ -0,0 +1,114 @@
+package tributary;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A queue of events that only holds their offsets, reading each event from the
+ * log of its partition when it is taken from the queue
+ */
+public class OffsetQueue<E> extends AbstractQueue<Event<E>> {
+    private EventLog<E> log;
+    private long[] offsets = new long[16];
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * Constructor for an empty queue of events in a log
+     * @param log log holding every event added to the queue
+     * @return new empty queue
+     */
+    public OffsetQueue(EventLog<E> log) {
+        this.log = log;
+    }
+
+    @Override
+    public boolean offer(Event<E> event) {
+        if (size == offsets.length) {
+            long[] grown = new long[size * 2];
+            for (int i = 0; i < size; i++) {
+                grown[i] = offsets[(head + i) % offsets.length];
+            }
+            offsets = grown;
+            head = 0;
+        }
+        offsets[(head + size) % offsets.length] = event.getOffset();
+        size++;
+        return true;
+    }
+
+    @Override
+    public Event<E> poll() {
+        if (size == 0) {
+            return null;
+        }
+        long offset = offsets[head];
+        head = (head + 1) % offsets.length;
+        size--;
+        return log.get(offset);
+    }
+
+    @Override
+    public Event<E> peek() {
+        return size == 0 ? null : log.get(offsets[head]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Removes the waiting events before an offset without reading them
+     * @param offset offset of the first event to keep
+     * @return void
+     */
+    public void removeBefore(long offset) {
+        while (size > 0 && offsets[head] < offset) {
+            head = (head + 1) % offsets.length;
+            size--;
+        }
+    }
+
+    @Override
+    public Iterator<Event<E>> iterator() {
+        return new Iterator<Event<E>>() {
+            private int next = 0;
+            private boolean removable = false;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Event<E> next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                removable = true;
+                return log.get(offsets[(head + next++) % offsets.length]);
+            }
+
+            @Override
+            public void remove() {
+                if (!removable) {
+                    throw new IllegalStateException();
+                }
+                for (int i = next - 1; i < size - 1; i++) {
+                    offsets[(head + i) % offsets.length] = offsets[(head + i + 1) % offsets.length];
+                }
+                size--;
+                next--;
+                removable = false;
+            }
+        };
+    }
+}
@@ -4,14 +4,51 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import org.json.JSONObject;
 
 public class Partition<E> {
+    /** Number of offsets between consecutive entries of the time index */
+    public static final int TIME_INDEX_INTERVAL = 64;
+    /** Most events a filtered read scans while holding the partition lock */
+    public static final int MAX_SCANNED_EVENTS = 4096;
+
     private String id;
+    private int handle;
     private Queue<Event<E>> queue;
+    private EventLog<E> log;
+    private long logStartOffset = 0;
+    private LongAdder produced = new LongAdder();
+    private LongAdder consumed = new LongAdder();
+    private LongAdder filtered = new LongAdder();
+    private long nextOffset = 0;
+    // sparse time index: entry i is an offset and the latest creation time of any event before it
+    private long[] indexOffsets = new long[16];
+    private long[] indexTimes = new long[16];
+    private int indexSize = 0;
+    private long maxTime = Long.MIN_VALUE;
+    private long retentionEvents = Long.MAX_VALUE;
+    private EventIndex eventIndex;
+    private MemoryAccountant memory;
+    private String memoryAccount;
+    private long reportedBytes = 0;
+    private PayloadStore payloads;
+    // earliest offset each consumer has taken with takeEvents and not yet handed out or returned
+    private Map<Consumer<E>, Long> heldFrom = new HashMap<>();
 
     /**
      * Constructor for partition
@@ -19,8 +56,26 @@ public class Partition<E> {
      * @return newly created partition
      */
     public Partition(String id) {
+        this(id, false);
+    }
+
+    /**
+     * Constructor for partition with a choice of where its events are stored
+     * @param id unique identifier for partition
+     * @param offHeap whether events are stored encoded outside the Java heap, with only
+     * their offsets held while they wait to be consumed
+     * @return newly created partition
+     */
+    public Partition(String id, boolean offHeap) {
         this.id = id;
-        this.queue = new LinkedList<>();
+        this.handle = Identifiers.intern(id);
+        if (offHeap) {
+            this.log = new OffHeapEventLog<>();
+            this.queue = new OffsetQueue<>(log);
+        } else {
+            this.log = new HeapEventLog<>();
+            this.queue = new LinkedList<>();
+        }
     }
 
     /**
@@ -31,6 +86,14 @@ public class Partition<E> {
         return id;
     }
 
+    /**
+     * Gets the interned id of the partition
+     * @return handle of the partition ID
+     */
+    public int getHandle() {
+        return handle;
+    }
+
     /**
      * Gets the queue of events in the partition
      * @return Queue of events to be consumed
@@ -40,15 +103,676 @@ public class Partition<E> {
     }
 
     /**
-     * Adds an event to this partition with the correct headers and value
-     * @param eventFileName event ID and file name where event payload is stored
+     * Gets the offset of the earliest event still held in the log of this partition
+     * @return log start offset
+     */
+    public synchronized long getLogStartOffset() {
+        return logStartOffset;
+    }
+
+    /**
+     * Gets events from the log of this partition by offset. Unlike the queue,
+     * the log keeps events after they have been consumed.
+     * @param fromOffset offset of the first event to get
+     * @param maxEvents maximum number of events to get
+     * @return events from fromOffset (or the log start, if later) onwards, in offset order
+     */
+    public synchronized List<Event<E>> getEvents(long fromOffset, int maxEvents) {
+        long from = Math.max(fromOffset, logStartOffset);
+        long to = Math.min(nextOffset, from + maxEvents);
+        if (from >= to) {
+            return new ArrayList<>();
+        }
+        List<Event<E>> events = new ArrayList<>((int) (to - from));
+        for (long offset = from; offset < to; offset++) {
+            events.add(log.get(offset));
+        }
+        return events;
+    }
+
+    /**
+     * Gets the number of events produced to this partition
+     * @return total number of events produced
+     */
+    public long getProducedCount() {
+        return produced.sum();
+    }
+
+    /**
+     * Gets the number of events consumed from this partition
+     * @return total number of events consumed
+     */
+    public long getConsumedCount() {
+        return consumed.sum();
+    }
+
+    /**
+     * Gets the number of events skipped because they did not match the filter of the consumer
+     * @return total number of events filtered out
+     */
+    public long getFilteredCount() {
+        return filtered.sum();
+    }
+
+    /**
+     * Gets the offset the next event added to this partition will be given
+     * @return next offset
+     */
+    public synchronized long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Replaces the contents of this partition with events restored from a snapshot
+     * @param events events in the log, in offset order
+     * @param logStartOffset offset of the first event in the log
+     * @param nextOffset offset the next event added to this partition will be given
+     * @param queueOffsets offsets of the events still waiting to be consumed, in order
+     * @pre the events have consecutive offsets from logStartOffset up to nextOffset
+     * @post this partition holds exactly the given log and waiting events, sharing their payloads
+     * if the partition has a payload store
+     * @return void
+     */
+    public synchronized void restoreEvents(List<Event<E>> events, long logStartOffset, long nextOffset,
+        List<Long> queueOffsets) {
+        releasePayloads(this.nextOffset);
+        log.reset(logStartOffset);
+        this.logStartOffset = logStartOffset;
+        this.nextOffset = nextOffset;
+        indexSize = 0;
+        maxTime = Long.MIN_VALUE;
+        if (eventIndex != null) {
+            eventIndex.clear();
+        }
+        for (Event<E> event : events) {
+            if (payloads != null) {
+                event.setPayload(payloads.acquire(event.getValue()));
+            }
+            log.append(event);
+            indexEvent(event);
+        }
+        queue.clear();
+        queueOffsets.forEach(offset -> queue.add(events.get((int) (offset - logStartOffset))));
+        reportHeldBytes();
+    }
+
+    /**
+     * Discards every event in this partition and continues its log from an offset, e.g. for a
+     * replica that has fallen behind the start of its leader's log
+     * @param offset offset the next event added to this partition will be given
+     * @post the log and queue of this partition are empty and start at offset
+     * @return void
+     */
+    public synchronized void resetTo(long offset) {
+        restoreEvents(new ArrayList<>(), offset, offset, new ArrayList<>());
+    }
+
+    /**
+     * Appends events fetched from the leader replica of this partition, keeping
+     * their ids and offsets. Events that are already in the log are skipped.
+     * @param events events in offset order
+     * @pre the first new event has offset equal to the next offset of this partition
+     * @post the log and queue of this partition end with the new events
+     * @return number of events appended
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized int appendReplicated(List<Event<?>> events) {
+        int appended = 0;
+        for (Event<?> event : events) {
+            if (event.getOffset() < nextOffset) {
+                continue;
+            }
+            if (event.getOffset() > nextOffset) {
+                throw new IllegalStateException("Replica of " + id + " is missing offsets " + nextOffset
+                    + " to " + (event.getOffset() - 1));
+            }
+            Event<E> replica = (Event<E>) event;
+            if (payloads != null) {
+                // the leader's event may refer to a payload in another store, so share from our own
+                replica = replica.withOffset(replica.getOffset());
+                replica.setPayload(payloads.acquire(replica.getValue()));
+            }
+            log.append(replica);
+            queue.add(replica);
+            indexEvent(replica);
+            nextOffset++;
+            appended++;
+        }
+        if (appended > 0) {
+            produced.add(appended);
+            applyRetention();
+            reportHeldBytes();
+            notifyAll();
+        }
+        return appended;
+    }
+
+    /**
+     * Adds an event to this partition with the correct headers and value.
+     * The payload file is read before the partition is locked.
+     * @param eventFileName file name where event payload is stored
      * @param producerId unique ID of producer
      * @pre the eventFileName file exists and the producerId corresponds to a valid producer.
      * The producer type is the same as the partition type.
-     * @post a new event with id eventFileName now exists in this partition
+     * @post a new event with an id of the form eventFileName-offset now exists in this partition
+     * @return the newly created event
+     */
+    public Event<E> addEvent(String eventFileName, String producerId) {
+        return append(eventFileName, producerId, loadEventValue(eventFileName), null);
+    }
+
+    /**
+     * Adds an event with a payload already loaded from a JSON file to this partition,
+     * e.g. when the same file is produced to several topics
+     * @param eventFileName file name the payload was loaded from
+     * @param producerId unique ID of producer
+     * @param value payload loaded from the file
+     * @pre the producerId corresponds to a valid producer. value is not null.
+     * @post a new event with an id of the form eventFileName-offset now exists in this partition
+     * @return the newly created event
+     */
+    public Event<E> addEvent(String eventFileName, String producerId, Object value) {
+        return append(eventFileName, producerId, value, null);
+    }
+
+    /**
+     * Adds an event with an inline payload to this partition
+     * @param producerId unique ID of producer
+     * @param value payload of the event, e.g. a String, an Integer or raw bytes
+     * @pre the producerId corresponds to a valid producer. value is not null.
+     * @post a new event with an id of the form partitionId-offset now exists in this partition
+     * @return the newly created event
+     */
+    public Event<E> addValue(String producerId, Object value) {
+        return append(id, producerId, value, null);
+    }
+
+    /**
+     * Adds an event with an inline payload and a partitioning key to this partition
+     * @param producerId unique ID of producer
+     * @param value payload of the event
+     * @param key key the partition was chosen by
+     * @pre the producerId corresponds to a valid producer. value is not null.
+     * @post a new event with the given key and an id of the form partitionId-offset now exists in this partition
+     * @return the newly created event
+     */
+    public Event<E> addValue(String producerId, Object value, String key) {
+        return append(id, producerId, value, key);
+    }
+
+    /**
+     * Adds a batch of events with inline payloads to this partition,
+     * taking the partition lock once for the whole batch
+     * @param producerId unique ID of producer
+     * @param values payloads of the events in the order they are to be added
+     * @pre the producerId corresponds to a valid producer. no value is null.
+     * @post a new event exists in this partition for each value, in order
+     * @return the newly created events
+     */
+    public synchronized List<Event<E>> addValues(String producerId, List<Object> values) {
+        List<Event<E>> events = new ArrayList<>(values.size());
+        for (Object value : values) {
+            events.add(append(id, producerId, value, null));
+        }
+        return events;
+    }
+
+    /**
+     * Adds a batch of events with inline payloads and partitioning keys to this partition,
+     * taking the partition lock once for the whole batch
+     * @param producerId unique ID of producer
+     * @param values payloads of the events in the order they are to be added
+     * @param keys key of each event, in the same order as the values
+     * @pre the producerId corresponds to a valid producer. no value is null. there is a key for each value.
+     * @post a new event with its key exists in this partition for each value, in order
+     * @return the newly created events
+     */
+    public synchronized List<Event<E>> addValues(String producerId, List<Object> values, List<String> keys) {
+        List<Event<E>> events = new ArrayList<>(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            events.add(append(id, producerId, values.get(i), keys.get(i)));
+        }
+        return events;
+    }
+
+    private synchronized Event<E> append(String idPrefix, String producerId, Object value, String key) {
+        Event<E> newEvent = new Event<E>(idPrefix + "-" + nextOffset, Identifiers.typeOf(value),
+            Identifiers.intern(producerId), value, key);
+        newEvent.setOffset(nextOffset);
+        if (payloads != null) {
+            newEvent.setPayload(payloads.acquire(value));
+        }
+        // an off-heap log rejects values it cannot encode, so nothing else changes until it has taken the event
+        log.append(newEvent);
+        nextOffset++;
+        indexEvent(newEvent);
+        queue.add(newEvent);
+        produced.increment();
+        applyRetention();
+        reportHeldBytes();
+        notifyAll();
+        return newEvent;
+    }
+
+    /**
+     * Sets how many of the latest events the log of this partition keeps
+     * @param retentionEvents number of events to keep, or Long.MAX_VALUE to keep every event
+     * @post the log holds at most about 1/16 more than retentionEvents events, plus at most
+     * one storage segment for off-heap partitions
+     * @return void
+     */
+    public synchronized void setRetention(long retentionEvents) {
+        this.retentionEvents = retentionEvents;
+        applyRetention();
+    }
+
+    /**
+     * Discards the events before an offset from the log, including any still waiting
+     * to be consumed. Events stored off-heap are discarded a segment at a time, and the
+     * memory of each discarded segment is freed immediately.
+     * @param offset offset of the first event that must be kept
+     * @post the log start offset is at most offset, and no event before it is waiting
+     * @return the new log start offset
+     */
+    public synchronized long truncateBefore(long offset) {
+        releasePayloads(Math.min(offset, nextOffset));
+        long start = log.truncateBefore(Math.min(offset, nextOffset));
+        if (start > logStartOffset) {
+            if (queue instanceof OffsetQueue) {
+                ((OffsetQueue<E>) queue).removeBefore(start);
+            } else {
+                while (!queue.isEmpty() && queue.peek().getOffset() < start) {
+                    queue.remove();
+                }
+            }
+            logStartOffset = start;
+            trimIndex();
+            if (eventIndex != null) {
+                eventIndex.pruneBefore(start);
+            }
+        }
+        reportHeldBytes();
+        return logStartOffset;
+    }
+
+    /**
+     * Discards the events that have already been consumed from the log, freeing their memory.
+     * Every consumer group reads from the same queue, so no group is waiting for them, but
+     * they can no longer be played back. Events taken by a prefetch buffer and not yet handed
+     * out are kept, so they can still be returned if the partition is revoked.
+     * @post the log starts at the earliest event still waiting to be consumed or held by a
+     * prefetch buffer, or is empty
+     * @return the new log start offset
+     */
+    public synchronized long releaseConsumed() {
+        Event<E> next = queue.peek();
+        long keepFrom = next == null ? nextOffset : next.getOffset();
+        for (long held : heldFrom.values()) {
+            keepFrom = Math.min(keepFrom, held);
+        }
+        return truncateBefore(keepFrom);
+    }
+
+    /**
+     * Gets the number of bytes of events this partition stores outside the Java heap
+     * @return off-heap bytes allocated
+     */
+    public synchronized long getOffHeapBytes() {
+        return log.getOffHeapBytes();
+    }
+
+    /**
+     * Moves the oldest events of this partition to a segment store once they are old
+     * enough, keeping only recent events in memory. Archived events are still read
+     * transparently by offset, time and playback.
+     * @param store store the archived segments are written to
+     * @param name prefix of the names of this partition's segments, unique within the store
+     * @param tierAfterMillis age of the newest event of a segment after which it may be archived
+     * @param segmentEvents number of events in each archived segment
+     * @pre tiering is not already enabled for this partition
+     * @post segments are archived whenever tierSegments is called
+     * @return void
+     */
+    public synchronized void enableTiering(SegmentStore store, String name, long tierAfterMillis, int segmentEvents) {
+        log = new TieredEventLog<>(log, store, name, tierAfterMillis, segmentEvents);
+        if (queue instanceof OffsetQueue) {
+            // waiting events are read through the tiered log from now on
+            Queue<Event<E>> waiting = queue;
+            queue = new OffsetQueue<>(log);
+            queue.addAll(waiting);
+        }
+    }
+
+    /**
+     * Archives every whole segment at the start of the hot log that is old enough and has no
+     * event still waiting to be consumed. Each segment is compressed and written without
+     * holding the partition lock, so producers and consumers carry on meanwhile.
+     * @pre tiering is enabled for this partition
+     * @post the archived events are no longer held in memory
+     * @return number of segments archived
+     * @throws IllegalStateException if a segment could not be written
+     */
+    public int tierSegments() {
+        int archived = 0;
+        while (true) {
+            TieredEventLog<E> tiered;
+            long baseOffset;
+            List<Event<E>> events = new ArrayList<>();
+            synchronized (this) {
+                tiered = (TieredEventLog<E>) log;
+                baseOffset = tiered.getTierOffset();
+                long endOffset = baseOffset + tiered.getSegmentEvents();
+                long consumedUpTo = queue.isEmpty() ? nextOffset : queue.peek().getOffset();
+                LocalDateTime tierBefore = LocalDateTime.now().minusNanos(tiered.getTierAfterMillis() * 1_000_000);
+                if (endOffset > consumedUpTo || log.get(endOffset - 1).getCreationDate().isAfter(tierBefore)) {
+                    return archived;
+                }
+                for (long offset = baseOffset; offset < endOffset; offset++) {
+                    events.add(log.get(offset));
+                }
+            }
+            int bytes = tiered.storeSegment(events);
+            synchronized (this) {
+                if (log != tiered || tiered.getTierOffset() != baseOffset) {
+                    // truncated or restored while the segment was being written
+                    tiered.discardSegment(baseOffset);
+                    return archived;
+                }
+                // archived events are read back with their own values, so they give up their shared payloads
+                releasePayloads(baseOffset + events.size());
+                tiered.addSegment(baseOffset, baseOffset + events.size(), bytes);
+                reportHeldBytes();
+            }
+            archived++;
+        }
+    }
+
+    /**
+     * Gets the segments of this partition held in its segment store
+     * @return base offset, end offset and compressed size of each archived segment, in offset order
+     */
+    public synchronized List<long[]> getArchivedSegments() {
+        return log instanceof TieredEventLog ? ((TieredEventLog<E>) log).getSegments() : List.of();
+    }
+
+    /**
+     * Records segments archived before a snapshot was taken as part of the log of this partition,
+     * so their events are read back from the segment store instead of being held in memory
+     * @param segments base offset, end offset and compressed size of each segment, in offset order
+     * @pre tiering is enabled, and restoreEvents has restored every event of the segments
+     * @post the events of the segments are no longer held in memory
+     * @return void
+     */
+    public synchronized void restoreArchivedSegments(List<long[]> segments) {
+        TieredEventLog<E> tiered = (TieredEventLog<E>) log;
+        for (long[] segment : segments) {
+            // archived events are read back with their own values, so they give up their shared payloads
+            releasePayloads(segment[1]);
+            tiered.addSegment(segment[0], segment[1], (int) segment[2]);
+        }
+        reportHeldBytes();
+    }
+
+    /**
+     * Gets the number of compressed bytes of this partition held in its segment store
+     * @return archived bytes, or 0 if tiering is not enabled
+     */
+    public synchronized long getArchivedBytes() {
+        return log instanceof TieredEventLog ? ((TieredEventLog<E>) log).getArchivedBytes() : 0;
+    }
+
+    /**
+     * Reports the bytes of events this partition holds in memory to a memory accountant
+     * @param memory accountant that the bytes are reported to
+     * @param account name of the account the bytes are reported under, e.g. shared by a topic
+     * @post every later change in the bytes held is reported to the accountant
+     * @return void
+     */
+    public synchronized void setMemoryAccount(MemoryAccountant memory, String account) {
+        this.memory = memory;
+        this.memoryAccount = account;
+        this.reportedBytes = 0;
+        reportHeldBytes();
+    }
+
+    /**
+     * Gets the number of bytes of events this partition holds in memory
+     * @return bytes held by the log, on or off the heap
+     */
+    public synchronized long getHeldBytes() {
+        return log.getHeldBytes();
+    }
+
+    /**
+     * Shares the payloads of events appended to this partition from now on from a
+     * content-addressed payload store. Events already in the log keep their own values.
+     * @param payloads store the payloads are shared from
+     * @pre the partition stores its events on the heap
+     * @post each later event refers to the stored payload equal to its value, and gives up
+     * its reference when it is discarded from the log
+     * @return void
+     * @throws IllegalStateException if the partition stores its events off the heap
+     */
+    public synchronized void setPayloadStore(PayloadStore payloads) {
+        if (!(log instanceof HeapEventLog)) {
+            throw new IllegalStateException("Partition " + id
+                + " stores its events off the heap, so they cannot share payloads!");
+        }
+        this.payloads = payloads;
+    }
+
+    private void releasePayloads(long endOffset) {
+        if (payloads == null) {
+            return;
+        }
+        // events already archived gave up their payloads when their segment was written
+        long start = log instanceof TieredEventLog ? ((TieredEventLog<E>) log).getTierOffset() : log.getStartOffset();
+        for (long offset = start; offset < endOffset; offset++) {
+            PayloadStore.Payload payload = log.get(offset).getPayload();
+            if (payload != null) {
+                payloads.release(payload);
+            }
+        }
+    }
+
+    private void reportHeldBytes() {
+        long held = log.getHeldBytes();
+        if (memory != null && held != reportedBytes) {
+            memory.add(memoryAccount, held - reportedBytes);
+            reportedBytes = held;
+        }
+    }
+
+    private void applyRetention() {
+        // allow some slack so that discarding is amortised over many appends
+        if (nextOffset - logStartOffset > retentionEvents + retentionEvents / 16) {
+            truncateBefore(nextOffset - retentionEvents);
+        }
+    }
+
+    private void trimIndex() {
+        int first = 0;
+        while (first < indexSize && indexOffsets[first] < logStartOffset) {
+            first++;
+        }
+        System.arraycopy(indexOffsets, first, indexOffsets, 0, indexSize - first);
+        System.arraycopy(indexTimes, first, indexTimes, 0, indexSize - first);
+        indexSize -= first;
+    }
+
+    /**
+     * Finds the offset of the earliest event created at or after a given time. The
+     * sparse time index narrows the search to at most one index interval of the log,
+     * so events produced out of time order (e.g. migrated ones) are still found.
+     * @param time earliest creation time of interest
+     * @return offset of the first event in the log created at or after time,
+     * or the next offset if there is no such event
+     */
+    public synchronized long offsetForTime(LocalDateTime time) {
+        long target = timeKey(time);
+        // last entry before which every event is older than target
+        int lo = 0;
+        int hi = indexSize - 1;
+        int entry = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (indexTimes[mid] < target) {
+                entry = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        long from = Math.max(entry < 0 ? logStartOffset : indexOffsets[entry], logStartOffset);
+        for (long offset = from; offset < nextOffset; offset++) {
+            if (timeKey(log.get(offset).getCreationDate()) >= target) {
+                return offset;
+            }
+        }
+        return nextOffset;
+    }
+
+    /**
+     * Gets the events from the log of this partition created within a time range
+     * @param from earliest creation time of interest
+     * @param to creation time to stop at, or null to read to the end of the log
+     * @param maxEvents maximum number of events to get
+     * @return events from the first one created at or after from, up to but not including
+     * the first one created at or after to, in offset order
+     */
+    public List<Event<E>> getEventsBetween(LocalDateTime from, LocalDateTime to, int maxEvents) {
+        long fromOffset = offsetForTime(from);
+        if (to == null) {
+            return getEvents(fromOffset, maxEvents);
+        }
+        long toOffset = offsetForTime(to);
+        return getEvents(fromOffset, (int) Math.max(0, Math.min(maxEvents, toOffset - fromOffset)));
+    }
+
+    private void indexEvent(Event<?> event) {
+        if (event.getOffset() % TIME_INDEX_INTERVAL == 0 || indexSize == 0) {
+            if (indexSize == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+                indexTimes = Arrays.copyOf(indexTimes, indexSize * 2);
+            }
+            indexOffsets[indexSize] = event.getOffset();
+            indexTimes[indexSize] = maxTime;
+            indexSize++;
+        }
+        maxTime = Math.max(maxTime, timeKey(event.getCreationDate()));
+        if (eventIndex != null) {
+            eventIndex.add(event);
+        }
+    }
+
+    /**
+     * Starts indexing the log of this partition by event source and by event id.
+     * Events already in the log are indexed first, reading archived ones back if tiered.
+     * @post lookups by source and id can be made on this partition
+     * @return void
+     */
+    public synchronized void enableEventIndex() {
+        if (eventIndex != null) {
+            return;
+        }
+        eventIndex = new EventIndex();
+        for (long offset = logStartOffset; offset < nextOffset; offset++) {
+            eventIndex.add(log.get(offset));
+        }
+    }
+
+    /**
+     * Checks whether the log of this partition is indexed by event source and id
+     * @return true if enableEventIndex has been called
+     */
+    public synchronized boolean hasEventIndex() {
+        return eventIndex != null;
+    }
+
+    /**
+     * Gets the offsets of the events in the log of this partition produced by a producer
+     * @param producerId unique ID of the producer
+     * @param fromOffset offset of the first event of interest
+     * @param maxOffsets maximum number of offsets to get
+     * @pre the event index is enabled
+     * @return offsets at or after fromOffset (or the log start, if later), in order
+     * @throws IllegalStateException if the event index is not enabled
+     */
+    public synchronized List<Long> offsetsBySource(String producerId, long fromOffset, int maxOffsets) {
+        // a producer that was never interned has no events, and its lookup matches no source
+        return requireEventIndex().offsetsBySource(Identifiers.lookup(producerId), fromOffset, maxOffsets);
+    }
+
+    /**
+     * Gets the offset of the event in the log of this partition with an id
+     * @param eventId id of the event
+     * @pre the event index is enabled
+     * @return offset of the latest event with the id, or -1 if no such event is in the log
+     * @throws IllegalStateException if the event index is not enabled
+     */
+    public synchronized long offsetOfId(String eventId) {
+        return requireEventIndex().offsetOfId(eventId);
+    }
+
+    private EventIndex requireEventIndex() {
+        if (eventIndex == null) {
+            throw new IllegalStateException("Partition " + id + " has no event index!");
+        }
+        return eventIndex;
+    }
+
+    private static long timeKey(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + time.getNano();
+    }
+
+    /**
+     * Removes every waiting event matching a condition, keeping the rest in order
+     * @param condition condition an event must match to be removed
+     * @post no waiting event in this partition matches the condition
+     * @return the removed events in the order they were waiting
+     */
+    public synchronized List<Event<E>> removeEvents(Predicate<Event<E>> condition) {
+        List<Event<E>> removed = new ArrayList<>();
+        Iterator<Event<E>> it = queue.iterator();
+        while (it.hasNext()) {
+            Event<E> event = it.next();
+            if (condition.test(event)) {
+                removed.add(event);
+                it.remove();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Appends existing events, e.g. ones migrated from another partition. Each
+     * event keeps its id but is given the next offset of this partition.
+     * @param events events in the order they are to be consumed
+     * @post copies of the events are at the end of this partition log and queue
      * @return void
      */
-    public synchronized void addEvent(String eventFileName, String producerId) {
+    public synchronized void appendEvents(List<Event<E>> events) {
+        for (Event<E> event : events) {
+            Event<E> copy = event.withOffset(nextOffset++);
+            if (payloads != null) {
+                copy.setPayload(payloads.acquire(copy.getValue()));
+            }
+            indexEvent(copy);
+            log.append(copy);
+            queue.add(copy);
+        }
+        applyRetention();
+        reportHeldBytes();
+        notifyAll();
+    }
+
+    /**
+     * Loads the value of an event from its JSON file in the events folder
+     * @param eventFileName name of JSON file containing event/message value
+     * @pre the eventFileName file exists and contains a value
+     * @return the value stored in the file
+     */
+    public static Object loadEventValue(String eventFileName) {
         String eventsFolderPath;
         try {
             eventsFolderPath = Paths.get("").toAbsolutePath().toString()
@@ -74,26 +798,27 @@ public class Partition<E> {
         }
         String contents = new String(bytes);
         JSONObject json = new JSONObject(contents);
-        try {
-            Event<E> newEvent = new Event<E>(
-                eventFileName, json.get("value").getClass().getSimpleName(), producerId, json.get("value"));
-            queue.add(newEvent);
-        } catch (Exception e) {
+        if (!json.has("value")) {
+            throw new IllegalArgumentException(eventFileName + " does not contain a value!");
         }
-        return;
+        return json.get("value");
     }
 
     /**
-     * Consumes an event from the partition queue
+     * Consumes an event from the partition queue. Events that do not match the
+     * filter of the consumer are skipped, and the consumed event is projected if
+     * the consumer has a projection.
      * @param consumer the consumer consuming the event
-     * @pre the consumer is a valid consumer
-     * @post the event is removed from this partition queue. the event is added to the
-     * list of consumed events in the consumer.
+     * @pre the consumer is a valid consumer. an event matching its filter is waiting.
+     * @post the event and any skipped events before it are removed from this partition queue.
+     * the event is added to the list of consumed events in the consumer.
      * @return void
      */
     public synchronized void consumeEvent(Consumer<E> consumer) {
-        Event<E> eventToBeConsumed;
-        eventToBeConsumed = queue.remove();
+        Event<E> eventToBeConsumed = pollMatching(consumer);
+        if (eventToBeConsumed == null) {
+            throw new NoSuchElementException("No event for consumer " + consumer.getId() + " in " + id);
+        }
         consumer.consumeEvent(eventToBeConsumed);
         System.out.println("Consumer " + consumer.getId() + " has successfully consumed event with: ");
         System.out.println("ID: " + eventToBeConsumed.getId());
@@ -102,6 +827,194 @@ public class Partition<E> {
         consumer.displayEventsConsumed();
     }
 
+    /**
+     * Consumes the earliest event from the partition queue matching the filter of the consumer,
+     * waiting for one to be produced if there is none. Unlike consumeEvent nothing is printed.
+     * @param consumer the consumer consuming the event
+     * @param timeoutMillis longest time to wait for an event
+     * @pre the consumer is a valid consumer
+     * @post if a matching event was available it and any skipped events before it are removed
+     * from this partition queue, and it is added to the list of consumed events in the consumer
+     * @return the consumed (and projected) event, or null if none was produced in time
+     * or the thread was interrupted
+     */
+    public synchronized Event<E> pollEvent(Consumer<E> consumer, long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            Event<E> event = pollMatching(consumer);
+            if (event != null) {
+                consumer.consumeEvent(event);
+                return event;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Consumes up to maxEvents of the earliest events matching the filter of a consumer without
+     * waiting, taking the partition lock once for the whole batch
+     * @param consumer the consumer consuming the events
+     * @param maxEvents maximum number of events to consume
+     * @pre the consumer is a valid consumer
+     * @post the returned events and any skipped events before them are removed from this
+     * partition queue, and the returned events are added to the list of consumed events in the consumer
+     * @return the consumed (and projected) events in order, which may be fewer than maxEvents
+     */
+    public synchronized List<Event<E>> pollEvents(Consumer<E> consumer, int maxEvents) {
+        List<Event<E>> events = new ArrayList<>();
+        Event<E> event;
+        while (events.size() < maxEvents && (event = pollMatching(consumer)) != null) {
+            consumer.consumeEvent(event);
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * Takes up to maxEvents of the earliest events matching the filter of a consumer from the
+     * partition queue in one go, waiting for one to be produced if there are none. The events
+     * are not projected or added to the consumer's consumed events; that is left to whoever
+     * hands them to the consumer.
+     * @param consumer the consumer the events are taken for
+     * @param maxEvents maximum number of events to take
+     * @param timeoutMillis longest time to wait for the first event
+     * @param held offset of the earliest event the consumer took before and still holds,
+     * or Long.MAX_VALUE if it holds none
+     * @pre the consumer is a valid consumer
+     * @post the events taken and any skipped events before them are removed from this partition
+     * queue. they and the held events are kept in the log until they are returned.
+     * @return the events taken in order, which is empty if none were produced in time
+     * or the thread was interrupted
+     */
+    public synchronized List<Event<E>> takeEvents(Consumer<E> consumer, int maxEvents, long timeoutMillis,
+        long held) {
+        if (held == Long.MAX_VALUE) {
+            heldFrom.remove(consumer);
+        } else {
+            heldFrom.put(consumer, held);
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<Event<E>> events = new ArrayList<>();
+        while (true) {
+            Event<E> event;
+            while (events.size() < maxEvents && (event = pollFiltered(consumer.getFilter())) != null) {
+                events.add(event);
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (!events.isEmpty()) {
+                heldFrom.putIfAbsent(consumer, events.get(0).getOffset());
+                return events;
+            }
+            if (remaining <= 0) {
+                return events;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return events;
+            }
+        }
+    }
+
+    /**
+     * Puts events taken with takeEvents but never handed to a consumer back at the
+     * head of the partition queue, e.g. when the partition is revoked from the consumer
+     * @param consumer the consumer the events were taken for
+     * @param events events taken from this partition, in the order they were taken
+     * @post the events still in the log are the next to be consumed from this partition, in
+     * order, and the consumer holds no events of this partition
+     * @return void
+     */
+    public synchronized void returnEvents(Consumer<E> consumer, List<Event<E>> events) {
+        heldFrom.remove(consumer);
+        // events truncated by retention since they were taken are dropped, as waiting events are
+        List<Event<E>> waiting = events.stream()
+                                       .filter(event -> event.getOffset() >= logStartOffset)
+                                       .collect(Collectors.toCollection(ArrayList::new));
+        if (waiting.isEmpty()) {
+            return;
+        }
+        consumed.add(-waiting.size());
+        waiting.addAll(queue);
+        queue.clear();
+        queue.addAll(waiting);
+        notifyAll();
+    }
+
+    private Event<E> pollMatching(Consumer<E> consumer) {
+        Event<E> event = pollFiltered(consumer.getFilter());
+        List<String> projection = consumer.getProjection();
+        return event == null || projection == null ? event : EventFilter.project(event, projection);
+    }
+
+    private Event<E> pollFiltered(EventFilter filter) {
+        Event<E> event;
+        while ((event = queue.poll()) != null) {
+            consumed.increment();
+            if (filter == null || filter.test(event)) {
+                return event;
+            }
+            filtered.increment();
+        }
+        return null;
+    }
+
+    /**
+     * Gets the events from the log of this partition matching a filter, by offset. The log is
+     * scanned a stretch at a time, so producers are not held up while a selective filter
+     * scans a long log.
+     * @param fromOffset offset to start reading from
+     * @param maxEvents maximum number of matching events to get
+     * @param filter condition the events must match
+     * @return matching events from fromOffset (or the log start, if later) onwards, in offset order
+     */
+    public List<Event<E>> getEvents(long fromOffset, int maxEvents, EventFilter filter) {
+        List<Event<E>> events = new ArrayList<>();
+        long offset = fromOffset;
+        while (events.size() < maxEvents) {
+            long scannedTo = getEvents(offset, maxEvents - events.size(), filter, events);
+            if (scannedTo <= offset) {
+                break;
+            }
+            offset = scannedTo;
+        }
+        return events;
+    }
+
+    /**
+     * Gets the events matching a filter from at most MAX_SCANNED_EVENTS events of the log of
+     * this partition. A reader carries on from the returned offset, so it moves past events
+     * that do not match even when none of the scanned events match.
+     * @param fromOffset offset to start reading from
+     * @param maxEvents maximum number of matching events to get
+     * @param filter condition the events must match, or null for every event
+     * @param matching list the matching events are added to, in offset order
+     * @return offset one past the last event scanned, or where scanning started if there was nothing to scan
+     */
+    public synchronized long getEvents(long fromOffset, int maxEvents, EventFilter filter, List<Event<E>> matching) {
+        long offset = Math.max(fromOffset, logStartOffset);
+        long end = Math.min(nextOffset, offset + MAX_SCANNED_EVENTS);
+        int found = 0;
+        for (; offset < end && found < maxEvents; offset++) {
+            Event<E> event = log.get(offset);
+            if (filter == null || filter.test(event)) {
+                matching.add(event);
+                found++;
+            }
+        }
+        return offset;
+    }
+
     /**
      * Displays the events in the partition queue
      * @return void
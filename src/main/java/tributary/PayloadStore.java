@@ -0,0 +1,204 @@
+package tributary;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content-addressed store of event payloads, so identical payloads produced many times
+ * are held once and shared by every event carrying them. Payloads are keyed by a 64-bit
+ * hash of their type and encoded form, and compared by type and byte for byte on a hash
+ * match. Each event in a partition log holds a reference, and a payload is dropped once
+ * the last event referring to it is discarded by retention. The bytes of the stored payloads are reported to the
+ * memory accountant under the account "payloads".
+ */
+public class PayloadStore {
+    /** Account the bytes of stored payloads are reported under */
+    public static final String ACCOUNT = "payloads";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Map<Long, Payload> byHash = new HashMap<>();
+    // lets a payload object that is already shared be found without encoding it again
+    private Map<Object, Payload> byValue = new IdentityHashMap<>();
+    private MemoryAccountant memory;
+    private long bytes = 0;
+    private LongAdder hits;
+    private LongAdder misses;
+
+    /**
+     * A stored payload and the number of events referring to it. Payloads with the
+     * same hash but different contents are chained.
+     */
+    public static class Payload {
+        private final Object value;
+        private final byte[] encoded;
+        private final long hash;
+        private final long size;
+        private int refs = 0;
+        private Payload next;
+
+        private Payload(Object value, byte[] encoded, long hash) {
+            this.value = value;
+            this.encoded = encoded;
+            this.hash = hash;
+            this.size = encoded.length + QuotaManager.sizeOf(value);
+        }
+
+        /**
+         * Gets the shared payload value. It must not be modified, as every event carrying it would see the change.
+         * @return payload value
+         */
+        public Object getValue() {
+            return value;
+        }
+
+        /**
+         * Gets the content hash the payload is stored under
+         * @return 64-bit hash of the type and encoded form of the payload
+         */
+        public long getHash() {
+            return hash;
+        }
+
+        /**
+         * Gets the number of bytes the stored payload takes up
+         * @return size of the value and its encoded form
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Constructor for an empty payload store
+     * @param metrics registry that the store is reported to
+     * @param memory accountant that the bytes of stored payloads are reported to
+     * @return new payload store
+     */
+    public PayloadStore(Metrics metrics, MemoryAccountant memory) {
+        this.memory = memory;
+        hits = metrics.counter("payloads.deduplicated");
+        misses = metrics.counter("payloads.stored");
+        metrics.gauge("payloads.count", this::size);
+        metrics.gauge("payloads.bytes", this::getBytes);
+    }
+
+    /**
+     * Takes a reference to the stored payload equal to a value, storing the value if there is none
+     * @param value payload of an event about to be appended
+     * @pre value is not null
+     * @post the store holds a payload equal to value, with one more reference than before
+     * @return the stored payload, whose value is to be used in place of value
+     */
+    public synchronized Payload acquire(Object value) {
+        Payload payload = byValue.get(value);
+        if (payload == null) {
+            ByteBuffer buffer = Snapshot.encodeValue(value);
+            byte[] encoded = new byte[buffer.remaining()];
+            buffer.get(encoded);
+            long hash = hash(value.getClass(), encoded);
+            payload = byHash.get(hash);
+            while (payload != null
+                && (payload.value.getClass() != value.getClass() || !Arrays.equals(payload.encoded, encoded))) {
+                payload = payload.next;
+            }
+            if (payload == null) {
+                payload = new Payload(value, encoded, hash);
+                payload.next = byHash.put(hash, payload);
+                byValue.put(value, payload);
+                bytes += payload.size;
+                memory.add(ACCOUNT, payload.size);
+                misses.increment();
+            } else {
+                hits.increment();
+            }
+        } else {
+            hits.increment();
+        }
+        payload.refs++;
+        return payload;
+    }
+
+    /**
+     * Gives up a reference to a stored payload, dropping the payload once it has none left
+     * @param payload payload taken with acquire
+     * @pre the reference being given up was taken with acquire and has not been given up already
+     * @post the payload has one reference less, and is no longer stored if that was the last one
+     * @return void
+     */
+    public synchronized void release(Payload payload) {
+        if (--payload.refs > 0) {
+            return;
+        }
+        Payload head = byHash.get(payload.hash);
+        if (head == payload) {
+            if (payload.next == null) {
+                byHash.remove(payload.hash);
+            } else {
+                byHash.put(payload.hash, payload.next);
+            }
+        } else {
+            while (head.next != payload) {
+                head = head.next;
+            }
+            head.next = payload.next;
+        }
+        byValue.remove(payload.value);
+        bytes -= payload.size;
+        memory.add(ACCOUNT, -payload.size);
+    }
+
+    /**
+     * Gets the number of references to a stored payload
+     * @param payload payload taken with acquire
+     * @return number of events referring to the payload
+     */
+    public synchronized int getRefCount(Payload payload) {
+        return payload.refs;
+    }
+
+    /**
+     * Gets the number of distinct payloads stored
+     * @return number of payloads
+     */
+    public synchronized long size() {
+        return byValue.size();
+    }
+
+    /**
+     * Gets the number of bytes the stored payloads take up together
+     * @return bytes held by the store
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Drops every stored payload, e.g. when the events referring to them are discarded by a restore
+     * @post the store is empty
+     * @return void
+     */
+    public synchronized void clear() {
+        byHash.clear();
+        byValue.clear();
+        memory.add(ACCOUNT, -bytes);
+        bytes = 0;
+    }
+
+    private static long hash(Class<?> type, byte[] encoded) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : type.getName().getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        for (byte b : encoded) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,181 @@
+package tributary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A read-ahead buffer of the events of one partition for one consumer. A fetcher thread
+ * takes events from the partition in batches, each with a single acquisition of the
+ * partition lock, and the consumer's thread polls them from a single-producer,
+ * single-consumer ring without taking any lock. The buffer is refilled once it falls
+ * below a threshold that follows the consumption rate, and each refill takes up to twice
+ * that threshold, so it holds roughly a fixed time's worth of events whether the consumer
+ * is fast or slow. Closing the buffer puts the events it still holds back at the head of
+ * the partition.
+ */
+public class PrefetchBuffer<E> implements AutoCloseable {
+    private static final long FETCH_TIMEOUT_MS = 100;
+    private static final int MIN_REFILL_THRESHOLD = 16;
+    // the buffer aims to hold this much consumption after each refill
+    private static final long TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private Partition<E> partition;
+    private Consumer<E> consumer;
+    private Object[] ring;
+    // offsets of the events in the ring, only written by the fetcher and never cleared
+    private long[] offsets;
+    private int mask;
+    // head is only written by the consumer's thread and tail only by the fetcher
+    private volatile long head = 0;
+    private volatile long tail = 0;
+    private volatile int refillThreshold;
+    private volatile Thread waitingConsumer;
+    private volatile boolean closed = false;
+    private Thread fetcher;
+
+    /**
+     * Constructor for a prefetch buffer, which starts fetching straight away
+     * @param partition partition the events are taken from
+     * @param consumer consumer the events are taken for
+     * @param capacity most events held at once, rounded up to a power of two
+     * @pre the partition is assigned to the consumer
+     * @return new prefetch buffer
+     */
+    public PrefetchBuffer(Partition<E> partition, Consumer<E> consumer, int capacity) {
+        this.partition = partition;
+        this.consumer = consumer;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new Object[size];
+        this.offsets = new long[size];
+        this.mask = size - 1;
+        this.refillThreshold = Math.min(MIN_REFILL_THRESHOLD, size / 2);
+        this.fetcher = new Thread(this::fetch, "prefetch-" + consumer.getId() + "-" + partition.getId());
+        fetcher.setDaemon(true);
+        fetcher.start();
+    }
+
+    /**
+     * Consumes the next event of the partition, waiting for the fetcher if the buffer is empty
+     * @param timeoutMillis longest time to wait for an event
+     * @post the event is added to the list of consumed events in the consumer
+     * @return the consumed (and projected) event, or null if none arrived in time or the thread was interrupted
+     */
+    public Event<E> poll(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Event<E> event;
+        while ((event = take()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            waitingConsumer = Thread.currentThread();
+            if (head == tail) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            waitingConsumer = null;
+        }
+        List<String> projection = consumer.getProjection();
+        if (projection != null) {
+            event = EventFilter.project(event, projection);
+        }
+        consumer.consumeEvent(event);
+        return event;
+    }
+
+    /**
+     * Gets the number of events waiting in the buffer
+     * @return number of fetched events not yet polled
+     */
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * Stops the fetcher and puts the events still in the buffer back at the head of the partition
+     * @pre no thread is polling the buffer
+     * @post the partition holds every event that was fetched but never polled
+     * @return void
+     */
+    @Override
+    public void close() {
+        closed = true;
+        fetcher.interrupt();
+        // the caller may itself have been interrupted to stop it, which must not cut the join short
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                fetcher.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        List<Event<E>> unconsumed = new ArrayList<>(size());
+        Event<E> event;
+        while ((event = take()) != null) {
+            unconsumed.add(event);
+        }
+        partition.returnEvents(consumer, unconsumed);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Event<E> take() {
+        long index = head;
+        if (index == tail) {
+            return null;
+        }
+        Event<E> event = (Event<E>) ring[(int) (index & mask)];
+        ring[(int) (index & mask)] = null;
+        head = index + 1;
+        if (tail - index - 1 < refillThreshold) {
+            LockSupport.unpark(fetcher);
+        }
+        return event;
+    }
+
+    private void fetch() {
+        long lastTime = System.nanoTime();
+        long lastHead = 0;
+        double rate = 0;
+        while (!closed) {
+            int free = ring.length - size();
+            if (size() >= refillThreshold || free == 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FETCH_TIMEOUT_MS));
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            } else {
+                int wanted = Math.min(free, 2 * refillThreshold);
+                // the partition keeps the events still in the ring, in case they have to be returned
+                long first = head;
+                long held = first < tail ? offsets[(int) (first & mask)] : Long.MAX_VALUE;
+                List<Event<E>> events = partition.takeEvents(consumer, wanted, FETCH_TIMEOUT_MS, held);
+                long index = tail;
+                for (Event<E> event : events) {
+                    offsets[(int) (index & mask)] = event.getOffset();
+                    ring[(int) (index++ & mask)] = event;
+                }
+                tail = index;
+                Thread waiting = waitingConsumer;
+                if (!events.isEmpty() && waiting != null) {
+                    LockSupport.unpark(waiting);
+                }
+            }
+            // smooth the consumption rate in events per nanosecond, and refill once the
+            // buffer holds less than the target time's worth of consumption
+            long now = System.nanoTime();
+            long polled = head;
+            if (now > lastTime) {
+                rate = 0.7 * rate + 0.3 * (polled - lastHead) / (double) (now - lastTime);
+                lastTime = now;
+                lastHead = polled;
+            }
+            refillThreshold = (int) Math.min(ring.length / 2, Math.max(MIN_REFILL_THRESHOLD, rate * TARGET_NANOS));
+        }
+    }
+}
@@ -2,7 +2,9 @@ package tributary;
 
 public class Producer<E> {
     private String id;
+    private int handle;
     private ProducerStrategy producingStrategy;
+    private String strategyName;
 
     /**
      * Constructor for producer
@@ -12,15 +14,19 @@ public class Producer<E> {
      */
     public Producer(String id, String strategy) {
         this.id = id;
+        this.handle = Identifiers.intern(id);
         switch (strategy) {
             case "Random":
                 this.producingStrategy = new RandomProducer();
+                this.strategyName = "Random";
                 break;
             case "Manual":
                 this.producingStrategy = new ManualProducer();
+                this.strategyName = "Manual";
                 break;
             default:
                 this.producingStrategy = new RandomProducer();
+                this.strategyName = "Random";
                 break;
         }
     }
@@ -33,6 +39,22 @@ public class Producer<E> {
         return id;
     }
 
+    /**
+     * Gets the interned id of the producer
+     * @return handle of the producer ID
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    /**
+     * Gets the name of the allocation strategy of the producer
+     * @return Random or Manual
+     */
+    public String getStrategyName() {
+        return strategyName;
+    }
+
     /**
      * Gets the id of the partition that an event will be produced to
      * @param key specified key if the producer is a manual producer
@@ -0,0 +1,182 @@
+package tributary;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Event and byte rate quotas per producer and per topic. Usage is recorded after each
+ * produce, and the producer is given a throttle delay when it goes over a quota rather
+ * than having the produce refused. Producers and topics without a quota are not tracked.
+ */
+public class QuotaManager {
+    private Metrics metrics;
+    private Map<String, Quota> producerQuotas = new ConcurrentHashMap<>();
+    private Map<String, Quota> topicQuotas = new ConcurrentHashMap<>();
+
+    private static class Quota {
+        private TokenBucket events;
+        private TokenBucket bytes;
+        private LongAdder usedEvents;
+        private LongAdder usedBytes;
+        private LongAdder throttled;
+        private LongAdder throttleMillis;
+
+        Quota(Metrics metrics, String prefix, double eventsPerSecond, double bytesPerSecond) {
+            // a bucket holds one second of its rate, so short bursts are not throttled
+            events = eventsPerSecond > 0 ? new TokenBucket(eventsPerSecond, eventsPerSecond) : null;
+            bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+            usedEvents = metrics.counter(prefix + ".events");
+            usedBytes = metrics.counter(prefix + ".bytes");
+            throttled = metrics.counter(prefix + ".throttled");
+            throttleMillis = metrics.counter(prefix + ".throttle.ms");
+        }
+
+        long take(long numEvents, long numBytes) {
+            usedEvents.add(numEvents);
+            usedBytes.add(numBytes);
+            long delay = 0;
+            if (events != null) {
+                delay = events.take(numEvents);
+            }
+            if (bytes != null) {
+                delay = Math.max(delay, bytes.take(numBytes));
+            }
+            long millis = toMillis(delay);
+            if (millis > 0) {
+                throttled.increment();
+                throttleMillis.add(millis);
+            }
+            return millis;
+        }
+
+        long getDelay() {
+            long delay = events == null ? 0 : events.getDelay();
+            return toMillis(bytes == null ? delay : Math.max(delay, bytes.getDelay()));
+        }
+    }
+
+    /**
+     * Constructor for a quota manager
+     * @param metrics registry that quota usage is reported to
+     * @return new quota manager without any quotas
+     */
+    public QuotaManager(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the quota of a producer, across every topic it produces to. Usage is reported
+     * as the metrics quota.producer.[id].{events,bytes,throttled,throttle.ms}.
+     * @param producerId unique identifier of the producer
+     * @param eventsPerSecond events the producer may produce per second, or 0 for no limit
+     * @param bytesPerSecond payload bytes the producer may produce per second, or 0 for no limit
+     * @post the producer is throttled when it goes over either rate. if both are 0 it has no quota.
+     * @return void
+     */
+    public void setProducerQuota(String producerId, double eventsPerSecond, double bytesPerSecond) {
+        setQuota(producerQuotas, "quota.producer." + producerId, producerId, eventsPerSecond, bytesPerSecond);
+    }
+
+    /**
+     * Sets the quota of a topic, shared by every producer producing to it. Usage is reported
+     * as the metrics quota.topic.[id].{events,bytes,throttled,throttle.ms}.
+     * @param topicId unique identifier of the topic
+     * @param eventsPerSecond events that may be produced to the topic per second, or 0 for no limit
+     * @param bytesPerSecond payload bytes that may be produced to the topic per second, or 0 for no limit
+     * @post producers are throttled when the topic goes over either rate. if both are 0 it has no quota.
+     * @return void
+     */
+    public void setTopicQuota(String topicId, double eventsPerSecond, double bytesPerSecond) {
+        setQuota(topicQuotas, "quota.topic." + topicId, topicId, eventsPerSecond, bytesPerSecond);
+    }
+
+    private void setQuota(Map<String, Quota> quotas, String prefix, String id, double eventsPerSecond,
+        double bytesPerSecond) {
+        if (eventsPerSecond < 0 || bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Quota rates cannot be negative");
+        }
+        if (eventsPerSecond == 0 && bytesPerSecond == 0) {
+            quotas.remove(id);
+            metrics.remove(prefix + ".");
+            return;
+        }
+        quotas.put(id, new Quota(metrics, prefix, eventsPerSecond, bytesPerSecond));
+    }
+
+    /**
+     * Records events produced by a producer to a topic
+     * @param producerId unique identifier of the producer
+     * @param topicId unique identifier of the topic
+     * @param numEvents number of events produced
+     * @param numBytes number of payload bytes produced
+     * @return milliseconds the producer should wait before producing again, or 0
+     */
+    public long record(String producerId, String topicId, long numEvents, long numBytes) {
+        Quota producerQuota = producerQuotas.get(producerId);
+        Quota topicQuota = topicQuotas.get(topicId);
+        long delay = producerQuota == null ? 0 : producerQuota.take(numEvents, numBytes);
+        return topicQuota == null ? delay : Math.max(delay, topicQuota.take(numEvents, numBytes));
+    }
+
+    /**
+     * Records the values of events produced by a producer to a topic. The payload
+     * sizes are only worked out if the producer or topic has a quota.
+     * @param producerId unique identifier of the producer
+     * @param topicId unique identifier of the topic
+     * @param values payloads of the events produced
+     * @return milliseconds the producer should wait before producing again, or 0
+     */
+    public long record(String producerId, String topicId, List<?> values) {
+        if (!producerQuotas.containsKey(producerId) && !topicQuotas.containsKey(topicId)) {
+            return 0;
+        }
+        long numBytes = 0;
+        for (Object value : values) {
+            numBytes += sizeOf(value);
+        }
+        return record(producerId, topicId, values.size(), numBytes);
+    }
+
+    /**
+     * Gets how long a producer should wait before producing to a topic, without recording anything
+     * @param producerId unique identifier of the producer
+     * @param topicId unique identifier of the topic
+     * @return milliseconds to wait, or 0
+     */
+    public long getThrottleMillis(String producerId, String topicId) {
+        Quota producerQuota = producerQuotas.get(producerId);
+        Quota topicQuota = topicQuotas.get(topicId);
+        long delay = producerQuota == null ? 0 : producerQuota.getDelay();
+        return topicQuota == null ? delay : Math.max(delay, topicQuota.getDelay());
+    }
+
+    /**
+     * Works out the number of bytes a payload counts for against a byte quota
+     * @param value payload of an event
+     * @return size of the payload in bytes
+     */
+    public static long sizeOf(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof Integer) {
+            return Integer.BYTES;
+        } else if (value instanceof Long || value instanceof Double) {
+            return Long.BYTES;
+        } else if (value instanceof Boolean) {
+            return 1;
+        } else if (value instanceof JSONObject) {
+            return value.toString().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return String.valueOf(value).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static long toMillis(long nanos) {
+        return (nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -1,11 +1,17 @@
 package tributary;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class Range<E> implements RebalanceStrategy<E> {
     public Range() {
     }
 
-    public void rebalance(Topic<E> topic, ConsumerGroup<E> group) {
-        group.resetConsumerAllocations();
+    public Map<Consumer<E>, List<Partition<E>>> rebalance(Topic<E> topic, ConsumerGroup<E> group) {
+        Map<Consumer<E>, List<Partition<E>>> plan = new LinkedHashMap<>();
+        group.getConsumers().forEach(consumer -> plan.put(consumer, new ArrayList<>()));
         int numConsumers = group.getConsumers().size();
         int numPartitions = topic.getPartitions().size();
         int numPartPerCons = numPartitions / numConsumers;
@@ -16,7 +22,7 @@ public class Range<E> implements RebalanceStrategy<E> {
         int counterCons = 0;
         for (int i = 0; i < numPartitions; i++) {
             Consumer<E> consumer = group.getConsumers().get(counterCons);
-            consumer.addPartition(topic.getPartitions().get(i));
+            plan.get(consumer).add(topic.getPartitions().get(i));
             counterParts++;
             if (counterParts == numPartPerCons) {
                 if (counterCons == 0 && numPartitions % numConsumers != 0) {
@@ -26,6 +32,16 @@ public class Range<E> implements RebalanceStrategy<E> {
                 counterCons++;
             }
         }
-        return;
+        return plan;
+    }
+
+    public Consumer<E> assignNewPartition(Topic<E> topic, ConsumerGroup<E> group, Partition<E> partition) {
+        Consumer<E> leastLoaded = group.getConsumers().get(0);
+        for (Consumer<E> consumer : group.getConsumers()) {
+            if (consumer.getPartitions().size() < leastLoaded.getPartitions().size()) {
+                leastLoaded = consumer;
+            }
+        }
+        return leastLoaded;
     }
 }
@@ -1,5 +1,26 @@
 package tributary;
 
+import java.util.List;
+import java.util.Map;
+
 public interface RebalanceStrategy<E> {
-    public void rebalance(Topic<E> topic, ConsumerGroup<E> group);
+    /**
+     * Plans an allocation of every partition of a topic to the consumers of a group.
+     * Consumers are not changed; the group publishes the plan as a whole.
+     * @param topic topic whose partitions are allocated
+     * @param group group whose consumers receive the partitions
+     * @pre the group has at least one consumer
+     * @return partitions planned for each consumer of the group
+     */
+    public Map<Consumer<E>, List<Partition<E>>> rebalance(Topic<E> topic, ConsumerGroup<E> group);
+
+    /**
+     * Chooses the consumer a partition newly added to a topic is allocated to
+     * @param topic topic the partition was added to
+     * @param group group whose consumers may receive the partition
+     * @param partition the newly added partition
+     * @pre the group has at least one consumer
+     * @return consumer the partition should be allocated to
+     */
+    public Consumer<E> assignNewPartition(Topic<E> topic, ConsumerGroup<E> group, Partition<E> partition);
 }
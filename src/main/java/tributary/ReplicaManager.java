@@ -0,0 +1,320 @@
+package tributary;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ReplicaManager {
+    private String nodeId;
+    private Tributary tributary;
+    private ReplicationTransport transport;
+    private Map<String, Replica> replicas = new ConcurrentHashMap<>();
+    private long maxLagMillis = 10000;
+    private int fetchSize = 500;
+    private volatile Thread fetcher;
+
+    private static class Replica {
+        private String topicId;
+        private Partition<?> partition;
+        private String leaderId;
+        private int minInSyncReplicas;
+        private Map<String, Follower> followers = new HashMap<>();
+        private Set<String> inSync = new HashSet<>();
+        private long highWatermark;
+    }
+
+    private static class Follower {
+        private long fetchOffset;
+        private long lastCaughtUp = Long.MIN_VALUE;
+        private long previousLogEnd = Long.MAX_VALUE;
+        private long previousFetchTime;
+    }
+
+    /**
+     * Constructor for the replica manager of one tributary node
+     * @param nodeId unique identifier of the node
+     * @param tributary tributary system holding this node's partitions
+     * @param transport transport used to fetch from leaders on other nodes
+     * @return new replica manager
+     */
+    public ReplicaManager(String nodeId, Tributary tributary, ReplicationTransport transport) {
+        this.nodeId = nodeId;
+        this.tributary = tributary;
+        this.transport = transport;
+    }
+
+    /**
+     * Gets the id of this node
+     * @return String corresponding to node ID
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Sets how long a follower may go without catching up to the leader before
+     * it is removed from the in-sync replica set
+     * @param maxLagMillis maximum lag in milliseconds
+     * @post followers are dropped from the in-sync set after maxLagMillis without catching up
+     * @return void
+     */
+    public void setMaxLagMillis(long maxLagMillis) {
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    /**
+     * Makes this node the leader of a partition. Followers start out of sync and
+     * join the in-sync set once they have fetched up to the end of the log.
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition
+     * @param followerIds ids of the nodes replicating the partition
+     * @param minInSyncReplicas number of in-sync replicas, including the leader, required to accept a produce
+     * @pre the partition exists on this node
+     * @post this node serves fetches for the partition and accepts replicated produces to it
+     * @return void
+     */
+    public void becomeLeader(String topicId, String partitionId, List<String> followerIds, int minInSyncReplicas) {
+        Replica replica = new Replica();
+        replica.topicId = topicId;
+        replica.partition = tributary.getTopic(topicId).getPartition(partitionId);
+        replica.minInSyncReplicas = minInSyncReplicas;
+        replica.highWatermark = replica.partition.getNextOffset();
+        followerIds.forEach(follower -> replica.followers.put(follower, new Follower()));
+        replicas.put(key(topicId, partitionId), replica);
+    }
+
+    /**
+     * Makes this node a follower of a partition led by another node
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition
+     * @param leaderId id of the node leading the partition
+     * @pre the partition exists on this node
+     * @post the partition is fetched from the leader by every later call to replicate
+     * @return void
+     */
+    public void becomeFollower(String topicId, String partitionId, String leaderId) {
+        Replica replica = new Replica();
+        replica.topicId = topicId;
+        replica.partition = tributary.getTopic(topicId).getPartition(partitionId);
+        replica.leaderId = leaderId;
+        replicas.put(key(topicId, partitionId), replica);
+    }
+
+    /**
+     * Serves a fetch from a follower. The offset a follower fetches from tells the
+     * leader how far it has replicated, which decides the in-sync set and how far
+     * the high watermark can advance. A follower counts as caught up if it has
+     * reached the end of the log, or the point the log ended at its previous fetch.
+     * @param followerId id of the fetching node
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition
+     * @param fromOffset offset of the first event the follower does not have
+     * @param maxEvents maximum number of events to return
+     * @pre this node leads the partition
+     * @return events from fromOffset onwards
+     */
+    public List<Event<?>> handleFetch(String followerId, String topicId, String partitionId, long fromOffset,
+        int maxEvents) {
+        Replica replica = replicas.get(key(topicId, partitionId));
+        if (replica == null || replica.leaderId != null) {
+            throw new IllegalStateException("Node " + nodeId + " does not lead " + topicId + "/" + partitionId);
+        }
+        List<Event<?>> events = new ArrayList<>(replica.partition.getEvents(fromOffset, maxEvents));
+        synchronized (replica) {
+            Follower follower = replica.followers.computeIfAbsent(followerId, f -> new Follower());
+            long now = System.currentTimeMillis();
+            long logEnd = replica.partition.getNextOffset();
+            follower.fetchOffset = fromOffset;
+            if (fromOffset >= logEnd) {
+                follower.lastCaughtUp = now;
+            } else if (fromOffset >= follower.previousLogEnd) {
+                follower.lastCaughtUp = Math.max(follower.lastCaughtUp, follower.previousFetchTime);
+            }
+            follower.previousLogEnd = logEnd;
+            follower.previousFetchTime = now;
+            update(replica);
+        }
+        return events;
+    }
+
+    /**
+     * Fetches once from the leader of every partition this node follows. A follower that
+     * has fallen behind the start of the leader's log, e.g. because leader retention
+     * discarded the events it still needs, can never fill the gap, so it discards its own
+     * log and continues from the leader's log start. Each reset is counted in the metric
+     * "replica.[topic].[partition].resets".
+     * @post every reachable follower partition has appended the events its leader returned
+     * @return number of events appended
+     */
+    public int replicate() {
+        int appended = 0;
+        for (Replica replica : replicas.values()) {
+            if (replica.leaderId == null) {
+                continue;
+            }
+            Partition<?> partition = replica.partition;
+            try {
+                List<Event<?>> events = transport.fetch(replica.leaderId, nodeId, replica.topicId,
+                    partition.getId(), partition.getNextOffset(), fetchSize);
+                if (!events.isEmpty() && events.get(0).getOffset() > partition.getNextOffset()) {
+                    reset(replica, events.get(0).getOffset());
+                }
+                appended += partition.appendReplicated(events);
+            } catch (IllegalStateException e) {
+                continue;
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * Starts fetching from leaders continuously on a background thread
+     * @param idleMillis time to wait after a fetch that returned nothing
+     * @post this node's follower partitions are kept up to date until stop is called
+     * @return void
+     */
+    public synchronized void start(long idleMillis) {
+        if (fetcher != null) {
+            return;
+        }
+        fetcher = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (replicate() == 0) {
+                    try {
+                        Thread.sleep(idleMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "replica-fetcher-" + nodeId);
+        fetcher.setDaemon(true);
+        fetcher.start();
+    }
+
+    /**
+     * Stops the background fetcher
+     * @post this node no longer fetches from leaders
+     * @return void
+     */
+    public synchronized void stop() {
+        if (fetcher != null) {
+            fetcher.interrupt();
+            fetcher = null;
+        }
+    }
+
+    /**
+     * Produces an event to a partition this node leads and waits until every
+     * in-sync replica has it. Fails if fewer than the minimum number of replicas
+     * are in sync, either before the event is appended or while waiting for it.
+     * @param producerId unique identifier of the producer
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition
+     * @param value payload of the event
+     * @param timeoutMillis longest time to wait for the in-sync replicas
+     * @pre this node leads the partition
+     * @post the event is in the leader's log and, if acknowledged, in the log of every in-sync replica
+     * @return the acknowledged event
+     */
+    public Event<?> produce(String producerId, String topicId, String partitionId, Object value, long timeoutMillis) {
+        Replica replica = replicas.get(key(topicId, partitionId));
+        if (replica == null || replica.leaderId != null) {
+            throw new IllegalStateException("Node " + nodeId + " does not lead " + topicId + "/" + partitionId);
+        }
+        synchronized (replica) {
+            update(replica);
+            if (replica.inSync.size() + 1 < replica.minInSyncReplicas) {
+                throw new IllegalStateException("Not enough in-sync replicas for " + topicId + "/" + partitionId);
+            }
+        }
+        Event<?> event = tributary.getTopic(topicId).addValue(producerId, value, partitionId);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (replica) {
+            while (replica.highWatermark <= event.getOffset()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IllegalStateException("Event " + event.getId() + " was not acknowledged in time");
+                }
+                try {
+                    replica.wait(Math.min(remaining, 50));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for acknowledgement of " + event.getId());
+                }
+                update(replica);
+            }
+            if (replica.inSync.size() + 1 < replica.minInSyncReplicas) {
+                throw new IllegalStateException("Not enough in-sync replicas for " + topicId + "/"
+                    + partitionId + " after producing " + event.getId());
+            }
+        }
+        return event;
+    }
+
+    /**
+     * Gets the in-sync followers of a partition this node leads
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition
+     * @pre this node leads the partition
+     * @return ids of the followers currently in sync
+     */
+    public Set<String> getInSyncReplicas(String topicId, String partitionId) {
+        Replica replica = replicas.get(key(topicId, partitionId));
+        synchronized (replica) {
+            update(replica);
+            return new HashSet<>(replica.inSync);
+        }
+    }
+
+    /**
+     * Gets the offset up to which every in-sync replica of a partition has replicated
+     * @param topicId unique identifier of the topic
+     * @param partitionId unique identifier of the partition
+     * @pre this node leads the partition
+     * @return high watermark, the offset after the last acknowledged event
+     */
+    public long getHighWatermark(String topicId, String partitionId) {
+        Replica replica = replicas.get(key(topicId, partitionId));
+        synchronized (replica) {
+            update(replica);
+            return replica.highWatermark;
+        }
+    }
+
+    private void reset(Replica replica, long leaderStartOffset) {
+        Partition<?> partition = replica.partition;
+        long behind = partition.getNextOffset();
+        partition.resetTo(leaderStartOffset);
+        tributary.getMetrics().counter("replica." + replica.topicId + "." + partition.getId() + ".resets")
+            .increment();
+        System.out.println("Replica of " + key(replica.topicId, partition.getId()) + " on node " + nodeId
+            + " was reset from offset " + behind + " to the leader's log start " + leaderStartOffset);
+    }
+
+    private void update(Replica replica) {
+        long now = System.currentTimeMillis();
+        long logEnd = replica.partition.getNextOffset();
+        replica.inSync.clear();
+        long highWatermark = logEnd;
+        for (Map.Entry<String, Follower> entry : replica.followers.entrySet()) {
+            Follower follower = entry.getValue();
+            if (follower.lastCaughtUp != Long.MIN_VALUE && now - follower.lastCaughtUp <= maxLagMillis) {
+                replica.inSync.add(entry.getKey());
+                highWatermark = Math.min(highWatermark, follower.fetchOffset);
+            }
+        }
+        if (highWatermark > replica.highWatermark) {
+            replica.highWatermark = highWatermark;
+            replica.notifyAll();
+        }
+    }
+
+    private static String key(String topicId, String partitionId) {
+        return topicId + "/" + partitionId;
+    }
+}
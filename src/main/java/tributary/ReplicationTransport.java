@@ -0,0 +1,8 @@
+package tributary;
+
+import java.util.List;
+
+public interface ReplicationTransport {
+    public List<Event<?>> fetch(String leaderId, String followerId, String topicId, String partitionId,
+        long fromOffset, int maxEvents);
+}
@@ -1,19 +1,30 @@
 package tributary;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class RoundRobin<E> implements RebalanceStrategy<E> {
 
     public RoundRobin() {
     }
 
-    public void rebalance(Topic<E> topic, ConsumerGroup<E> group) {
-        group.resetConsumerAllocations();
+    public Map<Consumer<E>, List<Partition<E>>> rebalance(Topic<E> topic, ConsumerGroup<E> group) {
+        Map<Consumer<E>, List<Partition<E>>> plan = new LinkedHashMap<>();
+        group.getConsumers().forEach(consumer -> plan.put(consumer, new ArrayList<>()));
         int numConsumers = group.getConsumers().size();
         int numPartitions = topic.getPartitions().size();
         for (int i = 0; i < numPartitions; i++) {
             Consumer<E> consumer = group.getConsumers().get(i % numConsumers);
-            consumer.addPartition(topic.getPartitions().get(i));
+            plan.get(consumer).add(topic.getPartitions().get(i));
         }
-        return;
+        return plan;
+    }
+
+    public Consumer<E> assignNewPartition(Topic<E> topic, ConsumerGroup<E> group, Partition<E> partition) {
+        int index = topic.getPartitions().indexOf(partition);
+        return group.getConsumers().get(index % group.getConsumers().size());
     }
 
 }
@@ -0,0 +1,28 @@
+package tributary;
+
+import java.io.IOException;
+
+public interface SegmentStore {
+    /**
+     * Stores a segment, replacing any segment with the same name
+     * @param name name of the segment, unique within the store
+     * @param data contents of the segment
+     * @return void
+     */
+    public void put(String name, byte[] data) throws IOException;
+
+    /**
+     * Gets the contents of a stored segment
+     * @param name name of the segment
+     * @pre a segment with the name has been stored and not deleted
+     * @return contents of the segment
+     */
+    public byte[] get(String name) throws IOException;
+
+    /**
+     * Deletes a stored segment. Deleting a segment that does not exist does nothing.
+     * @param name name of the segment
+     * @return void
+     */
+    public void delete(String name) throws IOException;
+}
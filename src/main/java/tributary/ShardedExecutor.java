@@ -0,0 +1,152 @@
+package tributary;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Runs every operation on a partition on one event loop thread, its shard, with one
+ * shard per core. Operations are handed to a shard through a lock-free queue, so callers
+ * never wait on each other, and each partition's state is only touched by one thread and
+ * stays in that core's cache. Partitions are spread over the shards in the order they are
+ * first used. A shard must not block, so operations submitted to it should not wait for events.
+ */
+public class ShardedExecutor implements AutoCloseable {
+    private Shard[] shards;
+    private Map<Partition<?>, Shard> owners = new ConcurrentHashMap<>();
+    private AtomicInteger nextShard = new AtomicInteger();
+    private volatile boolean running = true;
+
+    private class Shard implements Runnable {
+        private int index;
+        private MpscQueue<Runnable> tasks = new MpscQueue<>();
+        private volatile boolean sleeping = false;
+        private Thread thread;
+        private LongAdder executed;
+
+        Shard(int index, Metrics metrics) {
+            this.index = index;
+            executed = metrics.counter("shard." + index + ".tasks");
+            thread = new Thread(this, "shard-" + index);
+            thread.setDaemon(true);
+        }
+
+        void submit(Runnable task) {
+            tasks.offer(task);
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = tasks.poll();
+                if (task != null) {
+                    task.run();
+                    executed.increment();
+                } else if (!tasks.isEmpty()) {
+                    // a producer has swapped in its node but not linked it yet
+                    Thread.onSpinWait();
+                } else if (!running) {
+                    return;
+                } else {
+                    // checked again after sleeping is set, so a task offered meanwhile is not missed
+                    sleeping = true;
+                    if (tasks.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor for a sharded executor, starting its event loop threads
+     * @param numShards number of event loop threads, or 0 for one per available core
+     * @param metrics registry that the tasks run by each shard are counted in, as shard.[index].tasks
+     * @return new running executor
+     */
+    public ShardedExecutor(int numShards, Metrics metrics) {
+        int count = numShards > 0 ? numShards : Runtime.getRuntime().availableProcessors();
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i, metrics);
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * Gets the number of event loop threads
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Gets the index of the shard that runs every operation on a partition
+     * @param partition the partition
+     * @return index of its shard, from 0 up to the number of shards
+     */
+    public int shardOf(Partition<?> partition) {
+        return ownerOf(partition).index;
+    }
+
+    /**
+     * Runs an operation on the shard owning a partition. Operations submitted for the same
+     * partition from one thread run in the order they were submitted.
+     * @param partition partition the operation acts on
+     * @param operation operation to run, which must not block
+     * @return future completing with the result of the operation, or exceptionally with what it threw
+     * or with an IllegalStateException if the executor has been closed
+     */
+    public <T> CompletableFuture<T> submit(Partition<?> partition, Supplier<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("Sharded executor has been closed"));
+            return future;
+        }
+        ownerOf(partition).submit(() -> {
+            try {
+                future.complete(operation.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private Shard ownerOf(Partition<?> partition) {
+        return owners.computeIfAbsent(partition,
+            p -> shards[Math.floorMod(nextShard.getAndIncrement(), shards.length)]);
+    }
+
+    /**
+     * Stops every event loop thread once the operations already submitted have run
+     * @post later operations fail
+     * @return void
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package tributary;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class Snapshot {
+    private static final int MAGIC = 0x54524942;
+    private static final int VERSION = 6;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte STRING = 0;
+    private static final byte INTEGER = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte BYTES = 5;
+    private static final byte JSON = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DECIMAL = 8;
+    private static final byte BIG_INTEGER = 9;
+    private static final byte JSON_ARRAY = 10;
+    private static final byte JSON_NULL = 11;
+
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private Snapshot(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Writes the complete state of a tributary system to a binary snapshot file.
+     * The file is written sequentially through a single channel into a temporary
+     * file which then replaces the target, so a crash never leaves a partial snapshot.
+     * @param tributary system to be written
+     * @param fileName path of the snapshot file
+     * @pre the directory of fileName exists and is writable
+     * @post fileName contains every topic, partition, event, group, consumer and producer
+     * @return size of the snapshot in bytes
+     */
+    public static long write(Tributary tributary, String fileName) {
+        Path target = Paths.get(fileName).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Snapshot snapshot = new Snapshot(channel);
+            snapshot.writeTributary(tributary);
+            snapshot.flush();
+            channel.force(true);
+            long size = channel.size();
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return size;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(fileName + " could not be written!", e);
+        }
+    }
+
+    /**
+     * Reads a snapshot file into a tributary system in a single pass over a
+     * memory-mapped view of the file. Event values are not decoded until they
+     * are first read.
+     * @param tributary empty system to be filled with the snapshot state
+     * @param fileName path of the snapshot file
+     * @pre fileName was written by write and is smaller than 2GB
+     * @post tributary contains every topic, partition, event, group, consumer and producer in the snapshot
+     * @return void
+     */
+    public static void read(Tributary tributary, String fileName) {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(fileName + " is too large to be restored!");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            readTributary(tributary, mapped);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(fileName + " could not be loaded!", e);
+        }
+    }
+
+    private void writeTributary(Tributary tributary) throws IOException {
+        writeInt(MAGIC);
+        writeInt(VERSION);
+        List<Topic<?>> topics = new ArrayList<>(tributary.getTopics());
+        writeInt(topics.size());
+        for (Topic<?> topic : topics) {
+            writeTopic(topic);
+        }
+        List<Producer<?>> producers = new ArrayList<>(tributary.getProducers());
+        writeInt(producers.size());
+        for (Producer<?> producer : producers) {
+            writeString(producer.getId());
+            writeString(producer.getStrategyName());
+        }
+    }
+
+    private <E> void writeTopic(Topic<E> topic) throws IOException {
+        writeString(topic.getId());
+        writeInt(topic.isOffHeap() ? 1 : 0);
+        writeLong(topic.getRetention());
+        writeInt(topic.isEventIndexed() ? 1 : 0);
+        writeInt(topic.isDeduplicated() ? 1 : 0);
+        writeInt(topic.isTiered() ? 1 : 0);
+        if (topic.isTiered()) {
+            if (!(topic.getTierStore() instanceof DirectorySegmentStore)) {
+                throw new IllegalStateException("Topic " + topic.getId()
+                    + " archives to a segment store that cannot be checkpointed!");
+            }
+            writeString(((DirectorySegmentStore) topic.getTierStore()).getDirectory());
+            writeLong(topic.getTierAfterMillis());
+            writeInt(topic.getTierSegmentEvents());
+        }
+        List<Partition<E>> partitions = new ArrayList<>(topic.getPartitions());
+        writeInt(partitions.size());
+        for (Partition<E> partition : partitions) {
+            List<Event<E>> log;
+            List<Event<E>> queue;
+            List<long[]> archived;
+            long logStartOffset;
+            long nextOffset;
+            synchronized (partition) {
+                logStartOffset = partition.getLogStartOffset();
+                nextOffset = partition.getNextOffset();
+                log = partition.getEvents(logStartOffset, (int) (nextOffset - logStartOffset));
+                queue = new ArrayList<>(partition.getQueue());
+                archived = partition.getArchivedSegments();
+            }
+            writeString(partition.getId());
+            writeLong(logStartOffset);
+            writeLong(nextOffset);
+            // archived events are written as well, so indexes are rebuilt over the whole log on restore
+            writeInt(archived.size());
+            for (long[] segment : archived) {
+                writeLong(segment[0]);
+                writeLong(segment[1]);
+                writeLong(segment[2]);
+            }
+            writeEvents(log);
+            writeInt(queue.size());
+            for (Event<E> event : queue) {
+                writeLong(event.getOffset());
+            }
+        }
+        List<ConsumerGroup<E>> groups = new ArrayList<>(topic.getConsumerGroups());
+        writeInt(groups.size());
+        for (ConsumerGroup<E> group : groups) {
+            writeString(group.getId());
+            writeString(group.getRebalancingStrategyName());
+            Map<String, Long> committed = new HashMap<>(group.getCommittedOffsets());
+            writeInt(committed.size());
+            for (Map.Entry<String, Long> entry : committed.entrySet()) {
+                writeString(entry.getKey());
+                writeLong(entry.getValue());
+            }
+            List<Consumer<E>> consumers = new ArrayList<>(group.getConsumers());
+            writeInt(consumers.size());
+            for (Consumer<E> consumer : consumers) {
+                List<Partition<E>> assigned;
+                List<Event<E>> consumed;
+                synchronized (consumer) {
+                    assigned = new ArrayList<>(consumer.getPartitions());
+                    consumed = new ArrayList<>(consumer.getEventsConsumed());
+                }
+                writeString(consumer.getId());
+                writeInt(assigned.size());
+                for (Partition<E> partition : assigned) {
+                    writeString(partition.getId());
+                }
+                writeEvents(consumed);
+            }
+        }
+    }
+
+    private <E> void writeEvents(List<Event<E>> events) throws IOException {
+        writeInt(events.size());
+        for (Event<E> event : events) {
+            writeString(event.getId());
+            writeString(event.getPayloadType());
+            writeString(event.getSource());
+            writeString(event.getKey());
+            writeLong(event.getOffset());
+            LocalDateTime created = event.getCreationDate();
+            writeLong(created.toEpochSecond(ZoneOffset.UTC));
+            writeInt(created.getNano());
+            ByteBuffer encoded = event.getEncodedValue();
+            if (encoded == null) {
+                encoded = encodeValue(event.getValue());
+            }
+            writeInt(encoded.remaining());
+            writeBytes(encoded);
+        }
+    }
+
+    private static void readTributary(Tributary tributary, ByteBuffer in) {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IllegalArgumentException("Not a tributary snapshot!");
+        }
+        int numTopics = in.getInt();
+        for (int i = 0; i < numTopics; i++) {
+            Topic<Object> topic = new Topic<>(readString(in), tributary.getMetrics());
+            topic.setOffHeap(in.getInt() != 0);
+            topic.setMemoryAccountant(tributary.getMemory());
+            topic.setRetention(in.getLong());
+            if (in.getInt() != 0) {
+                // the index is rebuilt as the events of each partition are read
+                topic.enableEventIndex();
+            }
+            if (in.getInt() != 0) {
+                topic.setPayloadStore(tributary.getPayloads());
+            }
+            if (in.getInt() != 0) {
+                String directory = readString(in);
+                long tierAfterMillis = in.getLong();
+                topic.setTiering(new DirectorySegmentStore(directory), tierAfterMillis, in.getInt());
+            }
+            tributary.getTopics().add(topic);
+            readTopic(topic, in);
+        }
+        int numProducers = in.getInt();
+        for (int i = 0; i < numProducers; i++) {
+            String id = readString(in);
+            tributary.getProducers().add(new Producer<Object>(id, readString(in)));
+        }
+    }
+
+    private static void readTopic(Topic<Object> topic, ByteBuffer in) {
+        int numPartitions = in.getInt();
+        for (int i = 0; i < numPartitions; i++) {
+            Partition<Object> partition = topic.addPartition(readString(in));
+            long logStartOffset = in.getLong();
+            long nextOffset = in.getLong();
+            int numArchived = in.getInt();
+            List<long[]> archived = new ArrayList<>(numArchived);
+            for (int j = 0; j < numArchived; j++) {
+                archived.add(new long[] {in.getLong(), in.getLong(), in.getLong()});
+            }
+            List<Event<Object>> log = readEvents(in);
+            int numWaiting = in.getInt();
+            List<Long> queueOffsets = new ArrayList<>(numWaiting);
+            for (int j = 0; j < numWaiting; j++) {
+                queueOffsets.add(in.getLong());
+            }
+            partition.restoreEvents(log, logStartOffset, nextOffset, queueOffsets);
+            if (!archived.isEmpty()) {
+                partition.restoreArchivedSegments(archived);
+            }
+        }
+        int numGroups = in.getInt();
+        for (int i = 0; i < numGroups; i++) {
+            String groupId = readString(in);
+            ConsumerGroup<Object> group = topic.addConsumerGroup(groupId, readString(in));
+            int numCommitted = in.getInt();
+            for (int j = 0; j < numCommitted; j++) {
+                String partitionId = readString(in);
+                group.commitOffset(partitionId, in.getLong());
+            }
+            int numConsumers = in.getInt();
+            for (int j = 0; j < numConsumers; j++) {
+                Consumer<Object> consumer = group.addConsumer(readString(in));
+                int numAssigned = in.getInt();
+                for (int k = 0; k < numAssigned; k++) {
+                    consumer.addPartition(topic.getPartition(readString(in)));
+                }
+                consumer.getEventsConsumed().addAll(readEvents(in));
+            }
+        }
+    }
+
+    private static List<Event<Object>> readEvents(ByteBuffer in) {
+        int numEvents = in.getInt();
+        List<Event<Object>> events = new ArrayList<>(numEvents);
+        for (int i = 0; i < numEvents; i++) {
+            String id = readString(in);
+            String payloadType = readString(in);
+            String source = readString(in);
+            String key = readString(in);
+            long offset = in.getLong();
+            long seconds = in.getLong();
+            int nanos = in.getInt();
+            LocalDateTime created = LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+            int length = in.getInt();
+            ByteBuffer encoded = in.slice(in.position(), length);
+            in.position(in.position() + length);
+            Event<Object> event = new Event<>(id, payloadType, source, key, created, encoded);
+            event.setOffset(offset);
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * Encodes an event value as a type tag followed by its bytes, so it decodes to the same type
+     * @param value value of an event
+     * @return buffer containing the encoded value
+     * @throws IllegalArgumentException if values of the type cannot be encoded
+     */
+    public static ByteBuffer encodeValue(Object value) {
+        byte[] bytes;
+        byte tag;
+        if (value instanceof Integer) {
+            return ByteBuffer.allocate(5).put(INTEGER).putInt((Integer) value).flip();
+        } else if (value instanceof Long) {
+            return ByteBuffer.allocate(9).put(LONG).putLong((Long) value).flip();
+        } else if (value instanceof Double) {
+            return ByteBuffer.allocate(9).put(DOUBLE).putDouble((Double) value).flip();
+        } else if (value instanceof Float) {
+            return ByteBuffer.allocate(5).put(FLOAT).putFloat((Float) value).flip();
+        } else if (value instanceof Boolean) {
+            return ByteBuffer.allocate(2).put(BOOLEAN).put((byte) ((Boolean) value ? 1 : 0)).flip();
+        } else if (value == JSONObject.NULL) {
+            return ByteBuffer.allocate(1).put(JSON_NULL).flip();
+        } else if (value instanceof byte[]) {
+            tag = BYTES;
+            bytes = (byte[]) value;
+        } else if (value instanceof String) {
+            tag = STRING;
+            bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+        } else if (value instanceof JSONObject || value instanceof JSONArray || value instanceof BigDecimal
+            || value instanceof BigInteger) {
+            tag = value instanceof JSONObject ? JSON
+                : value instanceof JSONArray ? JSON_ARRAY
+                : value instanceof BigDecimal ? DECIMAL : BIG_INTEGER;
+            bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        } else {
+            String type = value == null ? "null" : value.getClass().getName();
+            throw new IllegalArgumentException("Values of type " + type + " cannot be encoded!");
+        }
+        return ByteBuffer.allocate(1 + bytes.length).put(tag).put(bytes).flip();
+    }
+
+    /**
+     * Decodes an event value encoded by encodeValue
+     * @param encoded buffer containing exactly one encoded value
+     * @return the decoded value
+     */
+    public static Object decodeValue(ByteBuffer encoded) {
+        byte tag = encoded.get();
+        switch (tag) {
+            case INTEGER:
+                return encoded.getInt();
+            case LONG:
+                return encoded.getLong();
+            case DOUBLE:
+                return encoded.getDouble();
+            case FLOAT:
+                return encoded.getFloat();
+            case BOOLEAN:
+                return encoded.get() != 0;
+            case JSON_NULL:
+                return JSONObject.NULL;
+            default:
+                byte[] bytes = new byte[encoded.remaining()];
+                encoded.get(bytes);
+                if (tag == BYTES) {
+                    return bytes;
+                }
+                String text = new String(bytes, StandardCharsets.UTF_8);
+                switch (tag) {
+                    case JSON:
+                        return new JSONObject(text);
+                    case JSON_ARRAY:
+                        return new JSONArray(text);
+                    case DECIMAL:
+                        return new BigDecimal(text);
+                    case BIG_INTEGER:
+                        return new BigInteger(text);
+                    default:
+                        return text;
+                }
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        writeBytes(ByteBuffer.wrap(bytes));
+    }
+
+    private void writeInt(int value) throws IOException {
+        ensure(Integer.BYTES);
+        buffer.putInt(value);
+    }
+
+    private void writeLong(long value) throws IOException {
+        ensure(Long.BYTES);
+        buffer.putLong(value);
+    }
+
+    private void writeBytes(ByteBuffer bytes) throws IOException {
+        bytes = bytes.duplicate();
+        if (bytes.remaining() > buffer.capacity()) {
+            flush();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            return;
+        }
+        ensure(bytes.remaining());
+        buffer.put(bytes);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
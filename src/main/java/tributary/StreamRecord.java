@@ -0,0 +1,44 @@
+package tributary;
+
+public class StreamRecord {
+    private String key;
+    private Object value;
+    private long timestamp;
+
+    /**
+     * Constructor for a record flowing between the operators of an event stream
+     * @param key partitioning key of the record, or null
+     * @param value value of the record
+     * @param timestamp event time of the record in milliseconds since the epoch
+     * @return new stream record
+     */
+    public StreamRecord(String key, Object value, long timestamp) {
+        this.key = key;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Gets the key of the record
+     * @return partitioning key, or null if the record has no key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the value of the record
+     * @return value of the record
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the event time of the record
+     * @return milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,322 @@
+package tributary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An event log in two tiers. Recent events are kept in a hot log (on or off the heap),
+ * and older events are moved in fixed size segments to a segment store, compressed.
+ * Reading an archived event fetches and decompresses its whole segment, and the last
+ * few segments read are cached, so playing back archived history costs one fetch per
+ * segment rather than per event.
+ */
+public class TieredEventLog<E> implements EventLog<E> {
+    /** Default number of events in each archived segment */
+    public static final int SEGMENT_EVENTS = 1024;
+    private static final int CACHED_SEGMENTS = 4;
+
+    private EventLog<E> hot;
+    private SegmentStore store;
+    private String name;
+    private long tierAfterMillis;
+    private int segmentEvents;
+    private List<Segment> archived = new ArrayList<>();
+    private long archivedBytes = 0;
+    private Map<Long, List<Event<E>>> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, List<Event<E>>> eldest) {
+            return size() > CACHED_SEGMENTS;
+        }
+    };
+
+    private static class Segment {
+        private long baseOffset;
+        private long endOffset;
+        private String name;
+        private int bytes;
+    }
+
+    /**
+     * Constructor for a tiered log over an existing hot log
+     * @param hot log holding the recent events, which keeps every event it already holds
+     * @param store store the archived segments are written to
+     * @param name prefix of the names of this log's segments, unique within the store
+     * @param tierAfterMillis age of the newest event of a segment after which it may be archived
+     * @param segmentEvents number of events in each archived segment
+     * @return new tiered log, with nothing archived yet
+     */
+    public TieredEventLog(EventLog<E> hot, SegmentStore store, String name, long tierAfterMillis, int segmentEvents) {
+        this.hot = hot;
+        this.store = store;
+        this.name = name;
+        this.tierAfterMillis = tierAfterMillis;
+        this.segmentEvents = Math.max(1, segmentEvents);
+    }
+
+    @Override
+    public void append(Event<E> event) {
+        hot.append(event);
+    }
+
+    @Override
+    public Event<E> get(long offset) {
+        if (offset >= hot.getStartOffset()) {
+            return hot.get(offset);
+        }
+        Segment segment = segmentOf(offset);
+        List<Event<E>> events = cache.get(segment.baseOffset);
+        if (events == null) {
+            try {
+                events = decode(store.get(segment.name), segment.baseOffset);
+            } catch (IOException e) {
+                throw new IllegalStateException("Segment " + segment.name + " could not be read!", e);
+            }
+            cache.put(segment.baseOffset, events);
+        }
+        return events.get((int) (offset - segment.baseOffset));
+    }
+
+    @Override
+    public long getStartOffset() {
+        return archived.isEmpty() ? hot.getStartOffset() : archived.get(0).baseOffset;
+    }
+
+    @Override
+    public long truncateBefore(long offset) {
+        while (!archived.isEmpty() && archived.get(0).endOffset <= offset) {
+            delete(archived.remove(0));
+        }
+        if (offset > hot.getStartOffset()) {
+            hot.truncateBefore(offset);
+        }
+        return getStartOffset();
+    }
+
+    @Override
+    public void reset(long startOffset) {
+        archived.forEach(this::delete);
+        archived = new ArrayList<>();
+        hot.reset(startOffset);
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return hot.getOffHeapBytes();
+    }
+
+    @Override
+    public long getHeldBytes() {
+        // archived segments are only held briefly, in a small cache, once read back
+        return hot.getHeldBytes();
+    }
+
+    /**
+     * Gets the offset the next segment to be archived starts at
+     * @return offset one past the last archived event, or the hot log start if that is later
+     */
+    public long getTierOffset() {
+        long end = archived.isEmpty() ? 0 : archived.get(archived.size() - 1).endOffset;
+        return Math.max(end, hot.getStartOffset());
+    }
+
+    /**
+     * Gets the number of events in each archived segment
+     * @return events per segment
+     */
+    public int getSegmentEvents() {
+        return segmentEvents;
+    }
+
+    /**
+     * Gets the age after which a segment may be archived
+     * @return age of the newest event of a segment in milliseconds
+     */
+    public long getTierAfterMillis() {
+        return tierAfterMillis;
+    }
+
+    /**
+     * Gets the number of compressed bytes held in the segment store
+     * @return total size of the archived segments
+     */
+    public long getArchivedBytes() {
+        return archivedBytes;
+    }
+
+    /**
+     * Gets the number of archived segments
+     * @return number of segments in the segment store
+     */
+    public int getArchivedSegments() {
+        return archived.size();
+    }
+
+    /**
+     * Gets the archived segments in offset order
+     * @return base offset, end offset and compressed size of each segment
+     */
+    public List<long[]> getSegments() {
+        List<long[]> segments = new ArrayList<>(archived.size());
+        for (Segment segment : archived) {
+            segments.add(new long[] {segment.baseOffset, segment.endOffset, segment.bytes});
+        }
+        return segments;
+    }
+
+    /**
+     * Gets the name a segment is stored under in the segment store
+     * @param baseOffset offset of the first event of the segment
+     * @return name of the segment
+     */
+    public String segmentName(long baseOffset) {
+        return String.format("%s-%020d.seg", name, baseOffset);
+    }
+
+    /**
+     * Compresses events and writes them to the segment store. The log is not changed
+     * until addSegment is called, so this can be done without holding any lock.
+     * @param events the events of the segment, in offset order
+     * @return number of compressed bytes written
+     * @throws IllegalStateException if the segment could not be written
+     */
+    public int storeSegment(List<Event<E>> events) {
+        String segmentName = segmentName(events.get(0).getOffset());
+        try {
+            byte[] data = encode(events);
+            store.put(segmentName, data);
+            return data.length;
+        } catch (IOException e) {
+            throw new IllegalStateException("Segment " + segmentName + " could not be written!", e);
+        }
+    }
+
+    /**
+     * Records a stored segment as part of the log and discards its events from the hot log
+     * @param baseOffset offset of the first event of the segment
+     * @param endOffset offset one past the last event of the segment
+     * @param bytes number of compressed bytes returned by storeSegment
+     * @pre baseOffset is getTierOffset
+     * @post events before endOffset are read from the segment store once the hot log has dropped them
+     * @return void
+     */
+    public void addSegment(long baseOffset, long endOffset, int bytes) {
+        Segment segment = new Segment();
+        segment.baseOffset = baseOffset;
+        segment.endOffset = endOffset;
+        segment.name = segmentName(baseOffset);
+        segment.bytes = bytes;
+        archived.add(segment);
+        archivedBytes += bytes;
+        hot.truncateBefore(endOffset);
+    }
+
+    /**
+     * Deletes a stored segment that was never added, e.g. because the log changed while it was written
+     * @param baseOffset offset of the first event of the segment
+     * @return void
+     */
+    public void discardSegment(long baseOffset) {
+        deleteStored(segmentName(baseOffset));
+    }
+
+    private void delete(Segment segment) {
+        cache.remove(segment.baseOffset);
+        archivedBytes -= segment.bytes;
+        deleteStored(segment.name);
+    }
+
+    private void deleteStored(String segmentName) {
+        try {
+            store.delete(segmentName);
+        } catch (IOException e) {
+            System.out.println("Segment " + segmentName + " could not be deleted: " + e);
+        }
+    }
+
+    private Segment segmentOf(long offset) {
+        int lo = 0;
+        int hi = archived.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (archived.get(mid).baseOffset <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        Segment segment = archived.isEmpty() ? null : archived.get(lo);
+        if (segment == null || offset < segment.baseOffset || offset >= segment.endOffset) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " is not in the log");
+        }
+        return segment;
+    }
+
+    private static byte[] encode(List<? extends Event<?>> events) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(events.size());
+            for (Event<?> event : events) {
+                writeString(out, event.getId());
+                writeString(out, event.getPayloadType());
+                writeString(out, event.getSource());
+                writeString(out, event.getKey());
+                LocalDateTime created = event.getCreationDate();
+                out.writeLong(created.toEpochSecond(ZoneOffset.UTC));
+                out.writeInt(created.getNano());
+                ByteBuffer value = event.getEncodedValue();
+                if (value == null) {
+                    value = Snapshot.encodeValue(event.getValue());
+                }
+                value = value.duplicate();
+                byte[] valueBytes = new byte[value.remaining()];
+                value.get(valueBytes);
+                out.writeInt(valueBytes.length);
+                out.write(valueBytes);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static <E> List<Event<E>> decode(byte[] data, long baseOffset) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            int numEvents = in.readInt();
+            List<Event<E>> events = new ArrayList<>(numEvents);
+            for (int i = 0; i < numEvents; i++) {
+                String id = readString(in);
+                String payloadType = readString(in);
+                String source = readString(in);
+                String key = readString(in);
+                LocalDateTime created = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                Event<E> event = new Event<>(id, payloadType, source, key, created, ByteBuffer.wrap(value));
+                event.setOffset(baseOffset + i);
+                events.add(event);
+            }
+            return events;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
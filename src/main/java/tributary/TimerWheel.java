@@ -0,0 +1,206 @@
+package tributary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TimerWheel {
+    private static final int PENDING = 0;
+    private static final int EXPIRED = 1;
+    private static final int CANCELLED = 2;
+
+    private long tickMillis;
+    private int wheelSize;
+    // levels.get(k) has wheelSize slots, each covering wheelSize^k ticks
+    private List<List<ArrayDeque<Timeout>>> levels = new ArrayList<>();
+    private long startTime;
+    private long currentTick = 0;
+    private AtomicInteger pending = new AtomicInteger();
+    private Thread worker;
+
+    public static class Timeout {
+        private TimerWheel wheel;
+        private Runnable task;
+        private Runnable onCancel;
+        private long deadlineTick;
+        private AtomicInteger state = new AtomicInteger(PENDING);
+
+        private Timeout(TimerWheel wheel, Runnable task, Runnable onCancel, long deadlineTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.onCancel = onCancel;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancels the timeout so that its task is never run
+         * @post the task will not be run, unless it is already running
+         * @return whether the timeout was cancelled; false if its task has already been run or it was already cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.pending.decrementAndGet();
+            if (onCancel != null) {
+                onCancel.run();
+            }
+            return true;
+        }
+
+        private boolean expire() {
+            if (!state.compareAndSet(PENDING, EXPIRED)) {
+                return false;
+            }
+            wheel.pending.decrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Constructor for a hierarchical timing wheel. Timeouts due within wheelSize ticks
+     * are dropped into the slot of their deadline tick; later ones go into a coarser
+     * wheel whose slots each cover a whole turn of the wheel below, and are moved down
+     * a level when their slot comes round. Scheduling and expiring a timeout take
+     * constant time however many are pending and however far off they are, and all of
+     * them share one thread.
+     * @param name name of the thread advancing the wheel
+     * @param tickMillis length of one tick, which is the precision of every timeout
+     * @param wheelSize number of slots in each level of the wheel
+     * @return new timer wheel, already running
+     */
+    public TimerWheel(String name, long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        addLevel();
+        this.startTime = System.currentTimeMillis();
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task to run on the wheel's thread after a delay
+     * @param task task to be run, which should return quickly
+     * @param delayMillis delay before the task is run
+     * @post the task runs within one tick after the delay, unless cancelled
+     * @return handle that can be used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        return schedule(task, delayMillis, null);
+    }
+
+    /**
+     * Schedules a task to run on the wheel's thread after a delay, with another to run if it is cancelled
+     * @param task task to be run, which should return quickly
+     * @param delayMillis delay before the task is run
+     * @param onCancel task run by the canceller if the timeout is cancelled before task runs, or null
+     * @post exactly one of task and onCancel runs, unless the wheel is stopped first
+     * @return handle that can be used to cancel the task
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis, Runnable onCancel) {
+        long deadline = System.currentTimeMillis() + Math.max(0, delayMillis) - startTime;
+        long deadlineTick = Math.max(currentTick + 1, (deadline + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(this, task, onCancel, deadlineTick);
+        pending.incrementAndGet();
+        insert(timeout);
+        return timeout;
+    }
+
+    /**
+     * Gets the number of timeouts waiting to run
+     * @return number of timeouts that have neither run nor been cancelled
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the wheel. Pending tasks are never run.
+     * @post the wheel's thread has stopped
+     * @return void
+     */
+    public void stop() {
+        worker.interrupt();
+    }
+
+    private void addLevel() {
+        List<ArrayDeque<Timeout>> slots = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(new ArrayDeque<>());
+        }
+        levels.add(slots);
+    }
+
+    private void insert(Timeout timeout) {
+        long delta = timeout.deadlineTick - currentTick;
+        int level = 0;
+        long span = 1;
+        while (delta >= span * wheelSize && span <= Long.MAX_VALUE / wheelSize / wheelSize) {
+            level++;
+            span *= wheelSize;
+        }
+        while (levels.size() <= level) {
+            addLevel();
+        }
+        levels.get(level).get((int) ((timeout.deadlineTick / span) % wheelSize)).add(timeout);
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long nextTickTime;
+            synchronized (this) {
+                nextTickTime = startTime + (currentTick + 1) * tickMillis;
+            }
+            long sleep = nextTickTime - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            for (Timeout timeout : expire()) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Timer task failed: " + e);
+                }
+            }
+        }
+    }
+
+    private synchronized List<Timeout> expire() {
+        List<Timeout> expired = new ArrayList<>();
+        long nowTick = (System.currentTimeMillis() - startTime) / tickMillis;
+        while (currentTick < nowTick) {
+            currentTick++;
+            // a coarser slot comes round whenever the levels below it complete a turn,
+            // so its timeouts are moved down, coarsest first, before this tick expires
+            int top = 0;
+            long span = 1;
+            while (top + 1 < levels.size() && currentTick % (span * wheelSize) == 0) {
+                top++;
+                span *= wheelSize;
+            }
+            for (int level = top; level > 0; level--, span /= wheelSize) {
+                ArrayDeque<Timeout> slot = levels.get(level).get((int) ((currentTick / span) % wheelSize));
+                for (int i = slot.size(); i > 0; i--) {
+                    Timeout timeout = slot.poll();
+                    if (timeout.state.get() == PENDING) {
+                        insert(timeout);
+                    }
+                }
+            }
+            ArrayDeque<Timeout> slot = levels.get(0).get((int) (currentTick % wheelSize));
+            Timeout timeout;
+            while ((timeout = slot.poll()) != null) {
+                if (timeout.expire()) {
+                    expired.add(timeout);
+                }
+            }
+        }
+        return expired;
+    }
+}
@@ -0,0 +1,57 @@
+package tributary;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket. Rather than counting tokens, it keeps the time at which
+ * the bucket will be full again and advances it with a compare-and-set for every use,
+ * so concurrent producers never block each other. Usage is always recorded; when it
+ * goes beyond the burst, the caller is told how long to wait instead of being refused.
+ */
+public class TokenBucket {
+    private final double nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * Constructor for a token bucket
+     * @param tokensPerSecond rate tokens are added at
+     * @param burst number of tokens the bucket holds when full
+     * @pre tokensPerSecond and burst are positive
+     * @return new full bucket
+     */
+    public TokenBucket(double tokensPerSecond, double burst) {
+        if (tokensPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Token bucket rate and burst must be positive");
+        }
+        this.nanosPerToken = 1_000_000_000.0 / tokensPerSecond;
+        this.burstNanos = (long) (burst * nanosPerToken);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes tokens from the bucket, going into debt if there are not enough
+     * @param tokens number of tokens used
+     * @post the bucket holds tokens fewer tokens than before, less what has been added since
+     * @return nanoseconds until the bucket is out of debt, or 0 if it is not in debt
+     */
+    public long take(long tokens) {
+        long cost = (long) (tokens * nanosPerToken);
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    /**
+     * Gets how long a caller should wait before using the bucket again
+     * @return nanoseconds until the bucket is out of debt, or 0 if it is not in debt
+     */
+    public long getDelay() {
+        return Math.max(0, fullAt.get() - System.nanoTime() - burstNanos);
+    }
+}
@@ -1,13 +1,30 @@
 package tributary;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Topic<E> {
 
     private String id;
+    private int handle;
     private List<Partition<E>> partitions;
     private List<ConsumerGroup<E>> consumerGroups;
+    private Metrics metrics;
+    private ReadWriteLock keyLock = new ReentrantReadWriteLock();
+    private boolean offHeap = false;
+    private long retentionEvents = Long.MAX_VALUE;
+    private SegmentStore tierStore;
+    private long tierAfterMillis;
+    private int tierSegmentEvents;
+    private boolean eventIndexed = false;
+    private MemoryAccountant memory;
+    private PayloadStore payloads;
 
     /**
      * Constructor for topic
@@ -15,9 +32,21 @@ public class Topic<E> {
      * @return new topic
      */
     public Topic(String id) {
+        this(id, new Metrics());
+    }
+
+    /**
+     * Constructor for topic reporting to a shared metrics registry
+     * @param id identifier for topic
+     * @param metrics registry that this topic's partitions and groups report to
+     * @return new topic
+     */
+    public Topic(String id, Metrics metrics) {
         this.id = id;
-        this.partitions = new ArrayList<>();
+        this.handle = Identifiers.intern(id);
+        this.partitions = new CopyOnWriteArrayList<>();
         this.consumerGroups = new ArrayList<>();
+        this.metrics = metrics;
     }
 
     /**
@@ -28,6 +57,161 @@ public class Topic<E> {
         return id;
     }
 
+    /**
+     * Gets the interned id of the topic
+     * @return handle of the topic ID
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    /**
+     * Checks whether partitions of this topic store their events outside the Java heap
+     * @return true if new partitions are created off-heap
+     */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Sets whether partitions added to this topic store their events outside the Java heap
+     * @param offHeap true to create new partitions off-heap
+     * @return void
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Sets the memory accountant the partitions of this topic report the bytes they hold to,
+     * under the account topic.[id]
+     * @param memory accountant shared by every topic in the system
+     * @post every partition, including ones added later, reports its memory use to the accountant
+     * @return void
+     */
+    public synchronized void setMemoryAccountant(MemoryAccountant memory) {
+        this.memory = memory;
+        partitions.forEach(partition -> partition.setMemoryAccount(memory, "topic." + id));
+    }
+
+    /**
+     * Gets how many of the latest events each partition of this topic keeps
+     * @return number of events kept per partition, or Long.MAX_VALUE if every event is kept
+     */
+    public long getRetention() {
+        return retentionEvents;
+    }
+
+    /**
+     * Sets how many of the latest events each partition of this topic keeps
+     * @param retentionEvents number of events to keep per partition
+     * @post every partition, including ones added later, discards events older than the latest retentionEvents
+     * @return void
+     */
+    public synchronized void setRetention(long retentionEvents) {
+        this.retentionEvents = retentionEvents;
+        partitions.forEach(partition -> partition.setRetention(retentionEvents));
+    }
+
+    /**
+     * Checks whether old events of this topic are moved to a segment store
+     * @return true if tiering is enabled
+     */
+    public boolean isTiered() {
+        return tierStore != null;
+    }
+
+    /**
+     * Gets the store old events of this topic are moved to
+     * @return segment store, or null if tiering is not enabled
+     */
+    public SegmentStore getTierStore() {
+        return tierStore;
+    }
+
+    /**
+     * Gets the age after which consumed segments of this topic may be archived
+     * @return age of the newest event of a segment in milliseconds
+     */
+    public long getTierAfterMillis() {
+        return tierAfterMillis;
+    }
+
+    /**
+     * Gets the number of events in each archived segment of this topic
+     * @return events per segment
+     */
+    public int getTierSegmentEvents() {
+        return tierSegmentEvents;
+    }
+
+    /**
+     * Moves old events of every partition of this topic, including ones added later, to a
+     * segment store. Segments are archived whenever tierSegments is called on a partition.
+     * @param store store the archived segments are written to
+     * @param tierAfterMillis age of the newest event of a segment after which it may be archived
+     * @param segmentEvents number of events in each archived segment
+     * @pre tiering is not already enabled for this topic
+     * @post every partition archives its old segments to the store
+     * @return void
+     */
+    public synchronized void setTiering(SegmentStore store, long tierAfterMillis, int segmentEvents) {
+        this.tierStore = store;
+        this.tierAfterMillis = tierAfterMillis;
+        this.tierSegmentEvents = segmentEvents;
+        partitions.forEach(this::enableTiering);
+    }
+
+    /**
+     * Checks whether partitions of this topic index their events by source and id
+     * @return true if the event index is enabled
+     */
+    public boolean isEventIndexed() {
+        return eventIndexed;
+    }
+
+    /**
+     * Indexes the events of every partition of this topic, including ones added later,
+     * by source and by id
+     * @post lookups by source and id can be made on every partition
+     * @return void
+     */
+    public synchronized void enableEventIndex() {
+        this.eventIndexed = true;
+        partitions.forEach(Partition::enableEventIndex);
+    }
+
+    /**
+     * Checks whether partitions of this topic share identical payloads from a payload store
+     * @return true if payload deduplication is enabled
+     */
+    public boolean isDeduplicated() {
+        return payloads != null;
+    }
+
+    /**
+     * Shares the payloads of events appended to every partition of this topic, including
+     * ones added later, from a content-addressed payload store
+     * @param payloads store shared by every deduplicated topic in the system
+     * @pre the topic is not off-heap
+     * @post each later event refers to the stored payload equal to its value
+     * @return void
+     * @throws IllegalStateException if the topic is off-heap
+     */
+    public synchronized void setPayloadStore(PayloadStore payloads) {
+        if (offHeap) {
+            throw new IllegalStateException("Topic " + id
+                + " stores its events off the heap, so they cannot share payloads!");
+        }
+        this.payloads = payloads;
+        partitions.forEach(partition -> partition.setPayloadStore(payloads));
+    }
+
+    private void enableTiering(Partition<E> partition) {
+        partition.enableTiering(tierStore, id + "." + partition.getId(), tierAfterMillis, tierSegmentEvents);
+        metrics.gauge("partition." + id + "." + partition.getId() + ".archived.bytes", partition::getArchivedBytes);
+    }
+
     /**
      * Gets the partitions contained in the topic
      * @return list of partitions
@@ -45,18 +229,108 @@ public class Topic<E> {
     }
 
     /**
-     * Adds a partition to this topic
+     * Gets the metrics registry this topic reports to
+     * @return metrics registry
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the number of events waiting to be consumed across all partitions.
+     * Every consumer group in the topic reads from the same partition queues,
+     * so this is also the lag of each group.
+     * @return number of unconsumed events in this topic
+     */
+    public long getLag() {
+        return partitions.stream().mapToLong(p -> p.getQueue().size()).sum();
+    }
+
+    /**
+     * Adds a partition to this topic. Every consumer group is rebalanced incrementally,
+     * so the new partition is allocated without moving any existing allocation.
      * @param partitionId unique identifier for the new partition
      * @pre the partitionId is unique
-     * @post there is a new partition with the specified id in the topic
+     * @post there is a new partition with the specified id in the topic, allocated
+     * to a consumer in every consumer group that has consumers
      * @return the newly created partition
      */
     public synchronized Partition<E> addPartition(String partitionId) {
-        Partition<E> newPartition = new Partition<E>(partitionId);
+        Partition<E> newPartition = new Partition<E>(partitionId, offHeap);
+        newPartition.setRetention(retentionEvents);
+        if (memory != null) {
+            newPartition.setMemoryAccount(memory, "topic." + id);
+        }
         partitions.add(newPartition);
+        String prefix = "partition." + id + "." + partitionId;
+        metrics.gauge(prefix + ".produced", newPartition::getProducedCount);
+        metrics.gauge(prefix + ".consumed", newPartition::getConsumedCount);
+        metrics.gauge(prefix + ".filtered", newPartition::getFilteredCount);
+        metrics.gauge(prefix + ".depth", () -> newPartition.getQueue().size());
+        if (offHeap) {
+            metrics.gauge(prefix + ".offheap.bytes", newPartition::getOffHeapBytes);
+        }
+        if (tierStore != null) {
+            enableTiering(newPartition);
+        }
+        if (eventIndexed) {
+            newPartition.enableEventIndex();
+        }
+        if (payloads != null) {
+            newPartition.setPayloadStore(payloads);
+        }
+        consumerGroups.forEach(group -> group.assignNewPartition(this, newPartition));
         return newPartition;
     }
 
+    /**
+     * Adds several partitions to this topic while it is live. Optionally moves every
+     * waiting keyed event whose key now maps to a new partition into that partition,
+     * in order, so that events with the same key are still consumed in the order
+     * they were produced. Keyed produces wait until the expansion has finished.
+     * @param partitionIds unique identifiers for the new partitions
+     * @param migrateKeys whether waiting keyed events are moved to match the new partition count
+     * @pre every partitionId is unique
+     * @post there is a new partition for every partitionId, allocated in every consumer group.
+     * if migrateKeys, every waiting keyed event is in the partition its key maps to.
+     * @return number of events moved to a new partition
+     */
+    public synchronized int expand(List<String> partitionIds, boolean migrateKeys) {
+        keyLock.writeLock().lock();
+        try {
+            int oldCount = partitions.size();
+            partitionIds.forEach(this::addPartition);
+            if (!migrateKeys) {
+                return 0;
+            }
+            int moved = 0;
+            for (int i = 0; i < oldCount; i++) {
+                int current = i;
+                List<Event<E>> removed = partitions.get(i).removeEvents(
+                    event -> event.getKey() != null && partitionIndexForKey(event.getKey()) != current);
+                Map<Integer, List<Event<E>>> byTarget = new HashMap<>();
+                removed.forEach(event -> byTarget.computeIfAbsent(partitionIndexForKey(event.getKey()),
+                    index -> new ArrayList<>()).add(event));
+                byTarget.forEach((index, events) -> partitions.get(index).appendEvents(events));
+                moved += removed.size();
+            }
+            metrics.counter("topic." + id + ".migrated").add(moved);
+            return moved;
+        } finally {
+            keyLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the index of the partition a key maps to
+     * @param key partitioning key of an event
+     * @pre the topic has at least one partition
+     * @return index into the list of partitions
+     */
+    public int partitionIndexForKey(String key) {
+        return Math.floorMod(key.hashCode(), partitions.size());
+    }
+
     /**
      * Adds a consumer group to this topic
      * @param groupId unique identifier for the new consumer group
@@ -68,6 +342,8 @@ public class Topic<E> {
     public synchronized ConsumerGroup<E> addConsumerGroup(String groupId, String strategy) {
         ConsumerGroup<E> newGroup = new ConsumerGroup<>(groupId, strategy);
         consumerGroups.add(newGroup);
+        // group ids are only unique within a topic, so the topic is part of the name
+        metrics.gauge("group." + id + "." + groupId + ".lag", this::getLag);
         return newGroup;
     }
 
@@ -80,8 +356,9 @@ public class Topic<E> {
      * @return the newly created consumer
      */
     public synchronized Consumer<E> addConsumer(String groupId, String consumerId) {
+        int groupHandle = Identifiers.lookup(groupId);
         ConsumerGroup<E> reqGroup = consumerGroups.stream()
-                                                  .filter(group -> group.getId().equals(groupId))
+                                                  .filter(group -> group.getHandle() == groupHandle)
                                                   .findFirst()
                                                   .get();
         Consumer<E> newCons = reqGroup.addConsumer(consumerId);
@@ -95,7 +372,8 @@ public class Topic<E> {
      * @return whether the group is in this topic
      */
     public boolean containsGroup(String groupId) {
-        return consumerGroups.stream().anyMatch(group -> group.getId().equals(groupId));
+        int groupHandle = Identifiers.lookup(groupId);
+        return consumerGroups.stream().anyMatch(group -> group.getHandle() == groupHandle);
     }
 
     /**
@@ -104,7 +382,8 @@ public class Topic<E> {
      * @return whether this topic contains the specified consumer
      */
     public boolean containsConsumer(String consumerId) {
-        return consumerGroups.stream().anyMatch(group -> group.containsConsumer(consumerId));
+        int consumerHandle = Identifiers.lookup(consumerId);
+        return consumerGroups.stream().anyMatch(group -> group.containsConsumer(consumerHandle));
     }
 
     /**
@@ -121,22 +400,164 @@ public class Topic<E> {
         });
     }
 
+    /**
+     * Gets the partition with the specified id
+     * @param partitionId unique identifier for the partition
+     * @pre the partitionId corresponds to a valid partition in this topic
+     * @return partition with the specified id
+     */
+    public Partition<E> getPartition(String partitionId) {
+        int partitionHandle = Identifiers.lookup(partitionId);
+        return partitions.stream()
+                         .filter(partition -> partition.getHandle() == partitionHandle)
+                         .findFirst()
+                         .get();
+    }
+
+    /**
+     * Returns whether the topic contains a partition with the specified id
+     * @param partitionId unique identifier for a partition
+     * @return whether this topic contains the specified partition
+     */
+    public boolean containsPartition(String partitionId) {
+        int partitionHandle = Identifiers.lookup(partitionId);
+        return partitions.stream().anyMatch(partition -> partition.getHandle() == partitionHandle);
+    }
+
+    /**
+     * Evicts a failed consumer from its group, moving only its partitions
+     * @param consumerId unique identifier for a consumer
+     * @post the consumer no longer exists in this topic
+     * @return whether the consumer was in this topic
+     */
+    public synchronized boolean evictConsumer(String consumerId) {
+        return consumerGroups.stream().anyMatch(group -> group.evictConsumer(consumerId, this));
+    }
+
     /**
      * Adds an event to the specified partition
      * @param producerId unique identifier for the producer
-     * @param eventFileName identifier for the event to be produced
+     * @param eventFileName name of the JSON file holding the event payload
      * @param partitionId unique identifier for the partition
      * @pre the producerId corresponds to a valid producer. there exists a JSON file with
      * the name eventFileName. the partitionId corresponds to a valid partition
-     * @post there is a new event with ID eventFileName in the specified partition
-     * @return void
+     * @post there is a new event with the payload of eventFileName in the specified partition
+     * @return the newly created event
+     */
+    public Event<E> addEvent(String producerId, String eventFileName, String partitionId) {
+        return addEvent(producerId, eventFileName, Partition.loadEventValue(eventFileName), partitionId);
+    }
+
+    /**
+     * Adds an event with a payload already loaded from a JSON file to the specified partition
+     * @param producerId unique identifier for the producer
+     * @param eventFileName name of the JSON file the payload was loaded from
+     * @param value payload of the event
+     * @param partitionId unique identifier for the partition
+     * @pre the producerId corresponds to a valid producer. the partitionId corresponds to a valid partition
+     * @post there is a new event with the given payload in the specified partition
+     * @return the newly created event
+     */
+    public Event<E> addEvent(String producerId, String eventFileName, Object value, String partitionId) {
+        Partition<E> newPart = getPartition(partitionId);
+        long start = System.nanoTime();
+        Event<E> event = newPart.addEvent(eventFileName, producerId, value);
+        metrics.histogram("topic." + id + ".produce.latency").record(System.nanoTime() - start);
+        return event;
+    }
+
+    /**
+     * Adds an event with an inline payload to the specified partition
+     * @param producerId unique identifier for the producer
+     * @param value payload of the event
+     * @param partitionId unique identifier for the partition
+     * @pre the producerId corresponds to a valid producer. the partitionId corresponds to a valid partition
+     * @post there is a new event with the given payload in the specified partition
+     * @return the newly created event
+     */
+    public Event<E> addValue(String producerId, Object value, String partitionId) {
+        Partition<E> newPart = getPartition(partitionId);
+        long start = System.nanoTime();
+        Event<E> event = newPart.addValue(producerId, value);
+        metrics.histogram("topic." + id + ".produce.latency").record(System.nanoTime() - start);
+        return event;
+    }
+
+    /**
+     * Adds an event with an inline payload to the partition its key maps to
+     * @param producerId unique identifier for the producer
+     * @param key partitioning key of the event
+     * @param value payload of the event
+     * @pre the producerId corresponds to a valid producer. the topic has at least one partition
+     * @post there is a new event with the given key and payload in the partition the key maps to
+     * @return the newly created event
+     */
+    public Event<E> addKeyedValue(String producerId, String key, Object value) {
+        keyLock.readLock().lock();
+        try {
+            Partition<E> newPart = partitions.get(partitionIndexForKey(key));
+            long start = System.nanoTime();
+            Event<E> event = newPart.addValue(producerId, value, key);
+            metrics.histogram("topic." + id + ".produce.latency").record(System.nanoTime() - start);
+            return event;
+        } finally {
+            keyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a batch of events with inline payloads to the specified partition
+     * @param producerId unique identifier for the producer
+     * @param values payloads of the events in order
+     * @param partitionId unique identifier for the partition
+     * @pre the producerId corresponds to a valid producer. the partitionId corresponds to a valid partition
+     * @post there is a new event for each value in the specified partition
+     * @return the newly created events
+     */
+    public List<Event<E>> addValues(String producerId, List<Object> values, String partitionId) {
+        Partition<E> newPart = getPartition(partitionId);
+        long start = System.nanoTime();
+        List<Event<E>> events = newPart.addValues(producerId, values);
+        metrics.histogram("topic." + id + ".produce.batch.latency").record(System.nanoTime() - start);
+        return events;
+    }
+
+    /**
+     * Adds a batch of keyed events, each to the partition its key maps to. Events with
+     * the same key keep their relative order.
+     * @param producerId unique identifier for the producer
+     * @param keys partitioning key of each event
+     * @param values payloads of the events, in the same order as the keys
+     * @pre the topic has at least one partition. there is a key for each value.
+     * @post there is a new event for each value in the partition its key maps to
+     * @return the newly created events, in the same order as the values
      */
-    public void addEvent(String producerId, String eventFileName, String partitionId) {
-        Partition<E> newPart =  partitions.stream()
-                                          .filter(partition -> partition.getId().equals(partitionId))
-                                          .findFirst()
-                                          .get();
-        newPart.addEvent(eventFileName, producerId);
+    public List<Event<E>> addKeyedValues(String producerId, List<String> keys, List<Object> values) {
+        keyLock.readLock().lock();
+        try {
+            Map<Integer, List<Integer>> byPartition = new HashMap<>();
+            for (int i = 0; i < keys.size(); i++) {
+                byPartition.computeIfAbsent(partitionIndexForKey(keys.get(i)), index -> new ArrayList<>()).add(i);
+            }
+            List<Event<E>> events = new ArrayList<>(Collections.nCopies(values.size(), null));
+            long start = System.nanoTime();
+            byPartition.forEach((index, positions) -> {
+                List<Object> batchValues = new ArrayList<>(positions.size());
+                List<String> batchKeys = new ArrayList<>(positions.size());
+                positions.forEach(i -> {
+                    batchValues.add(values.get(i));
+                    batchKeys.add(keys.get(i));
+                });
+                List<Event<E>> added = partitions.get(index).addValues(producerId, batchValues, batchKeys);
+                for (int i = 0; i < positions.size(); i++) {
+                    events.set(positions.get(i), added.get(i));
+                }
+            });
+            metrics.histogram("topic." + id + ".produce.batch.latency").record(System.nanoTime() - start);
+            return events;
+        } finally {
+            keyLock.readLock().unlock();
+        }
     }
 
     /**
@@ -154,9 +575,10 @@ public class Topic<E> {
                                                            .findFirst()
                                                            .get();
         Consumer<E> consumer = groupWithConsumer.getConsumer(consumerId);
-        Partition<E> partition = partitions.stream()
-                                        .filter(part -> part.getId().equals(partitionId)).findFirst().get();
+        Partition<E> partition = getPartition(partitionId);
+        long start = System.nanoTime();
         partition.consumeEvent(consumer);
+        metrics.histogram("topic." + id + ".consume.latency").record(System.nanoTime() - start);
     }
 
     /**
@@ -177,8 +599,9 @@ public class Topic<E> {
      * @pre the groupid corresponds to a valid consumer
      */
     public void displayGroup(String groupId) {
+        int groupHandle = Identifiers.lookup(groupId);
         consumerGroups.stream()
-                    .filter(group -> group.getId().equals(groupId))
+                    .filter(group -> group.getHandle() == groupHandle)
                     .forEach(group -> group.display());
     }
 
@@ -191,8 +614,9 @@ public class Topic<E> {
      * @return void
      */
     public void setRebalancingStrategy(String groupId, String strategy) {
+        int groupHandle = Identifiers.lookup(groupId);
         consumerGroups.stream()
-                    .filter(group -> group.getId().equals(groupId))
+                    .filter(group -> group.getHandle() == groupHandle)
                     .forEach(group -> group.setRebalancingStrategy(strategy));
     }
 
@@ -203,8 +627,9 @@ public class Topic<E> {
      * @return consumer group with the specified id
      */
     public ConsumerGroup<E> getGroupWithConsumer(String consumerId) {
+        int consumerHandle = Identifiers.lookup(consumerId);
         return consumerGroups.stream()
-                             .filter(group -> group.containsConsumer(consumerId))
+                             .filter(group -> group.containsConsumer(consumerHandle))
                              .findFirst()
                              .get();
     }
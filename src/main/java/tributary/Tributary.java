@@ -1,11 +1,51 @@
 package tributary;
 
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
 
 public class Tributary {
+    // memory account of the payloads of delayed events waiting to be released
+    private static final String DELAYED_ACCOUNT = "delayed";
+
     private List<Topic<?>> topics;
     private List<Producer<?>> producers;
+    private Metrics metrics = new Metrics();
+    private QuotaManager quotas = new QuotaManager(metrics);
+    private MemoryAccountant memory = new MemoryAccountant(metrics);
+    private PayloadStore payloads = new PayloadStore(metrics, memory);
+    private GroupCoordinator coordinator;
+    private TimerWheel delayedEvents;
+    private TimerWheel tiering;
+    private ShardedExecutor shards;
+    // topics each consumer is in, by consumer handle, so routing never scans every topic
+    private Map<Integer, List<Topic<?>>> consumerTopics = new ConcurrentHashMap<>();
+    private List<PatternSubscription> patternSubscriptions = new CopyOnWriteArrayList<>();
+    private Map<Integer, AtomicInteger> pollCursors = new ConcurrentHashMap<>();
+
+    private static class PatternSubscription {
+        private String groupId;
+        private String consumerId;
+        private Pattern pattern;
+
+        PatternSubscription(String groupId, String consumerId, Pattern pattern) {
+            this.groupId = groupId;
+            this.consumerId = consumerId;
+            this.pattern = pattern;
+        }
+    }
 
     /**
      * Constructor for Tributary system.
@@ -13,8 +53,13 @@ public class Tributary {
      * @return Tributary object
      */
     public Tributary() {
-        this.topics = new ArrayList<Topic<?>>();
-        this.producers = new ArrayList<Producer<?>>();
+        this.topics = new CopyOnWriteArrayList<Topic<?>>();
+        this.producers = new CopyOnWriteArrayList<Producer<?>>();
+        memory.setReclaimer(this::releaseConsumedEvents);
+    }
+
+    private void releaseConsumedEvents() {
+        topics.forEach(topic -> topic.getPartitions().forEach(Partition::releaseConsumed));
     }
 
     /**
@@ -28,14 +73,177 @@ public class Tributary {
      * @return newly created topic
      */
     public <T> Topic<T> createTopic(String topicId, Class<T> type) {
-        Topic<T> newTopic = new Topic<T>(topicId);
+        Topic<T> newTopic = new Topic<T>(topicId, metrics);
+        newTopic.setMemoryAccountant(memory);
         topics.add(newTopic);
         System.out.println("You have successfully created a new topic with");
         System.out.println("ID: " + topicId);
         System.out.println("type: " + type.getSimpleName());
+        patternSubscriptions.stream()
+                            .filter(subscription -> subscription.pattern.matcher(topicId).matches())
+                            .forEach(subscription -> join(newTopic, subscription.groupId, subscription.consumerId));
         return newTopic;
     }
 
+    /**
+     * Method to create a new topic whose partitions store their events outside the Java heap.
+     * Only small per-event indexes stay on the heap, so retained events do not add to
+     * garbage collection work.
+     * @param topicId unique ID to act as topic identifier
+     * @param type type of the events in the topic
+     * @pre there does not exist a topic with id topicId
+     * @post the system now contains a new off-heap topic with id topicId of the specified type
+     * @return newly created topic
+     */
+    public <T> Topic<T> createOffHeapTopic(String topicId, Class<T> type) {
+        Topic<T> newTopic = createTopic(topicId, type);
+        newTopic.setOffHeap(true);
+        System.out.println("Storage: off-heap");
+        return newTopic;
+    }
+
+    /**
+     * Method to limit how many events each partition of a topic keeps in its log.
+     * Older events are discarded, even if they have not been consumed.
+     * @param topicId unique ID to act as topic identifier
+     * @param retentionEvents number of the latest events to keep per partition
+     * @pre There exists a topic with id topicId. retentionEvents is positive.
+     * @post each partition of the topic keeps about the latest retentionEvents events
+     * @return void
+     */
+    public void setRetention(String topicId, long retentionEvents) {
+        getTopic(topicId).setRetention(retentionEvents);
+        System.out.println("You have successfully set topic " + topicId + " to retain " + retentionEvents
+            + " events per partition");
+    }
+
+    /**
+     * Method to index the events of a topic by producer and by event id, so that
+     * they can be found without scanning every partition
+     * @param topicId unique ID to act as topic identifier
+     * @pre There exists a topic with id topicId
+     * @post events in every partition of the topic can be found by producer and id
+     * @return void
+     */
+    public void enableEventIndex(String topicId) {
+        getTopic(topicId).enableEventIndex();
+        System.out.println("You have successfully indexed topic " + topicId);
+    }
+
+    /**
+     * Method to store each distinct payload produced to a topic once. Later events with a
+     * payload equal to one already stored, in this or any other deduplicated topic, refer to
+     * the stored payload instead of holding their own copy, and a payload is dropped once
+     * retention has discarded every event referring to it.
+     * @param topicId unique ID to act as topic identifier
+     * @pre There exists a topic with id topicId that is not off-heap
+     * @post events produced to the topic from now on share identical payloads
+     * @return void
+     */
+    public void enablePayloadDedup(String topicId) {
+        getTopic(topicId).setPayloadStore(payloads);
+        System.out.println("You have successfully enabled payload deduplication for topic " + topicId);
+    }
+
+    /**
+     * Gets the store the payloads of deduplicated topics are shared from
+     * @return payload store shared by every topic
+     */
+    public PayloadStore getPayloads() {
+        return payloads;
+    }
+
+    /**
+     * Method to find the events of a topic produced by a producer
+     * @param topicId unique ID to act as topic identifier
+     * @param producerId unique ID of the producer
+     * @pre There exists a topic with id topicId whose events are indexed
+     * @return offsets of the producer's events in the log of each partition, by partition ID
+     */
+    public Map<String, List<Long>> findEventsBySource(String topicId, String producerId) {
+        Map<String, List<Long>> found = new LinkedHashMap<>();
+        for (Partition<?> partition : getTopic(topicId).getPartitions()) {
+            List<Long> offsets = partition.offsetsBySource(producerId, 0, Integer.MAX_VALUE);
+            if (!offsets.isEmpty()) {
+                found.put(partition.getId(), offsets);
+                System.out.println("Partition " + partition.getId() + ": offsets " + offsets);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Method to find the event of a topic with an id
+     * @param topicId unique ID to act as topic identifier
+     * @param eventId unique ID of the event
+     * @pre There exists a topic with id topicId whose events are indexed
+     * @return offset of the event in the log of each partition holding it, by partition ID
+     */
+    public Map<String, Long> findEventById(String topicId, String eventId) {
+        Map<String, Long> found = new LinkedHashMap<>();
+        for (Partition<?> partition : getTopic(topicId).getPartitions()) {
+            long offset = partition.offsetOfId(eventId);
+            if (offset >= 0) {
+                found.put(partition.getId(), offset);
+                System.out.println("Partition " + partition.getId() + ": offset " + offset);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Method to move the old events of a topic to a compressed archive directory
+     * @param topicId unique ID to act as topic identifier
+     * @param directory path of the directory the archived segments are written to
+     * @param tierAfterMillis age after which consumed events are archived
+     * @pre There is a topic with id topicId without tiering
+     * @post the topic's consumed events older than tierAfterMillis are archived in the background
+     * @return void
+     */
+    public void enableTiering(String topicId, String directory, long tierAfterMillis) {
+        enableTiering(topicId, new DirectorySegmentStore(directory), tierAfterMillis);
+    }
+
+    /**
+     * Method to move the old events of a topic to a segment store, such as a local
+     * directory or an object store. Every second, the whole segments at the start of each
+     * partition that have been consumed and are older than tierAfterMillis are compressed
+     * and written to the store, and only then dropped from memory. Archived events are
+     * fetched back and cached when playback or a read by offset reaches them.
+     * @param topicId unique ID to act as topic identifier
+     * @param store store the archived segments are written to
+     * @param tierAfterMillis age after which consumed events are archived
+     * @pre There is a topic with id topicId without tiering
+     * @post the topic's consumed events older than tierAfterMillis are archived in the background
+     * @return void
+     */
+    public void enableTiering(String topicId, SegmentStore store, long tierAfterMillis) {
+        getTopic(topicId).setTiering(store, tierAfterMillis, TieredEventLog.SEGMENT_EVENTS);
+        startTiering();
+        System.out.println("You have successfully set topic " + topicId + " to archive events older than "
+            + tierAfterMillis + "ms");
+    }
+
+    private synchronized void startTiering() {
+        if (tiering == null) {
+            tiering = new TimerWheel("tiering", 100, 64);
+            scheduleTiering();
+        }
+    }
+
+    private void scheduleTiering() {
+        tiering.schedule(() -> {
+            scheduleTiering();
+            topics.stream().filter(Topic::isTiered).forEach(topic -> topic.getPartitions().forEach(partition -> {
+                try {
+                    partition.tierSegments();
+                } catch (IllegalStateException e) {
+                    System.out.println("Partition " + partition.getId() + " could not be tiered: " + e.getMessage());
+                }
+            }));
+        }, 1000);
+    }
+
     /**
      * Method to create a new partition in the tributary system.
      * This partition will be responsible for holding messages to be consumed
@@ -46,10 +254,7 @@ public class Tributary {
      * @return newly created partition
      */
     public Partition<?> createPartition(String topicId, String partitionId) {
-        Topic<?> topicReq = topics.stream()
-                                .filter(topic -> topic.getId().equals(topicId))
-                                .findFirst()
-                                .get();
+        Topic<?> topicReq = getTopic(topicId);
         Partition<?> newPart = topicReq.addPartition(partitionId);
         System.out.println("You have successfully created a partition with:");
         System.out.println("ID: " + partitionId);
@@ -70,10 +275,7 @@ public class Tributary {
      * @return newly created consumer group
      */
     public ConsumerGroup<?> createConsumerGroup(String groupId, String topicId, String strategy) {
-        Topic<?> topicReq = topics.stream()
-                                .filter(topic -> topic.getId().equals(topicId))
-                                .findFirst()
-                                .get();
+        Topic<?> topicReq = getTopic(topicId);
         ConsumerGroup<?> group = topicReq.addConsumerGroup(groupId, strategy);
         System.out.println("You have successfully created a consumer group with:");
         System.out.println("ID: " + groupId);
@@ -99,6 +301,10 @@ public class Tributary {
                             .filter(topic -> topic.containsGroup(groupId))
                             .findFirst().get();
         Consumer<?> newConsumer = topicWithGroup.addConsumer(groupId, consumerId);
+        consumerTopics.remove(Identifiers.lookup(consumerId));
+        if (coordinator != null) {
+            coordinator.register(consumerId);
+        }
         System.out.println("You have successfully created a consumer with:");
         System.out.println("ID: " + consumerId);
         System.out.println("Consumer Group: " + groupId);
@@ -115,14 +321,121 @@ public class Tributary {
      * @return void
      */
     public void deleteConsumer(String consumerId) {
-        Topic<?> topicReq = topics.stream().filter(topic -> topic.containsConsumer(consumerId)).findFirst().get();
-        ConsumerGroup<?> group = topicReq.getGroupWithConsumer(consumerId);
-        topicReq.deleteConsumer(consumerId);
+        List<Topic<?>> subscribed = getConsumerTopics(consumerId);
+        ConsumerGroup<?> group = getConsumerTopic(consumerId).getGroupWithConsumer(consumerId);
+        subscribed.forEach(topic -> topic.deleteConsumer(consumerId));
+        forgetConsumer(consumerId);
+        if (coordinator != null) {
+            coordinator.unregister(consumerId);
+        }
         System.out.println("You have successfully deleted the consumer with:");
         System.out.println("ID: " + consumerId);
         group.display();
     }
 
+    /**
+     * Method to turn on consumer liveness checking. From now on every consumer must
+     * send heartbeats, and one that goes longer than the session timeout without
+     * one is evicted from its group, with only its partitions moved to other consumers.
+     * @param sessionTimeoutMillis time without a heartbeat after which a consumer is evicted
+     * @post every existing and future consumer is monitored for heartbeats
+     * @return the group coordinator monitoring the consumers
+     */
+    public synchronized GroupCoordinator enableLiveness(long sessionTimeoutMillis) {
+        if (coordinator != null) {
+            coordinator.stop();
+        }
+        coordinator = new GroupCoordinator(this, sessionTimeoutMillis);
+        topics.forEach(topic -> topic.getConsumerGroups().forEach(group ->
+            group.getConsumers().forEach(consumer -> coordinator.register(consumer.getId()))));
+        System.out.println("You have successfully enabled liveness checking with session timeout (ms): "
+            + sessionTimeoutMillis);
+        return coordinator;
+    }
+
+    /**
+     * Method to record a heartbeat from a consumer
+     * @param consumerId unique ID to act as consumer identifier
+     * @pre liveness checking is enabled
+     * @return whether the consumer is still a live member of its group
+     */
+    public boolean heartbeat(String consumerId) {
+        return coordinator != null && coordinator.heartbeat(consumerId);
+    }
+
+    /**
+     * Method to evict a consumer that has stopped responding. Unlike deleteConsumer,
+     * only the partitions of the evicted consumer are reallocated.
+     * @param consumerId unique ID to act as consumer identifier
+     * @post There no longer exists a consumer with id consumerId
+     * @return void
+     */
+    public void evictConsumer(String consumerId) {
+        // a consumer subscribed to several topics is evicted from all of them
+        long evicted = topics.stream().filter(topic -> topic.evictConsumer(consumerId)).count();
+        if (evicted > 0) {
+            forgetConsumer(consumerId);
+            System.out.println("Consumer " + consumerId + " missed its heartbeats and has been evicted");
+        }
+    }
+
+    /**
+     * Method to subscribe a consumer to a set of topics. The consumer joins the group with
+     * id groupId in every topic, which is created with the Range strategy in topics that do
+     * not have it yet, and each of those groups rebalances.
+     * @param groupId unique ID to act as consumer group identifier
+     * @param consumerId unique ID to act as consumer identifier
+     * @param topicIds unique IDs of the topics to subscribe to
+     * @pre there exists a topic for every id in topicIds
+     * @post the consumer is a member of the group with id groupId in every topic in topicIds
+     * @return void
+     */
+    public void subscribe(String groupId, String consumerId, List<String> topicIds) {
+        topicIds.forEach(topicId -> join(getTopic(topicId), groupId, consumerId));
+        System.out.println("You have successfully subscribed consumer " + consumerId + " to topics: " + topicIds);
+    }
+
+    /**
+     * Method to subscribe a consumer to every topic whose id matches a pattern, including
+     * topics created after the subscription
+     * @param groupId unique ID to act as consumer group identifier
+     * @param consumerId unique ID to act as consumer identifier
+     * @param pattern regular expression the whole topic id must match
+     * @post the consumer is a member of the group with id groupId in every matching topic,
+     * and joins it in any matching topic created later
+     * @return void
+     */
+    public void subscribe(String groupId, String consumerId, Pattern pattern) {
+        patternSubscriptions.add(new PatternSubscription(groupId, consumerId, pattern));
+        topics.stream()
+              .filter(topic -> pattern.matcher(topic.getId()).matches())
+              .forEach(topic -> join(topic, groupId, consumerId));
+        System.out.println("You have successfully subscribed consumer " + consumerId
+            + " to topics matching: " + pattern.pattern());
+    }
+
+    private void join(Topic<?> topic, String groupId, String consumerId) {
+        synchronized (topic) {
+            if (!topic.containsGroup(groupId)) {
+                topic.addConsumerGroup(groupId, "Range");
+            }
+            if (!topic.containsConsumer(consumerId)) {
+                topic.addConsumer(groupId, consumerId);
+            }
+        }
+        consumerTopics.remove(Identifiers.lookup(consumerId));
+        if (coordinator != null) {
+            coordinator.register(consumerId);
+        }
+    }
+
+    private void forgetConsumer(String consumerId) {
+        int consumerHandle = Identifiers.lookup(consumerId);
+        consumerTopics.remove(consumerHandle);
+        pollCursors.remove(consumerHandle);
+        patternSubscriptions.removeIf(subscription -> subscription.consumerId.equals(consumerId));
+    }
+
     /**
      * Method to create a producer in the tributary system
      * This producer will be responsible for sending messages to the topics in
@@ -155,22 +468,50 @@ public class Tributary {
      * @param producerId unique ID to act as producer identifier
      * @param topicId unique ID to act as topic identifier
      * @param eventFileName name of JSON file containing event/message value
-     * @post There exists a new event with id eventFileName
-     * @return void
+     * @post There exists a new event with an id of the form eventFileName-offset
+     * @return newly created event
      */
-    public void produceEvent(String producerId, String topicId, String eventFileName) {
-        Topic<?> topicRequired = topics.stream()
-                                       .filter(topic -> topic.getId().equals(topicId))
-                                       .findFirst()
-                                       .get();
-        Producer<?> producerToAdd = producers.stream()
-                 .filter(producer -> producer.getId().equals(producerId))
-                 .findFirst()
-                 .get();
-        String partitionId = producerToAdd.getAllocation(0, topicRequired);
-        topicRequired.addEvent(producerId, eventFileName, partitionId);
+    public Event<?> produceEvent(String producerId, String topicId, String eventFileName) {
+        Topic<?> topicRequired = getTopic(topicId);
+        String partitionId = getProducer(producerId).getAllocation(0, topicRequired);
+        admitProduce();
+        Event<?> event = topicRequired.addEvent(producerId, eventFileName, partitionId);
         System.out.println("You have successfully produced an event in partition " + partitionId + " with ");
-        System.out.println("ID: " + eventFileName);
+        System.out.println("ID: " + event.getId());
+        recordQuota(producerId, topicId, event);
+        return event;
+    }
+
+    /**
+     * Method to produce the same event to several topics. The JSON file is read once and
+     * every topic is given the same payload, so deduplicated topics share one stored copy
+     * of it without hashing it again, and other topics share the value without copying it.
+     * @param producerId unique ID to act as producer identifier
+     * @param topicIds unique IDs of the topics to produce to
+     * @param eventFileName name of JSON file containing event/message value
+     * @pre There exists a topic for every id in topicIds
+     * @post There exists a new event with an id of the form eventFileName-offset in a partition of every topic
+     * @return newly created events, in the same order as topicIds
+     */
+    public List<Event<?>> produceEventToTopics(String producerId, List<String> topicIds, String eventFileName) {
+        Object value = Partition.loadEventValue(eventFileName);
+        // held until every topic has its event, so the payload cannot be dropped part way through
+        PayloadStore.Payload payload = payloads.acquire(value);
+        List<Event<?>> events = new ArrayList<>(topicIds.size());
+        try {
+            for (String topicId : topicIds) {
+                Topic<?> topicRequired = getTopic(topicId);
+                String partitionId = getProducer(producerId).getAllocation(0, topicRequired);
+                admitProduce();
+                Event<?> event = topicRequired.addEvent(producerId, eventFileName, payload.getValue(), partitionId);
+                recordQuota(producerId, topicId, event);
+                events.add(event);
+            }
+        } finally {
+            payloads.release(payload);
+        }
+        System.out.println("You have successfully produced " + eventFileName + " to topics: " + topicIds);
+        return events;
     }
 
     /**
@@ -183,15 +524,364 @@ public class Tributary {
      * @param topicId unique ID to act as topic identifier
      * @param eventFileName name of JSON file containing event/message value
      * @param partition unique ID to act as partition identifier
-     * @post There exists a new event with id eventFileName in partition with id partition
-     * @return void
+     * @post There exists a new event with an id of the form eventFileName-offset in partition with id partition
+     * @return newly created event
      */
-    public void produceEvent(String producerId, String topicId, String eventFileName, String partition) {
-        topics.stream()
-        .filter(topic -> topic.getId().equals(topicId))
-        .forEach(topic -> topic.addEvent(producerId, eventFileName, partition));
+    public Event<?> produceEvent(String producerId, String topicId, String eventFileName, String partition) {
+        admitProduce();
+        Event<?> event = getTopic(topicId).addEvent(producerId, eventFileName, partition);
+        System.out.println("You have successfully produced an event in partition " + partition + " with ");
+        System.out.println("ID: " + event.getId());
+        recordQuota(producerId, topicId, event);
+        return event;
+    }
+
+    /**
+     * Method to produce an event with an inline payload from a specific producer
+     * and send this event to a specific topic, without reading any file.
+     * This method will see the producer allocate the event according to its strategy.
+     * @param producerId unique ID to act as producer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param value payload of the event, e.g. a String, an Integer or a byte[]
+     * @pre value is not null
+     * @post There exists a new event with an id of the form partitionId-offset
+     * @return newly created event
+     */
+    public Event<?> produceValue(String producerId, String topicId, Object value) {
+        Topic<?> topicRequired = getTopic(topicId);
+        String partitionId = getProducer(producerId).getAllocation(0, topicRequired);
+        return produceValue(producerId, topicId, value, partitionId);
+    }
+
+    /**
+     * Method to produce an event with an inline payload from a specific producer
+     * into a partition with a specified ID, without reading any file.
+     * @param producerId unique ID to act as producer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param value payload of the event, e.g. a String, an Integer or a byte[]
+     * @param partition unique ID to act as partition identifier
+     * @pre value is not null
+     * @post There exists a new event with an id of the form partition-offset in partition with id partition
+     * @return newly created event
+     */
+    public Event<?> produceValue(String producerId, String topicId, Object value, String partition) {
+        admitProduce();
+        Event<?> event = getTopic(topicId).addValue(producerId, value, partition);
         System.out.println("You have successfully produced an event in partition " + partition + " with ");
-        System.out.println("ID: " + eventFileName);
+        System.out.println("ID: " + event.getId());
+        recordQuota(producerId, topicId, event);
+        return event;
+    }
+
+    /**
+     * Method to produce an event with an inline payload and a partitioning key.
+     * Events with the same key always go to the same partition, so they are
+     * consumed in the order they were produced.
+     * @param producerId unique ID to act as producer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param key partitioning key of the event
+     * @param value payload of the event, e.g. a String, an Integer or a byte[]
+     * @pre the topic has at least one partition. value is not null.
+     * @post There exists a new event with the given key in the partition the key maps to
+     * @return newly created event
+     */
+    public Event<?> produceKeyedValue(String producerId, String topicId, String key, Object value) {
+        Topic<?> topicRequired = getTopic(topicId);
+        admitProduce();
+        Event<?> event = topicRequired.addKeyedValue(producerId, key, value);
+        System.out.println("You have successfully produced an event with key " + key + " with ");
+        System.out.println("ID: " + event.getId());
+        recordQuota(producerId, topicId, event);
+        return event;
+    }
+
+    /**
+     * Method to produce an event with an inline payload that only becomes visible to
+     * consumers at a given time, e.g. to retry it later or to run a scheduled job.
+     * Until then the event is held on a timing wheel outside the partition, and it is
+     * given its offset when it is released. Pending events are not checkpointed; the
+     * topic is looked up again when each one is released, so after a restore it goes to
+     * the restored topic, and it is dropped if that topic no longer has its partition.
+     * Until then its payload is accounted to the memory account "delayed".
+     * @param producerId unique ID to act as producer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param value payload of the event, e.g. a String, an Integer or a byte[]
+     * @param partition unique ID to act as partition identifier, or null to use the producer's strategy
+     * @param deliverAt time at which the event is added to the partition
+     * @pre value is not null
+     * @post the event is added to the partition within 10ms after deliverAt, unless cancelled
+     * @return handle that can be used to cancel delivery
+     */
+    public TimerWheel.Timeout produceDelayedValue(String producerId, String topicId, Object value, String partition,
+        LocalDateTime deliverAt) {
+        Topic<?> topicRequired = getTopic(topicId);
+        String partitionId = partition != null ? partition
+                                               : getProducer(producerId).getAllocation(0, topicRequired);
+        // looked up now so that an unknown partition fails the produce rather than the delivery
+        topicRequired.getPartition(partitionId);
+        admitProduce();
+        long delayMillis = Duration.between(LocalDateTime.now(), deliverAt).toMillis();
+        long bytes = QuotaManager.sizeOf(value);
+        memory.add(DELAYED_ACCOUNT, bytes);
+        TimerWheel.Timeout timeout = getDelayedEvents().schedule(() -> {
+            memory.add(DELAYED_ACCOUNT, -bytes);
+            releaseDelayedValue(producerId, topicId, value, partitionId);
+        }, delayMillis, () -> memory.add(DELAYED_ACCOUNT, -bytes));
+        System.out.println("You have successfully scheduled an event for partition " + partitionId
+            + " to be delivered at " + deliverAt);
+        quotas.record(producerId, topicId, List.of(value));
+        return timeout;
+    }
+
+    private void releaseDelayedValue(String producerId, String topicId, Object value, String partitionId) {
+        try {
+            getTopic(topicId).addValue(producerId, value, partitionId);
+            metrics.counter("delayed.released").increment();
+        } catch (NoSuchElementException e) {
+            metrics.counter("delayed.dropped").increment();
+            System.out.println("Delayed event for " + topicId + "/" + partitionId
+                + " was dropped as the partition no longer exists");
+        }
+    }
+
+    private synchronized TimerWheel getDelayedEvents() {
+        if (delayedEvents == null) {
+            delayedEvents = new TimerWheel("delayed-events", 10, 512);
+            metrics.gauge("delayed.pending", delayedEvents::getPending);
+        }
+        return delayedEvents;
+    }
+
+    private void admitProduce() {
+        long delay = memory.admit();
+        if (delay > 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(delay));
+        }
+    }
+
+    private void recordQuota(String producerId, String topicId, Event<?> event) {
+        long throttle = quotas.record(producerId, topicId, List.of(event.getValue()));
+        if (throttle > 0) {
+            System.out.println("Producer " + producerId + " is over its quota and should wait " + throttle + "ms");
+        }
+    }
+
+    /**
+     * Method to limit the rate a producer may produce at, across every topic.
+     * A producer over its quota is not refused but is told how long to wait.
+     * @param producerId unique ID to act as producer identifier
+     * @param eventsPerSecond events the producer may produce per second, or 0 for no limit
+     * @param bytesPerSecond payload bytes the producer may produce per second, or 0 for no limit
+     * @pre the rates are not negative
+     * @post the producer is throttled when it goes over either rate
+     * @return void
+     */
+    public void setProducerQuota(String producerId, double eventsPerSecond, double bytesPerSecond) {
+        quotas.setProducerQuota(producerId, eventsPerSecond, bytesPerSecond);
+        System.out.println("You have successfully set producer " + producerId + " to have a quota of "
+            + eventsPerSecond + " events/s and " + bytesPerSecond + " bytes/s");
+    }
+
+    /**
+     * Method to limit the rate every producer together may produce to a topic at.
+     * A producer taking the topic over its quota is not refused but is told how long to wait.
+     * @param topicId unique ID to act as topic identifier
+     * @param eventsPerSecond events that may be produced to the topic per second, or 0 for no limit
+     * @param bytesPerSecond payload bytes that may be produced to the topic per second, or 0 for no limit
+     * @pre the rates are not negative
+     * @post producers are throttled when the topic goes over either rate
+     * @return void
+     */
+    public void setTopicQuota(String topicId, double eventsPerSecond, double bytesPerSecond) {
+        quotas.setTopicQuota(topicId, eventsPerSecond, bytesPerSecond);
+        System.out.println("You have successfully set topic " + topicId + " to have a quota of "
+            + eventsPerSecond + " events/s and " + bytesPerSecond + " bytes/s");
+    }
+
+    /**
+     * Method to get how long a producer should wait before producing to a topic again
+     * @param producerId unique ID to act as producer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @return milliseconds to wait, or 0 if neither the producer nor the topic is over its quota
+     */
+    public long getThrottleMillis(String producerId, String topicId) {
+        return quotas.getThrottleMillis(producerId, topicId);
+    }
+
+    /**
+     * Method to limit how much memory the events held by every partition and producer
+     * buffer may take up together. Above the low watermark, events that have already been
+     * consumed are discarded from the partition logs to free memory, so they can no longer be
+     * played back. If that is not enough each produce is delayed, by up to 100ms as usage nears
+     * the high watermark, and at the high watermark produces are rejected, so producers are
+     * slowed down before the system runs out of memory.
+     * @param lowWatermarkBytes bytes in use above which produces are delayed
+     * @param highWatermarkBytes bytes in use at which produces are rejected
+     * @pre 0 < lowWatermarkBytes <= highWatermarkBytes
+     * @post later produces are held back according to the watermarks
+     * @return void
+     */
+    public void setMemoryLimits(long lowWatermarkBytes, long highWatermarkBytes) {
+        memory.setWatermarks(lowWatermarkBytes, highWatermarkBytes);
+        System.out.println("You have successfully set the memory watermarks to " + lowWatermarkBytes + " and "
+            + highWatermarkBytes + " bytes");
+    }
+
+    /**
+     * Gets the memory accountant of the tributary system
+     * @return memory accountant every partition and producer buffer reports to
+     */
+    public MemoryAccountant getMemory() {
+        return memory;
+    }
+
+    /**
+     * Gets the quotas of the tributary system
+     * @return quota manager shared by every produce path
+     */
+    public QuotaManager getQuotas() {
+        return quotas;
+    }
+
+    /**
+     * Method to grow the number of partitions of a live topic.
+     * Every consumer group of the topic is rebalanced incrementally.
+     * @param topicId unique ID to act as topic identifier
+     * @param partitionIds unique IDs of the new partitions
+     * @param migrateKeys whether waiting keyed events are moved so that every key
+     * keeps its ordering across the new partition count
+     * @pre There exists a topic with id topicId. Every partitionId is unique.
+     * @post the topic contains a new partition for every partitionId
+     * @return number of events moved to a new partition
+     */
+    public int expandTopic(String topicId, List<String> partitionIds, boolean migrateKeys) {
+        int moved = getTopic(topicId).expand(partitionIds, migrateKeys);
+        System.out.println("You have successfully expanded topic " + topicId + " with partitions: ");
+        partitionIds.forEach(p -> System.out.println(p + " "));
+        System.out.println("Events migrated: " + moved);
+        return moved;
+    }
+
+    /**
+     * Method to produce every line of a newline-delimited JSON file as an event.
+     * Lines are read as a stream and handed over in batches, so the file is never
+     * held in memory and each partition is locked once per batch.
+     * Each line is either a JSON object with a value field or a bare JSON value.
+     * @param producerId unique ID to act as producer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param fileName path of the newline-delimited JSON file
+     * @param batchSize maximum number of events produced to the topic at once
+     * @pre the file exists and every non-blank line is valid JSON. batchSize is positive.
+     * @post There exists a new event for every non-blank line of the file
+     * @return number of events produced
+     */
+    public long ingestEvents(String producerId, String topicId, String fileName, int batchSize) {
+        Topic<?> topicRequired = getTopic(topicId);
+        long count = new BulkIngest(topicRequired, getProducer(producerId), fileName, batchSize, quotas, memory)
+            .run();
+        System.out.println("You have successfully produced " + count + " events from " + fileName
+            + " to topic " + topicId);
+        return count;
+    }
+
+    /**
+     * Method to switch on the sharded execution mode, in which every produce and consume
+     * submitted through produceOnShard and consumeOnShard runs on the event loop thread
+     * owning the partition. Each partition is only ever touched by one of these threads,
+     * so its lock is never contended and its state stays in one core's cache.
+     * @param numShards number of event loop threads, or 0 for one per available core
+     * @pre sharding is not already enabled
+     * @post partitions are spread over the event loop threads as they are first used
+     * @return the sharded executor
+     */
+    public synchronized ShardedExecutor enableSharding(int numShards) {
+        if (shards != null) {
+            throw new IllegalStateException("Sharding is already enabled");
+        }
+        shards = new ShardedExecutor(numShards, metrics);
+        System.out.println("You have successfully enabled sharded execution on " + shards.getShardCount()
+            + " threads");
+        return shards;
+    }
+
+    /**
+     * Method to produce an event with an inline payload on the event loop thread owning its
+     * partition. The caller does not wait for the partition, so many threads can produce to
+     * many partitions without contending with each other. Nothing is printed.
+     * @param producerId unique ID to act as producer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param value payload of the event
+     * @param partitionId unique ID to act as partition identifier, or null to use the producer's strategy
+     * @pre sharding is enabled. value is not null.
+     * @post There exists a new event with an id of the form partitionId-offset once the future completes
+     * @return future completing with the newly created event
+     */
+    public CompletableFuture<Event<?>> produceOnShard(String producerId, String topicId, Object value,
+        String partitionId) {
+        Topic<?> topicRequired = getTopic(topicId);
+        String partition = partitionId != null ? partitionId
+                                               : getProducer(producerId).getAllocation(0, topicRequired);
+        admitProduce();
+        return requireShards().submit(topicRequired.getPartition(partition), () -> {
+            Event<?> event = topicRequired.addValue(producerId, value, partition);
+            quotas.record(producerId, topicId, List.of(value));
+            return event;
+        });
+    }
+
+    /**
+     * Method to consume up to a number of waiting events from a partition on the event loop
+     * thread owning the partition. Nothing is printed, and the event loop never waits for
+     * events to be produced.
+     * @param consumerId unique ID to act as consumer identifier
+     * @param partitionId unique ID to act as partition identifier
+     * @param maxEvents most events to consume
+     * @pre sharding is enabled. There is a consumer with id consumerId.
+     * @post the events are removed from the partition and added to the consumer's consumed events
+     * @return future completing with the consumed events, which may be fewer than maxEvents
+     */
+    public CompletableFuture<List<Event<?>>> consumeOnShard(String consumerId, String partitionId, int maxEvents) {
+        Topic<?> topicReq = getConsumerTopic(consumerId, partitionId);
+        return consumeOnShard(topicReq, consumerId, partitionId, maxEvents);
+    }
+
+    /**
+     * Method to consume up to a number of waiting events from a partition of a given topic
+     * on the event loop thread owning the partition, for consumers reading several topics
+     * with partitions of the same id
+     * @param consumerId unique ID to act as consumer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param partitionId unique ID to act as partition identifier
+     * @param maxEvents most events to consume
+     * @pre sharding is enabled. There is a consumer with id consumerId in the topic with id topicId.
+     * @post the events are removed from the partition and added to the consumer's consumed events
+     * @return future completing with the consumed events, which may be fewer than maxEvents
+     */
+    public CompletableFuture<List<Event<?>>> consumeOnShard(String consumerId, String topicId, String partitionId,
+        int maxEvents) {
+        return consumeOnShard(getConsumerTopic(consumerId, topicId, partitionId), consumerId, partitionId, maxEvents);
+    }
+
+    private <E> CompletableFuture<List<Event<?>>> consumeOnShard(Topic<E> topic, String consumerId,
+        String partitionId, int maxEvents) {
+        Consumer<E> consumer = topic.getGroupWithConsumer(consumerId).getConsumer(consumerId);
+        Partition<E> partition = topic.getPartition(partitionId);
+        return requireShards().submit(partition, () -> {
+            List<Event<?>> consumed = new ArrayList<>();
+            Event<E> event;
+            while (consumed.size() < maxEvents && (event = partition.pollEvent(consumer, 0)) != null) {
+                consumed.add(event);
+            }
+            return consumed;
+        });
+    }
+
+    private ShardedExecutor requireShards() {
+        ShardedExecutor executor = shards;
+        if (executor == null) {
+            throw new IllegalStateException("Sharding is not enabled");
+        }
+        return executor;
     }
 
     /**
@@ -206,7 +896,258 @@ public class Tributary {
      * @return void
      */
     public void consumeEvent(String consumerId, String partitionId) {
-        topics.stream().forEach(topic -> topic.consumeEvent(consumerId, partitionId));
+        getConsumerTopic(consumerId, partitionId).consumeEvent(consumerId, partitionId);
+    }
+
+    /**
+     * Method to consume an event from a partition of a given topic with a specified consumer,
+     * for consumers reading several topics with partitions of the same id
+     * @param consumerId unique ID to act as consumer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param partitionId unique ID to act as partition identifier
+     * @pre There is at least one event in the partition. There is a consumer with id consumerId
+     * in the topic with id topicId.
+     * @post The partition has its earliest event consumed and the consumer has this event
+     * added to its list of eventsConsumed.
+     * @return void
+     */
+    public void consumeEvent(String consumerId, String topicId, String partitionId) {
+        getConsumerTopic(consumerId, topicId, partitionId).consumeEvent(consumerId, partitionId);
+    }
+
+    /**
+     * Method to consume from every partition allocated to a consumer across all of the topics
+     * it is subscribed to, in one call. The budget of events is shared out evenly between the
+     * partitions that have events, and the partition served first rotates from call to call so
+     * that no partition is starved when the budget is smaller than the number of partitions.
+     * @param consumerId unique ID to act as consumer identifier
+     * @param maxEvents maximum number of events to consume in total
+     * @pre There is a consumer with id consumerId. maxEvents > 0
+     * @post up to maxEvents events are removed from the partitions allocated to the consumer
+     * and added to its lists of eventsConsumed
+     * @return events consumed by topic id, in partition order within each topic
+     */
+    public Map<String, List<Event<?>>> poll(String consumerId, int maxEvents) {
+        List<Topic<?>> subscribed = getConsumerTopics(consumerId);
+        if (subscribed.isEmpty()) {
+            throw new NoSuchElementException("No consumer with id " + consumerId);
+        }
+        List<Fetch<?>> fetches = new ArrayList<>();
+        for (Topic<?> topic : subscribed) {
+            addFetches(topic, consumerId, fetches);
+        }
+        Map<String, List<Event<?>>> polled = new LinkedHashMap<>();
+        subscribed.forEach(topic -> polled.put(topic.getId(), new ArrayList<>()));
+        if (!fetches.isEmpty()) {
+            int cursor = pollCursors.computeIfAbsent(Identifiers.lookup(consumerId), handle -> new AtomicInteger())
+                                    .getAndIncrement();
+            Collections.rotate(fetches, -Math.floorMod(cursor, fetches.size()));
+        }
+        int remaining = maxEvents;
+        while (remaining > 0 && !fetches.isEmpty()) {
+            int share = Math.max(1, remaining / fetches.size());
+            List<Fetch<?>> undrained = new ArrayList<>();
+            for (Fetch<?> fetch : fetches) {
+                if (remaining == 0) {
+                    break;
+                }
+                int asked = Math.min(share, remaining);
+                List<? extends Event<?>> events = fetch.poll(asked);
+                polled.get(fetch.topicId).addAll(events);
+                remaining -= events.size();
+                // a partition that could not fill its share has nothing left for this call
+                if (events.size() == asked) {
+                    undrained.add(fetch);
+                }
+            }
+            fetches = undrained;
+        }
+        System.out.println("Consumer " + consumerId + " has polled " + (maxEvents - remaining) + " events");
+        return polled;
+    }
+
+    private static class Fetch<E> {
+        private String topicId;
+        private Consumer<E> consumer;
+        private Partition<E> partition;
+
+        Fetch(String topicId, Consumer<E> consumer, Partition<E> partition) {
+            this.topicId = topicId;
+            this.consumer = consumer;
+            this.partition = partition;
+        }
+
+        private List<Event<E>> poll(int maxEvents) {
+            return partition.pollEvents(consumer, maxEvents);
+        }
+    }
+
+    private <E> void addFetches(Topic<E> topic, String consumerId, List<Fetch<?>> fetches) {
+        Consumer<E> consumer = topic.getGroupWithConsumer(consumerId).getConsumer(consumerId);
+        consumer.getPartitions().forEach(partition -> fetches.add(new Fetch<>(topic.getId(), consumer, partition)));
+    }
+
+    /**
+     * Method to start consuming every partition allocated to a consumer in parallel,
+     * with one worker per partition. Events within each partition are handled in order,
+     * and the partitions being consumed follow the consumer through rebalances.
+     * @param consumerId unique ID to act as consumer identifier
+     * @param handler called with each event after it has been consumed
+     * @pre There is a consumer with id consumerId. The handler does not add or
+     * remove consumers or partitions.
+     * @post every partition allocated to the consumer is being consumed until the runtime is stopped
+     * @return the running consumer runtime
+     */
+    public ConsumerRuntime<?> startConsumerRuntime(String consumerId, EventHandler handler) {
+        return startConsumerRuntime(consumerId, handler, 0);
+    }
+
+    /**
+     * Method to start consuming every partition allocated to a consumer in parallel,
+     * reading ahead of the handler. Each partition's worker is fed from a prefetch buffer
+     * that a background fetcher refills in batches as the handler consumes it.
+     * @param consumerId unique ID to act as consumer identifier
+     * @param handler called with each event after it has been consumed
+     * @param prefetch most events buffered per partition, or 0 to consume from the partitions directly
+     * @pre There is a consumer with id consumerId. The handler does not add or
+     * remove consumers or partitions.
+     * @post every partition allocated to the consumer is being consumed until the runtime is stopped
+     * @return the running consumer runtime
+     */
+    public ConsumerRuntime<?> startConsumerRuntime(String consumerId, EventHandler handler, int prefetch) {
+        Topic<?> topicReq = getConsumerTopic(consumerId);
+        Consumer<?> consumer = topicReq.getGroupWithConsumer(consumerId).getConsumer(consumerId);
+        ConsumerRuntime<?> runtime = new ConsumerRuntime<>(consumer, handler, prefetch);
+        runtime.start();
+        System.out.println("You have successfully started consumer " + consumerId + " on partitions: ");
+        runtime.getPartitions().forEach(p -> System.out.println(p.getId() + " "));
+        return runtime;
+    }
+
+    /**
+     * Method to set the filter partitions apply before handing events to a consumer.
+     * Events that do not match are skipped by the partition and never reach the consumer.
+     * @param consumerId unique ID to act as consumer identifier
+     * @param expression filter expression, e.g. "source=firstProducer&value.country=AU",
+     * or null to receive every event
+     * @pre There is a consumer with id consumerId. expression is a valid EventFilter expression.
+     * @post the consumer only receives events matching the filter
+     * @return void
+     */
+    public void setConsumerFilter(String consumerId, String expression) {
+        EventFilter filter = expression == null ? null : EventFilter.parse(expression);
+        findConsumers(consumerId).forEach(consumer -> consumer.setFilter(filter));
+        System.out.println("You have successfully set consumer " + consumerId + " to have filter: " + expression);
+    }
+
+    /**
+     * Method to set the fields of JSON values a consumer receives
+     * @param consumerId unique ID to act as consumer identifier
+     * @param fields names of the top-level fields to keep, or null to receive values whole
+     * @pre There is a consumer with id consumerId
+     * @post the consumer receives copies of JSON events holding only the given fields
+     * @return void
+     */
+    public void setConsumerProjection(String consumerId, List<String> fields) {
+        findConsumers(consumerId).forEach(consumer -> consumer.setProjection(fields));
+        System.out.println("You have successfully set consumer " + consumerId + " to receive fields: " + fields);
+    }
+
+    private List<Consumer<?>> findConsumers(String consumerId) {
+        List<Consumer<?>> consumers = new ArrayList<>();
+        getConsumerTopics(consumerId).forEach(topic ->
+            consumers.add(topic.getGroupWithConsumer(consumerId).getConsumer(consumerId)));
+        return consumers;
+    }
+
+    /**
+     * Method to create a stream processor reading from a topic. A consumer group with the
+     * id of the stream is created on the topic, and operators and a sink are added to the
+     * returned stream before it is started.
+     * @param applicationId unique ID to act as stream and consumer group identifier
+     * @param sourceTopicId unique ID of the topic the stream reads from
+     * @pre There is a topic with id sourceTopicId. There is no consumer group with id applicationId.
+     * @post there is a new consumer group with id applicationId on the source topic
+     * @return the new stream, without operators
+     */
+    public EventStream createStream(String applicationId, String sourceTopicId) {
+        createConsumerGroup(applicationId, sourceTopicId, "Range");
+        return new EventStream(this, applicationId, getTopic(sourceTopicId));
+    }
+
+    /**
+     * Method to create an asynchronous producer for a topic. Its sends return straight away,
+     * and the records are appended in batches per partition once a batch is full or has
+     * waited for lingerMillis, on a thread of the producer's own.
+     * @param producerId unique ID to act as producer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param batchSize number of records in a partition after which they are appended straight away
+     * @param lingerMillis longest time a record waits for its batch to fill up
+     * @param bufferRecords most records that can be waiting to be appended at once
+     * @param blockWhenFull whether sending blocks when the buffer is full, rather than failing
+     * @pre There is a producer with id producerId and a topic with id topicId
+     * @return the new asynchronous producer, which should be closed when no longer needed
+     */
+    public AsyncProducer createAsyncProducer(String producerId, String topicId, int batchSize, long lingerMillis,
+        int bufferRecords, boolean blockWhenFull) {
+        return new AsyncProducer(this, producerId, topicId, batchSize, lingerMillis, bufferRecords, blockWhenFull);
+    }
+
+    /**
+     * Method to record how far the consumer group of a consumer has processed a partition
+     * @param consumerId unique ID to act as consumer identifier
+     * @param partitionId unique ID to act as partition identifier
+     * @param offset offset of the next event the group has not yet processed
+     * @pre There is a consumer with id consumerId
+     * @post the committed offset of the partition in the consumer's group is at least offset
+     * @return void
+     */
+    public void commitOffset(String consumerId, String partitionId, long offset) {
+        Topic<?> topicReq = getConsumerTopic(consumerId, partitionId);
+        topicReq.getGroupWithConsumer(consumerId).commitOffset(partitionId, offset);
+        System.out.println("Consumer " + consumerId + " has committed offset " + offset
+            + " of partition " + partitionId);
+    }
+
+    /**
+     * Method to record how far a consumer has processed a partition, fenced by the
+     * generation of the consumer's assignment when it read the events. A consumer that
+     * has since lost the partition in a rebalance cannot overwrite the new owner's progress.
+     * @param consumerId unique ID to act as consumer identifier
+     * @param partitionId unique ID to act as partition identifier
+     * @param offset offset of the next event the consumer has not yet processed
+     * @param generation generation of the consumer's assignment, from Consumer.getGeneration
+     * @pre There is a consumer with id consumerId
+     * @post the committed offset of the partition in the consumer's group is at least offset
+     * @return void
+     * @throws IllegalStateException if the partition has moved since generation
+     */
+    public void commitOffset(String consumerId, String partitionId, long offset, int generation) {
+        commitOffset(getConsumerTopic(consumerId, partitionId), consumerId, partitionId, offset, generation);
+    }
+
+    /**
+     * Method to record how far a consumer has processed a partition of a given topic, fenced
+     * by the generation of the consumer's assignment, for consumers reading several topics
+     * with partitions of the same id
+     * @param consumerId unique ID to act as consumer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param partitionId unique ID to act as partition identifier
+     * @param offset offset of the next event the consumer has not yet processed
+     * @param generation generation of the consumer's assignment, from Consumer.getGeneration
+     * @pre There is a consumer with id consumerId in the topic with id topicId
+     * @post the committed offset of the partition in the consumer's group is at least offset
+     * @return void
+     * @throws IllegalStateException if the partition has moved since generation
+     */
+    public void commitOffset(String consumerId, String topicId, String partitionId, long offset, int generation) {
+        commitOffset(getConsumerTopic(consumerId, topicId, partitionId), consumerId, partitionId, offset, generation);
+    }
+
+    private void commitOffset(Topic<?> topic, String consumerId, String partitionId, long offset, int generation) {
+        topic.getGroupWithConsumer(consumerId).commitOffset(consumerId, partitionId, offset, generation);
+        System.out.println("Consumer " + consumerId + " has committed offset " + offset
+            + " of partition " + partitionId + " in generation " + generation);
     }
 
     /**
@@ -236,7 +1177,7 @@ public class Tributary {
      * @return void
      */
     public void showTopic(String topicId) {
-        Topic<?> topic = topics.stream().filter(t -> t.getId().equals(topicId)).findFirst().get();
+        Topic<?> topic = getTopic(topicId);
         System.out.println("Now displaying topic with Id: " + topicId);
         System.out.println("This topic contains partitions: ");
         topic.displayPartitions();
@@ -257,6 +1198,165 @@ public class Tributary {
         topicWithGroup.displayGroup(groupId);
     }
 
+    /**
+     * Gets every topic in the system
+     * @return list of topics
+     */
+    public List<Topic<?>> getTopics() {
+        return topics;
+    }
+
+    /**
+     * Gets every producer in the system
+     * @return list of producers
+     */
+    public List<Producer<?>> getProducers() {
+        return producers;
+    }
+
+    /**
+     * Gets the topic with the specified id
+     * @param topicId unique ID to act as topic identifier
+     * @pre There exists a topic with id topicId
+     * @return topic with the specified id
+     */
+    public Topic<?> getTopic(String topicId) {
+        int topicHandle = Identifiers.lookup(topicId);
+        return topics.stream()
+                     .filter(topic -> topic.getHandle() == topicHandle)
+                     .findFirst()
+                     .get();
+    }
+
+    /**
+     * Gets the topics a consumer is in. Lookups are served from an index that is
+     * refreshed whenever the consumer joins or leaves a topic.
+     * @param consumerId unique ID to act as consumer identifier
+     * @return unmodifiable list of the topics with a group containing the consumer,
+     * empty if there is no such consumer
+     */
+    public List<Topic<?>> getConsumerTopics(String consumerId) {
+        int consumerHandle = Identifiers.lookup(consumerId);
+        List<Topic<?>> cached = consumerTopics.get(consumerHandle);
+        if (cached != null) {
+            return cached;
+        }
+        List<Topic<?>> found = new ArrayList<>();
+        topics.stream().filter(topic -> topic.containsConsumer(consumerId)).forEach(found::add);
+        if (found.isEmpty()) {
+            return List.of();
+        }
+        List<Topic<?>> subscribed = List.copyOf(found);
+        consumerTopics.put(consumerHandle, subscribed);
+        return subscribed;
+    }
+
+    /**
+     * Gets the topic through which a consumer reads a partition
+     * @param consumerId unique ID to act as consumer identifier
+     * @param partitionId unique ID to act as partition identifier
+     * @pre There is a consumer with id consumerId in the topic containing the partition with id partitionId
+     * @return topic containing both the consumer and the partition
+     */
+    public Topic<?> getConsumerTopic(String consumerId, String partitionId) {
+        List<Topic<?>> subscribed = getConsumerTopics(consumerId);
+        int partitionHandle = Identifiers.lookup(partitionId);
+        // the consumer's assignments decide first, so a partition id shared by several topics
+        // still finds the one the consumer reads it from
+        List<Topic<?>> found = new ArrayList<>();
+        subscribed.stream().filter(topic -> isAssigned(topic, consumerId, partitionHandle)).forEach(found::add);
+        if (found.isEmpty()) {
+            subscribed.stream().filter(topic -> topic.containsPartition(partitionId)).forEach(found::add);
+        }
+        if (found.isEmpty()) {
+            throw new NoSuchElementException("Consumer " + consumerId + " is not in the topic of partition "
+                + partitionId);
+        }
+        if (found.size() > 1) {
+            throw new IllegalArgumentException("Consumer " + consumerId + " reads partitions with id " + partitionId
+                + " in more than one topic, so the topic must be given");
+        }
+        return found.get(0);
+    }
+
+    /**
+     * Gets a topic a consumer is in, checking that it has a partition
+     * @param consumerId unique ID to act as consumer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param partitionId unique ID to act as partition identifier
+     * @pre There is a consumer with id consumerId in the topic with id topicId, which contains
+     * the partition with id partitionId
+     * @return topic with id topicId
+     */
+    public Topic<?> getConsumerTopic(String consumerId, String topicId, String partitionId) {
+        Topic<?> topic = getTopic(topicId);
+        if (!topic.containsConsumer(consumerId) || !topic.containsPartition(partitionId)) {
+            throw new NoSuchElementException("Topic " + topicId + " does not have both consumer " + consumerId
+                + " and partition " + partitionId);
+        }
+        return topic;
+    }
+
+    private boolean isAssigned(Topic<?> topic, String consumerId, int partitionHandle) {
+        return topic.getGroupWithConsumer(consumerId).getConsumer(consumerId).getPartitions().stream()
+                    .anyMatch(partition -> partition.getHandle() == partitionHandle);
+    }
+
+    private Topic<?> getConsumerTopic(String consumerId) {
+        List<Topic<?>> subscribed = getConsumerTopics(consumerId);
+        if (subscribed.isEmpty()) {
+            throw new NoSuchElementException("No consumer with id " + consumerId);
+        }
+        return subscribed.get(0);
+    }
+
+    /**
+     * Gets the producer with the specified id
+     * @param producerId unique ID to act as producer identifier
+     * @pre There exists a producer with id producerId
+     * @return producer with the specified id
+     */
+    public Producer<?> getProducer(String producerId) {
+        int producerHandle = Identifiers.lookup(producerId);
+        return producers.stream()
+                        .filter(producer -> producer.getHandle() == producerHandle)
+                        .findFirst()
+                        .get();
+    }
+
+    /**
+     * Gets the metrics registry shared by every topic in the system
+     * @return metrics registry
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Method to display the current value of every metric in the system.
+     * Includes produce/consume counts and queue depth per partition, lag and
+     * rebalances per consumer group, and produce/consume latency per topic.
+     * @return snapshot of the metrics that were displayed
+     */
+    public MetricsSnapshot showMetrics() {
+        MetricsSnapshot snapshot = metrics.snapshot();
+        System.out.println("Now displaying metrics: ");
+        snapshot.display();
+        return snapshot;
+    }
+
+    /**
+     * Method to export the metrics of the system over JMX
+     * @param name name to register the metrics MXBean under
+     * @pre no other system has exported metrics with the same name
+     * @post the metrics are visible to JMX clients as tributary:type=Metrics,name=name
+     * @return void
+     */
+    public void exportMetrics(String name) {
+        metrics.export(name);
+        System.out.println("You have successfully exported metrics with name: " + name);
+    }
+
     /**
      * Method to produce a series of events in parallel
      * @param args array of strings outlining ids/names of producers, topics and events to produce with/from.
@@ -317,15 +1417,124 @@ public class Tributary {
             "You have successfully set consumer group with ID " + groupId + " to have strategy: " + strategy);
     }
 
+    /**
+     * Method to write the complete state of the system to a binary snapshot file,
+     * so that it can later be restored without replaying every command.
+     * @param fileName path of the snapshot file
+     * @pre the directory of fileName exists and is writable. tiered topics archive to a directory.
+     * @post fileName contains every topic, partition, event, consumer group, consumer and producer
+     * @return size of the snapshot in bytes
+     * @throws IllegalStateException if a topic archives to a store other than a directory
+     */
+    public long checkpoint(String fileName) {
+        long size = Snapshot.write(this, fileName);
+        System.out.println("You have successfully written a checkpoint of " + size + " bytes to: " + fileName);
+        return size;
+    }
+
+    /**
+     * Method to replace the state of the system with the state in a snapshot file.
+     * Event values are decoded lazily the first time they are read.
+     * @param fileName path of a snapshot file written by checkpoint
+     * @pre fileName exists and was written by checkpoint
+     * @post the system contains exactly the topics, partitions, events, consumer groups,
+     * consumers and producers in the snapshot. all metrics are reset. tiered topics carry on
+     * archiving to the directory they archived to, and read back the segments archived before the snapshot.
+     * @return void
+     */
+    public synchronized void restore(String fileName) {
+        // read into a scratch system first, so a snapshot that cannot be read leaves this one as it was
+        Snapshot.read(new Tributary(), fileName);
+        topics.clear();
+        producers.clear();
+        // quotas are not part of a snapshot, so their metrics are kept
+        metrics.remove("partition.");
+        metrics.remove("group.");
+        metrics.remove("topic.");
+        memory.remove("topic.");
+        // the events referring to stored payloads are discarded with their topics
+        payloads.clear();
+        consumerTopics.clear();
+        patternSubscriptions.clear();
+        pollCursors.clear();
+        Snapshot.read(this, fileName);
+        if (topics.stream().anyMatch(Topic::isTiered)) {
+            startTiering();
+        }
+        System.out.println("You have successfully restored the checkpoint: " + fileName);
+    }
+
     /**
      * Method to play back events for a given consumer from the offset.
+     * Events are read from the partition log, so events that have already been
+     * consumed are replayed and the partition queue is left unchanged.
      * @param consumerId unique ID to act as consumer identifier
      * @param partitionId unique ID to act as partition identifier
      * @param offset integer corresponding to offset of replay
+     * @pre There is a consumer with id consumerId and a partition with id partitionId in the same topic
+     * @post every event in the partition log from offset onwards is added, in order,
+     * to the list of eventsConsumed of the consumer
      * @return void
      */
     public void playback(String consumerId, String partitionId, int offset) {
-        //TODO
+        playback(getConsumerTopic(consumerId, partitionId), consumerId, partitionId, offset, Long.MAX_VALUE);
+    }
+
+    /**
+     * Method to play back events of a partition of a given topic for a consumer from the offset,
+     * for consumers reading several topics with partitions of the same id
+     * @param consumerId unique ID to act as consumer identifier
+     * @param topicId unique ID to act as topic identifier
+     * @param partitionId unique ID to act as partition identifier
+     * @param offset integer corresponding to offset of replay
+     * @pre There is a consumer with id consumerId in the topic with id topicId
+     * @post every event in the partition log from offset onwards is added, in order,
+     * to the list of eventsConsumed of the consumer
+     * @return void
+     */
+    public void playback(String consumerId, String topicId, String partitionId, int offset) {
+        playback(getConsumerTopic(consumerId, topicId, partitionId), consumerId, partitionId, offset, Long.MAX_VALUE);
+    }
+
+    /**
+     * Method to play back the events for a given consumer that were created within a time range.
+     * The partition's sparse time index is used to find where the range starts and ends.
+     * @param consumerId unique ID to act as consumer identifier
+     * @param partitionId unique ID to act as partition identifier
+     * @param from earliest creation time of the events to replay
+     * @param to creation time to stop replaying at, or null to replay to the end of the log
+     * @pre There is a consumer with id consumerId and a partition with id partitionId in the same topic
+     * @post every event in the partition log created at or after from, and before to,
+     * is added in order to the list of eventsConsumed of the consumer
+     * @return void
+     */
+    public void playback(String consumerId, String partitionId, LocalDateTime from, LocalDateTime to) {
+        Topic<?> topicReq = getConsumerTopic(consumerId, partitionId);
+        Partition<?> partition = topicReq.getPartition(partitionId);
+        long fromOffset = partition.offsetForTime(from);
+        long toOffset = to == null ? Long.MAX_VALUE : partition.offsetForTime(to);
+        playback(topicReq, consumerId, partitionId, fromOffset, toOffset);
+    }
+
+    private <E> void playback(Topic<E> topicReq, String consumerId, String partitionId, long fromOffset,
+        long toOffset) {
+        Consumer<E> consumer = topicReq.getGroupWithConsumer(consumerId).getConsumer(consumerId);
+        Partition<E> partition = topicReq.getPartition(partitionId);
+        System.out.println("Consumer " + consumerId + " is playing back events from partition "
+            + partitionId + " starting at offset " + Math.max(fromOffset, partition.getLogStartOffset()) + ": ");
+        long offset = fromOffset;
+        while (offset < toOffset) {
+            List<Event<E>> events = partition.getEvents(offset, (int) Math.min(1000, toOffset - offset));
+            if (events.isEmpty()) {
+                break;
+            }
+            for (Event<E> event : events) {
+                consumer.consumeEvent(event);
+                System.out.println("ID: " + event.getId());
+                System.out.println("Value: " + event.getValue());
+            }
+            offset = events.get(events.size() - 1).getOffset() + 1;
+        }
     }
 
 }
@@ -4,13 +4,53 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
 import cli.CLI;
+import cli.LoadGenerator;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
 public class CLITest {
     @Test
     @DisplayName("Test main")
     public void testMain() {
         CLI.main("create topic hello String".split(" "));
     }
+
+    @Test
+    @DisplayName("Test batch mode")
+    public void testBatch() throws IOException {
+        File commands = File.createTempFile("commands", ".txt");
+        commands.deleteOnExit();
+        Files.write(commands.toPath(), List.of(
+            "# set up a topic",
+            "create topic firstTopic String",
+            "create partition firstTopic firstPartition",
+            "",
+            "create producer producerOne String Random",
+            "create producer producerTwo String Random",
+            "produce event producerOne missingTopic sampleEventString",
+            "load produce firstTopic sampleEventString 10 0 producerOne producerTwo",
+            "q",
+            "produce event producerOne firstTopic sampleEventString"));
+        Tributary trb = new Tributary();
+        CLI.runBatch(new String[] {"--batch", commands.getPath()}, trb);
+        assertEquals(trb.getMetrics().snapshot().get("partition.firstTopic.firstPartition.produced"), 10);
+    }
+
+    @Test
+    @DisplayName("Test load generator")
+    public void testLoadGenerator() {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", String.class);
+        Partition<?> part = trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("producerOne", String.class, "Random");
+        LatencyHistogram latency = new LoadGenerator(trb, "firstTopic", "sampleEventString", 20, 2000,
+            List.of("producerOne")).run();
+        assertEquals(latency.getCount(), 20);
+        assertEquals(part.getQueue().size(), 20);
+    }
 }
@@ -0,0 +1,193 @@
+package tributary;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import server.FetchPrefetcher;
+import server.TributaryClient;
+import server.TributaryServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class ServerTest {
+    @Test
+    @DisplayName("Test pipelined requests over loopback")
+    public void testPipelinedRequests() throws Exception {
+        Tributary trb = new Tributary();
+        TributaryServer server = new TributaryServer(trb, "127.0.0.1", 0);
+        server.start();
+        try (TributaryClient client = new TributaryClient("127.0.0.1", server.getPort())) {
+            client.admin("create topic firstTopic String").get();
+            client.admin("create partition firstTopic firstPartition").get();
+            client.admin("create producer producerOne String Random").get();
+            client.admin("create consumer group firstGroup firstTopic Range").get();
+            client.admin("create consumer firstGroup firstConsumer").get();
+
+            client.setAutoFlush(false);
+            List<CompletableFuture<Long>> offsets = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                offsets.add(client.produce("producerOne", "firstTopic", i % 2 == 0 ? "firstPartition" : null,
+                    "message " + i));
+            }
+            client.flush();
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(offsets.get(i).get().longValue(), i);
+            }
+            client.setAutoFlush(true);
+
+            List<Event<Object>> fetched = client.fetch("firstTopic", "firstPartition", 990, 100).get();
+            assertEquals(fetched.size(), 10);
+            assertEquals(fetched.get(9).getValue(), "message 999");
+            assertEquals(fetched.get(9).getOffset(), 999);
+
+            List<Event<Object>> consumed = client.consume("firstConsumer", "firstPartition", 600).get();
+            assertEquals(consumed.size(), 600);
+            assertEquals(consumed.get(0).getValue(), "message 0");
+            client.commit("firstConsumer", "firstPartition", 600).get();
+            assertEquals(trb.getTopic("firstTopic").getConsumerGroups().get(0).getCommittedOffset("firstPartition"),
+                600);
+
+            assertEquals(client.produce("producerOne", "firstTopic", null, new byte[] {7}).get().longValue(), 1000);
+            ExecutionException error = assertThrows(ExecutionException.class,
+                () -> client.produce("producerOne", "missingTopic", null, "lost").get());
+            assertTrue(error.getCause() instanceof IllegalStateException);
+            assertThrows(ExecutionException.class,
+                () -> client.produce("unknownProducer", "firstTopic", "firstPartition", "lost").get());
+            assertEquals(Identifiers.lookup("unknownProducer"), Identifiers.NONE);
+            assertEquals(client.consume("firstConsumer", "firstPartition", 1000).get().size(), 401);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    @DisplayName("Test a throttled producer does not hold back other requests on the same client")
+    public void testThrottledProduce() throws Exception {
+        Tributary trb = new Tributary();
+        TributaryServer server = new TributaryServer(trb, "127.0.0.1", 0);
+        server.start();
+        try (TributaryClient client = new TributaryClient("127.0.0.1", server.getPort())) {
+            client.admin("create topic firstTopic String").get();
+            client.admin("create partition firstTopic firstPartition").get();
+            client.admin("create producer producerOne String Manual").get();
+            client.admin("create consumer group firstGroup firstTopic Range").get();
+            client.admin("create consumer firstGroup firstConsumer").get();
+            client.admin("quota producer producerOne 1 0").get();
+            for (int i = 0; i < 10 && client.getThrottleMillis() < 500; i++) {
+                client.produce("producerOne", "firstTopic", "firstPartition", "message " + i).get();
+            }
+            assertTrue(client.getThrottleMillis() >= 500);
+            CompletableFuture<Long> throttled = CompletableFuture.supplyAsync(() ->
+                client.produce("producerOne", "firstTopic", "firstPartition", "throttled").join());
+            Thread.sleep(50);
+            client.heartbeat("firstConsumer").get(500, TimeUnit.MILLISECONDS);
+            assertFalse(throttled.isDone());
+            assertTrue(throttled.get(5, TimeUnit.SECONDS) > 0);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    @DisplayName("Test prefetching fetches over loopback")
+    public void testFetchPrefetcher() throws Exception {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("producerOne", Integer.class, "Manual");
+        for (int i = 0; i < 500; i++) {
+            trb.produceValue("producerOne", "firstTopic", i, "firstPartition");
+        }
+        TributaryServer server = new TributaryServer(trb, "127.0.0.1", 0);
+        server.start();
+        try (TributaryClient client = new TributaryClient("127.0.0.1", server.getPort())) {
+            FetchPrefetcher prefetcher = new FetchPrefetcher(client, "firstTopic", "firstPartition", 100, 256);
+            for (int i = 100; i < 500; i++) {
+                Event<Object> event = prefetcher.poll(5000);
+                assertEquals(event.getOffset(), i);
+                assertEquals(event.getValue(), i);
+            }
+            assertNull(prefetcher.poll(5000));
+            assertEquals(prefetcher.getNextOffset(), 500L);
+            trb.produceValue("producerOne", "firstTopic", 500, "firstPartition");
+            assertEquals(prefetcher.poll(5000).getValue(), 500);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    @DisplayName("Test filtered fetches scan a bounded stretch of the log and carry on past it")
+    public void testFilteredFetchPrefetcher() throws Exception {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("producerOne", Integer.class, "Manual");
+        for (int i = 0; i < 10000; i++) {
+            trb.produceValue("producerOne", "firstTopic", i, "firstPartition");
+        }
+        TributaryServer server = new TributaryServer(trb, "127.0.0.1", 0);
+        server.start();
+        try (TributaryClient client = new TributaryClient("127.0.0.1", server.getPort())) {
+            TributaryClient.FetchResult result = client.fetch("firstTopic", "firstPartition", 0, 10, "value=9999",
+                null).get();
+            assertEquals(result.getEvents().size(), 0);
+            assertEquals(result.getNextOffset(), (long) Partition.MAX_SCANNED_EVENTS);
+
+            FetchPrefetcher prefetcher = new FetchPrefetcher(client, "firstTopic", "firstPartition", 0, 256,
+                "value=9999", null);
+            Event<Object> event = null;
+            for (int i = 0; i < 10 && event == null; i++) {
+                event = prefetcher.poll(5000);
+            }
+            assertEquals(event.getValue(), 9999);
+            assertNull(prefetcher.poll(5000));
+            assertEquals(prefetcher.getNextOffset(), 10000L);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    @DisplayName("Test admin commands touching files are refused and malformed responses fail pending requests")
+    public void testAdminRestrictionsAndMalformedFrames() throws Exception {
+        Tributary trb = new Tributary();
+        TributaryServer server = new TributaryServer(trb, "127.0.0.1", 0);
+        server.start();
+        try (TributaryClient client = new TributaryClient("127.0.0.1", server.getPort())) {
+            client.admin("create topic firstTopic String").get();
+            ExecutionException error = assertThrows(ExecutionException.class,
+                () -> client.admin("checkpoint /tmp/tributary-admin.bin").get());
+            assertTrue(error.getCause().getMessage().contains("not allowed"));
+        } finally {
+            server.stop();
+        }
+
+        try (ServerSocket broken = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TributaryClient client = new TributaryClient("127.0.0.1", broken.getLocalPort());
+            CompletableFuture<Boolean> pending = client.heartbeat("firstConsumer");
+            try (Socket socket = broken.accept()) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(2);
+                out.writeInt(1);
+                out.flush();
+                ExecutionException error = assertThrows(ExecutionException.class,
+                    () -> pending.get(5, TimeUnit.SECONDS));
+                assertTrue(error.getCause().getMessage().contains("Invalid frame length"));
+                assertThrows(ExecutionException.class,
+                    () -> client.heartbeat("firstConsumer").get(5, TimeUnit.SECONDS));
+            }
+            client.close();
+        }
+    }
+}
@@ -5,6 +5,29 @@ import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
 public class TributaryTest {
     // Unit tests and integration tests
     @Test
@@ -227,6 +250,1458 @@ public class TributaryTest {
         trb.setConsumerGroupRebalancing("secondGroup", "");
     }
 
+    @Test
+    @DisplayName("Test metrics")
+    public void testMetrics() {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", String.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("producerOne", String.class, "Random");
+        trb.produceEvent("producerOne", "firstTopic", "sampleEventString");
+        trb.produceEvent("producerOne", "firstTopic", "sampleEventString2");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        trb.createConsumer("firstGroup", "firstConsumer");
+        trb.consumeEvent("firstConsumer", "firstPartition");
+        MetricsSnapshot snapshot = trb.showMetrics();
+        assertEquals(snapshot.get("partition.firstTopic.firstPartition.produced"), 2);
+        assertEquals(snapshot.get("partition.firstTopic.firstPartition.consumed"), 1);
+        assertEquals(snapshot.get("partition.firstTopic.firstPartition.depth"), 1);
+        assertEquals(snapshot.get("group.firstTopic.firstGroup.lag"), 1);
+        assertEquals(snapshot.get("group.firstTopic.firstGroup.rebalances"), 1);
+        assertEquals(snapshot.get("topic.firstTopic.produce.latency.count"), 2);
+        assertEquals(snapshot.get("topic.firstTopic.consume.latency.count"), 1);
+
+        // a group with the same id in another topic has its own lag
+        trb.createTopic("secondTopic", String.class);
+        trb.createPartition("secondTopic", "secondPartition");
+        trb.createConsumerGroup("firstGroup", "secondTopic", "Range");
+        snapshot = trb.showMetrics();
+        assertEquals(snapshot.get("group.firstTopic.firstGroup.lag"), 1);
+        assertEquals(snapshot.get("group.secondTopic.firstGroup.lag"), 0);
+        trb.getTopic("secondTopic").addConsumer("firstGroup", "secondConsumer");
+        snapshot = trb.showMetrics();
+        assertEquals(snapshot.get("group.firstTopic.firstGroup.rebalances"), 1);
+        assertEquals(snapshot.get("group.secondTopic.firstGroup.rebalances"), 1);
+    }
+
+    @Test
+    @DisplayName("Test latency histogram")
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(histogram.getCount(), 1000);
+        assertEquals(histogram.getMax(), 1000000);
+        assertEquals(histogram.getPercentile(50), 500000, 500000 * 0.04);
+        assertEquals(histogram.getPercentile(99), 990000, 990000 * 0.04);
+        assertEquals(histogram.getPercentile(100), 1000000);
+    }
+
+    @Test
+    @DisplayName("Test produce inline value")
+    public void testProduceValue() {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", String.class);
+        Partition<?> part = trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("producerOne", String.class, "Random");
+        Event<?> first = trb.produceValue("producerOne", "firstTopic", "inline message");
+        Event<?> second = trb.produceValue("producerOne", "firstTopic", 42, "firstPartition");
+        Event<?> third = trb.produceValue("producerOne", "firstTopic", new byte[] {1, 2, 3});
+        assertEquals(part.getQueue().size(), 3);
+        assertEquals(first.getPayloadType(), "String");
+        assertEquals(second.getValue(), 42);
+        assertEquals(third.getPayloadType(), "byte[]");
+        assertNotEquals(first.getId(), second.getId());
+        Event<?> fromFile = trb.produceEvent("producerOne", "firstTopic", "sampleEventString");
+        Event<?> fromSameFile = trb.produceEvent("producerOne", "firstTopic", "sampleEventString");
+        assertNotEquals(fromFile.getId(), fromSameFile.getId());
+    }
+
+    @Test
+    @DisplayName("Test bulk ingest")
+    public void testIngestEvents() throws IOException {
+        File events = File.createTempFile("events", ".ndjson");
+        events.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            lines.add(i % 2 == 0 ? "{\"value\": \"message " + i + "\"}" : String.valueOf(i));
+        }
+        lines.add("");
+        Files.write(events.toPath(), lines);
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", String.class);
+        Partition<?> part1 = trb.createPartition("firstTopic", "firstPartition");
+        Partition<?> part2 = trb.createPartition("firstTopic", "secondPartition");
+        trb.createProducer("producerOne", String.class, "Random");
+        assertEquals(trb.ingestEvents("producerOne", "firstTopic", events.getPath(), 4), 25);
+        assertEquals(part1.getQueue().size() + part2.getQueue().size(), 25);
+        assertThrows(IllegalArgumentException.class,
+            () -> trb.ingestEvents("producerOne", "firstTopic", events.getPath() + ".missing", 4));
+    }
+
+    @Test
+    @DisplayName("Test checkpoint and restore")
+    public void testCheckpointRestore() throws IOException {
+        File checkpoint = File.createTempFile("tributary", ".snapshot");
+        checkpoint.deleteOnExit();
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", String.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createPartition("firstTopic", "secondPartition");
+        trb.createProducer("producerOne", String.class, "Manual");
+        trb.produceEvent("producerOne", "firstTopic", "sampleEventString", "firstPartition");
+        trb.produceEvent("producerOne", "firstTopic", "sampleEventInteger", "firstPartition");
+        trb.produceValue("producerOne", "firstTopic", new byte[] {1, 2, 3}, "secondPartition");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "RoundRobin");
+        trb.createConsumer("firstGroup", "firstConsumer");
+        trb.createConsumer("firstGroup", "secondConsumer");
+        trb.consumeEvent("firstConsumer", "firstPartition");
+        assertTrue(trb.checkpoint(checkpoint.getPath()) > 0);
+
+        Tributary restored = new Tributary();
+        restored.restore(checkpoint.getPath());
+        Topic<?> topic = restored.getTopic("firstTopic");
+        Partition<?> part1 = topic.getPartition("firstPartition");
+        Partition<?> part2 = topic.getPartition("secondPartition");
+        assertEquals(part1.getQueue().size(), 1);
+        assertEquals(part1.getQueue().peek().getValue(), 123);
+        assertEquals(part1.getQueue().peek().getPayloadType(), "Integer");
+        assertEquals(((byte[]) part2.getQueue().peek().getValue()).length, 3);
+        ConsumerGroup<?> group = topic.getConsumerGroups().get(0);
+        assertEquals(group.getRebalancingStrategyName(), "RoundRobin");
+        Consumer<?> cons = group.getConsumer("firstConsumer");
+        assertEquals(cons.getPartitions().get(0).getId(), "firstPartition");
+        assertEquals(cons.getEventsConsumed().get(0).getValue(), "This is a sample message");
+        assertEquals(group.getConsumer("secondConsumer").getPartitions().get(0).getId(), "secondPartition");
+        assertEquals(restored.getProducer("producerOne").getStrategyName(), "Manual");
+        // Offsets carry on from where the checkpointed partition left off
+        Event<?> next = restored.produceValue("producerOne", "firstTopic", "after restore", "firstPartition");
+        assertEquals(next.getId(), "firstPartition-2");
+        restored.consumeEvent("firstConsumer", "firstPartition");
+        assertEquals(cons.getEventsConsumed().size(), 2);
+    }
+
+    @Test
+    @DisplayName("Test checkpoint and restore keep value types")
+    public void testCheckpointRestoreValueTypes() throws IOException {
+        File checkpoint = File.createTempFile("tributary", ".snapshot");
+        checkpoint.deleteOnExit();
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Object.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("producerOne", Object.class, "Manual");
+        List<Object> values = List.of(new JSONArray("[1,2]"), new BigDecimal("1.5"),
+            new BigInteger("12345678901234567890"), 1.5f, JSONObject.NULL, "[1,2]");
+        values.forEach(value -> trb.produceValue("producerOne", "firstTopic", value, "firstPartition"));
+        trb.checkpoint(checkpoint.getPath());
+        assertThrows(IllegalArgumentException.class, () -> Snapshot.encodeValue(new Object()));
+
+        Tributary restored = new Tributary();
+        restored.restore(checkpoint.getPath());
+        Partition<?> partition = restored.getTopic("firstTopic").getPartition("firstPartition");
+        List<? extends Event<?>> events = partition.getEvents(0, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(events.get(i).getValue().getClass(), values.get(i).getClass());
+        }
+        assertEquals(events.get(0).getValue().toString(), "[1,2]");
+        assertEquals(events.get(1).getValue(), new BigDecimal("1.5"));
+
+        // a snapshot that cannot be read leaves the restored state as it was
+        Files.write(checkpoint.toPath(), new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        assertThrows(IllegalArgumentException.class, () -> restored.restore(checkpoint.getPath()));
+        assertEquals(restored.getTopic("firstTopic").getPartition("firstPartition").getQueue().size(),
+            values.size());
+        assertEquals(restored.getProducer("producerOne").getStrategyName(), "Manual");
+    }
+
+    @Test
+    @DisplayName("Test consumer runtime")
+    public void testConsumerRuntime() throws InterruptedException {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createPartition("firstTopic", "secondPartition");
+        trb.createPartition("firstTopic", "thirdPartition");
+        trb.createProducer("producerOne", Integer.class, "Manual");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        Consumer<?> cons = trb.createConsumer("firstGroup", "firstConsumer");
+        Map<String, List<Object>> handled = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(30);
+        ConsumerRuntime<?> runtime = trb.startConsumerRuntime("firstConsumer", (event, partition) -> {
+            handled.computeIfAbsent(partition.getId(), p -> new CopyOnWriteArrayList<>()).add(event.getValue());
+            latch.countDown();
+        });
+        assertEquals(runtime.getPartitions().size(), 3);
+        String[] partitionIds = {"firstPartition", "secondPartition", "thirdPartition"};
+        for (int i = 0; i < 30; i++) {
+            trb.produceValue("producerOne", "firstTopic", i, partitionIds[i % 3]);
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(cons.getEventsConsumed().size(), 30);
+        for (int p = 0; p < 3; p++) {
+            List<Object> values = handled.get(partitionIds[p]);
+            for (int i = 0; i < values.size(); i++) {
+                assertEquals(values.get(i), i * 3 + p);
+            }
+        }
+        trb.createConsumer("firstGroup", "secondConsumer");
+        assertEquals(runtime.getPartitions().size(), 2);
+        trb.deleteConsumer("firstConsumer");
+        assertEquals(runtime.getPartitions().size(), 0);
+        runtime.stop();
+    }
+
+    @Test
+    @DisplayName("Test a rebalance does not wait on a worker committing to the same group")
+    public void testRebalanceWhileCommitting() throws InterruptedException {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createPartition("firstTopic", "secondPartition");
+        trb.createProducer("producerOne", Integer.class, "Manual");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        Consumer<?> cons = trb.createConsumer("firstGroup", "firstConsumer");
+        CountDownLatch handling = new CountDownLatch(1);
+        ConsumerRuntime<?> runtime = trb.startConsumerRuntime("firstConsumer", (event, partition) -> {
+            int generation = cons.getGeneration();
+            handling.countDown();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                trb.commitOffset("firstConsumer", partition.getId(), event.getOffset() + 1, generation);
+            } catch (IllegalStateException e) {
+                // fenced off by the rebalance
+            }
+        });
+        trb.produceValue("producerOne", "firstTopic", 1, "secondPartition");
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+        Thread rebalance = new Thread(() -> trb.createConsumer("firstGroup", "secondConsumer"));
+        rebalance.start();
+        rebalance.join(5000);
+        assertFalse(rebalance.isAlive());
+        assertEquals(runtime.getPartitions().size(), 1);
+        runtime.stop();
+    }
+
+    @Test
+    @DisplayName("Test new partition is allocated")
+    public void testAddPartitionRebalances() {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", String.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        trb.createConsumerGroup("secondGroup", "firstTopic", "RoundRobin");
+        Consumer<?> cons1 = trb.createConsumer("firstGroup", "firstConsumer");
+        Consumer<?> cons2 = trb.createConsumer("firstGroup", "secondConsumer");
+        Consumer<?> cons3 = trb.createConsumer("secondGroup", "thirdConsumer");
+        assertEquals(cons1.getPartitions().size(), 1);
+        assertEquals(cons2.getPartitions().size(), 0);
+        trb.createPartition("firstTopic", "secondPartition");
+        assertEquals(cons1.getPartitions().size(), 1);
+        assertEquals(cons2.getPartitions().get(0).getId(), "secondPartition");
+        assertEquals(cons3.getPartitions().size(), 2);
+    }
+
+    @Test
+    @DisplayName("Test expand topic with key migration")
+    public void testExpandTopic() {
+        Tributary trb = new Tributary();
+        Topic<?> topic = trb.createTopic("firstTopic", Integer.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("producerOne", Integer.class, "Random");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        Consumer<?> cons1 = trb.createConsumer("firstGroup", "firstConsumer");
+        Consumer<?> cons2 = trb.createConsumer("firstGroup", "secondConsumer");
+        for (int i = 0; i < 40; i++) {
+            trb.produceKeyedValue("producerOne", "firstTopic", "key" + (i % 8), i);
+        }
+        trb.produceValue("producerOne", "firstTopic", -1);
+        int moved = trb.expandTopic("firstTopic", List.of("secondPartition", "thirdPartition"), true);
+        assertTrue(moved > 0);
+        assertEquals(cons1.getPartitions().size() + cons2.getPartitions().size(), 3);
+        for (Partition<?> partition : topic.getPartitions()) {
+            partition.getQueue().stream()
+                     .filter(event -> event.getKey() != null)
+                     .forEach(event -> assertEquals(
+                         topic.getPartitions().get(topic.partitionIndexForKey(event.getKey())), partition));
+        }
+        assertEquals(topic.getLag(), 41);
+        for (int k = 0; k < 8; k++) {
+            String key = "key" + k;
+            Partition<?> partition = topic.getPartitions().get(topic.partitionIndexForKey(key));
+            int previous = -1;
+            for (Event<?> event : partition.getQueue()) {
+                if (key.equals(event.getKey())) {
+                    assertTrue((Integer) event.getValue() > previous);
+                    previous = (Integer) event.getValue();
+                }
+            }
+            assertEquals(previous, 32 + k);
+        }
+    }
+
+    @Test
+    @DisplayName("Test partition replication")
+    public void testReplication() {
+        LoopbackTransport transport = new LoopbackTransport();
+        List<ReplicaManager> nodes = new ArrayList<>();
+        List<Partition<?>> replicas = new ArrayList<>();
+        for (String nodeId : List.of("node1", "node2", "node3")) {
+            Tributary trb = new Tributary();
+            trb.createTopic("firstTopic", String.class);
+            replicas.add(trb.createPartition("firstTopic", "firstPartition"));
+            trb.createProducer("producerOne", String.class, "Manual");
+            ReplicaManager node = new ReplicaManager(nodeId, trb, transport);
+            node.setMaxLagMillis(200);
+            transport.register(node);
+            nodes.add(node);
+        }
+        ReplicaManager leader = nodes.get(0);
+        leader.becomeLeader("firstTopic", "firstPartition", List.of("node2", "node3"), 2);
+        nodes.get(1).becomeFollower("firstTopic", "firstPartition", "node1");
+        nodes.get(2).becomeFollower("firstTopic", "firstPartition", "node1");
+        nodes.get(1).replicate();
+        nodes.get(2).replicate();
+        assertEquals(leader.getInSyncReplicas("firstTopic", "firstPartition").size(), 2);
+        nodes.get(1).start(5);
+        nodes.get(2).start(5);
+        for (int i = 0; i < 10; i++) {
+            leader.produce("producerOne", "firstTopic", "firstPartition", "message " + i, 5000);
+        }
+        assertEquals(leader.getHighWatermark("firstTopic", "firstPartition"), 10);
+        assertTrue(replicas.get(1).getNextOffset() >= 10);
+        assertEquals(replicas.get(1).getEvents(9, 1).get(0).getValue(), "message 9");
+
+        // Losing one follower shrinks the in-sync set but produces are still acknowledged
+        transport.disconnect("node3");
+        Event<?> event = leader.produce("producerOne", "firstTopic", "firstPartition", "after loss", 5000);
+        assertEquals(leader.getInSyncReplicas("firstTopic", "firstPartition"), Set.of("node2"));
+        assertEquals(event.getOffset(), 10);
+
+        // Losing both leaves fewer in-sync replicas than required
+        transport.disconnect("node2");
+        assertThrows(IllegalStateException.class,
+            () -> leader.produce("producerOne", "firstTopic", "firstPartition", "rejected", 1000));
+        transport.reconnect("node3");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (leader.getInSyncReplicas("firstTopic", "firstPartition").isEmpty()
+            && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        leader.produce("producerOne", "firstTopic", "firstPartition", "recovered", 5000);
+        assertTrue(replicas.get(2).getNextOffset() >= 12);
+        nodes.get(1).stop();
+        nodes.get(2).stop();
+    }
+
+    @Test
+    @DisplayName("Test follower reset after leader retention passes it")
+    public void testReplicaReset() {
+        LoopbackTransport transport = new LoopbackTransport();
+        List<Tributary> systems = new ArrayList<>();
+        List<ReplicaManager> nodes = new ArrayList<>();
+        for (String nodeId : List.of("node1", "node2")) {
+            Tributary trb = new Tributary();
+            trb.createTopic("firstTopic", String.class);
+            trb.createPartition("firstTopic", "firstPartition");
+            trb.createProducer("producerOne", String.class, "Manual");
+            ReplicaManager node = new ReplicaManager(nodeId, trb, transport);
+            transport.register(node);
+            systems.add(trb);
+            nodes.add(node);
+        }
+        ReplicaManager leader = nodes.get(0);
+        ReplicaManager follower = nodes.get(1);
+        systems.get(0).setRetention("firstTopic", 10);
+        leader.becomeLeader("firstTopic", "firstPartition", List.of("node2"), 1);
+        follower.becomeFollower("firstTopic", "firstPartition", "node1");
+        for (int i = 0; i < 5; i++) {
+            leader.produce("producerOne", "firstTopic", "firstPartition", "message " + i, 1000);
+        }
+        assertEquals(follower.replicate(), 5);
+
+        // Retention on the leader discards events the disconnected follower has not fetched
+        transport.disconnect("node2");
+        for (int i = 5; i < 100; i++) {
+            leader.produce("producerOne", "firstTopic", "firstPartition", "message " + i, 1000);
+        }
+        Partition<?> leaderPartition = systems.get(0).getTopic("firstTopic").getPartition("firstPartition");
+        Partition<?> followerPartition = systems.get(1).getTopic("firstTopic").getPartition("firstPartition");
+        long leaderStart = leaderPartition.getLogStartOffset();
+        assertTrue(leaderStart > 5);
+        transport.reconnect("node2");
+        assertEquals((long) follower.replicate(), 100 - leaderStart);
+        assertEquals(followerPartition.getLogStartOffset(), leaderStart);
+        assertEquals(followerPartition.getNextOffset(), 100);
+        assertEquals(followerPartition.getEvents(99, 1).get(0).getValue(), "message 99");
+        assertEquals(systems.get(1).getMetrics().snapshot().get("replica.firstTopic.firstPartition.resets"), 1);
+        assertEquals(follower.replicate(), 0);
+        assertEquals(leader.getInSyncReplicas("firstTopic", "firstPartition"), Set.of("node2"));
+    }
+
+    @Test
+    @DisplayName("Test consumer eviction after missed heartbeats")
+    public void testLiveness() throws InterruptedException {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", String.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createPartition("firstTopic", "secondPartition");
+        trb.createPartition("firstTopic", "thirdPartition");
+        trb.createPartition("firstTopic", "fourthPartition");
+        ConsumerGroup<?> group = trb.createConsumerGroup("firstGroup", "firstTopic", "RoundRobin");
+        Consumer<?> live = trb.createConsumer("firstGroup", "liveConsumer");
+        trb.createConsumer("firstGroup", "crashedConsumer");
+        trb.enableLiveness(200);
+        Consumer<?> late = trb.createConsumer("firstGroup", "lateConsumer");
+        List<Partition<?>> livePartitions = new ArrayList<>(live.getPartitions());
+        assertFalse(trb.heartbeat("unknownConsumer"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (group.containsConsumer("crashedConsumer") && System.currentTimeMillis() < deadline) {
+            assertTrue(trb.heartbeat("liveConsumer"));
+            assertTrue(trb.heartbeat("lateConsumer"));
+            Thread.sleep(20);
+        }
+        assertFalse(group.containsConsumer("crashedConsumer"));
+        assertFalse(trb.heartbeat("crashedConsumer"));
+        assertTrue(live.getPartitions().containsAll(livePartitions));
+        assertEquals(live.getPartitions().size() + late.getPartitions().size(), 4);
+        assertEquals(trb.getMetrics().snapshot().get("group.firstTopic.firstGroup.evictions"), 1);
+    }
+
+    @Test
+    @DisplayName("Test seeking by time and playing back events")
+    public void testPlayback() throws IOException, InterruptedException {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        Partition<?> partition = trb.createPartition("firstTopic", "firstPartition");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        Consumer<?> consumer = trb.createConsumer("firstGroup", "firstConsumer");
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+        for (int i = 0; i < 300; i++) {
+            trb.produceValue("firstProducer", "firstTopic", i, "firstPartition");
+            if (i % 50 == 0) {
+                Thread.sleep(2);
+            }
+        }
+        List<? extends Event<?>> log = partition.getEvents(0, 300);
+        for (int i : new int[] {0, 63, 64, 65, 150, 299}) {
+            LocalDateTime time = log.get(i).getCreationDate();
+            long expected = 0;
+            while (log.get((int) expected).getCreationDate().isBefore(time)) {
+                expected++;
+            }
+            assertEquals(partition.offsetForTime(time), expected);
+        }
+        assertEquals(partition.offsetForTime(log.get(299).getCreationDate().plusSeconds(1)), 300);
+
+        trb.playback("firstConsumer", "firstPartition", 290);
+        assertEquals(consumer.getEventsConsumed().size(), 10);
+        assertEquals(consumer.getEventsConsumed().get(0).getValue(), 290);
+        assertEquals(partition.getQueue().size(), 300);
+
+        LocalDateTime from = log.get(120).getCreationDate();
+        LocalDateTime to = log.get(260).getCreationDate();
+        trb.playback("firstConsumer", "firstPartition", from, to);
+        long played = partition.offsetForTime(to) - partition.offsetForTime(from);
+        assertEquals(consumer.getEventsConsumed().size(), 10 + played);
+        assertTrue(played > 0);
+
+        File file = File.createTempFile("tributary", ".snapshot");
+        try {
+            trb.checkpoint(file.getPath());
+            trb.restore(file.getPath());
+            Partition<?> restored = trb.getTopic("firstTopic").getPartition("firstPartition");
+            assertEquals(restored.offsetForTime(from), partition.offsetForTime(from));
+            assertEquals(restored.offsetForTime(to), partition.offsetForTime(to));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    @DisplayName("Test consumer filters and projections")
+    public void testFilter() throws IOException {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Object.class);
+        Partition<?> partition = trb.createPartition("firstTopic", "firstPartition");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        Consumer<?> consumer = trb.createConsumer("firstGroup", "firstConsumer");
+        trb.createProducer("firstProducer", Object.class, "Manual");
+        trb.createProducer("secondProducer", Object.class, "Manual");
+        for (int i = 0; i < 10; i++) {
+            trb.produceValue(i % 2 == 0 ? "firstProducer" : "secondProducer", "firstTopic", i, "firstPartition");
+        }
+        File file = File.createTempFile("tributary", ".snapshot");
+        try {
+            trb.checkpoint(file.getPath());
+            trb.restore(file.getPath());
+        } finally {
+            file.delete();
+        }
+        partition = trb.getTopic("firstTopic").getPartition("firstPartition");
+        consumer = trb.getTopic("firstTopic").getGroupWithConsumer("firstConsumer").getConsumer("firstConsumer");
+        List<? extends Event<?>> odd = partition.getEvents(0, 10, EventFilter.parse("source=secondProducer"));
+        assertEquals(odd.size(), 5);
+        assertEquals(odd.get(0).getOffset(), 1L);
+
+        trb.setConsumerFilter("firstConsumer", "source!=secondProducer&value!=4");
+        trb.consumeEvents("firstConsumer", "firstPartition", 4);
+        assertEquals(consumer.getEventsConsumed().stream().map(Event::getValue).collect(Collectors.toList()),
+            List.of(0, 2, 6, 8));
+        assertEquals(partition.getFilteredCount(), 5);
+        assertNotNull(partition.getEvents(0, 10).get(1).getEncodedValue());
+        assertThrows(NoSuchElementException.class, () -> trb.consumeEvent("firstConsumer", "firstPartition"));
+
+        trb.setConsumerFilter("firstConsumer", "payloadType=JSONObject&value.user.country=AU");
+        trb.setConsumerProjection("firstConsumer", List.of("id"));
+        trb.produceValue("firstProducer", "firstTopic", new JSONObject("{\"id\":1,\"user\":{\"country\":\"NZ\"}}"),
+            "firstPartition");
+        trb.produceValue("firstProducer", "firstTopic", new JSONObject("{\"id\":2,\"user\":{\"country\":\"AU\"}}"),
+            "firstPartition");
+        trb.consumeEvent("firstConsumer", "firstPartition");
+        Event<?> event = consumer.getEventsConsumed().get(4);
+        assertEquals(event.getValue().toString(), "{\"id\":2}");
+        assertEquals(event.getOffset(), 11L);
+        assertThrows(IllegalArgumentException.class, () -> EventFilter.parse("colour=red"));
+    }
+
+    @Test
+    @DisplayName("Test filters match encoded values as they match values on the heap")
+    public void testFilterEncodedValues() {
+        Tributary trb = new Tributary();
+        trb.createTopic("heapTopic", Object.class);
+        trb.createOffHeapTopic("offHeapTopic", Object.class);
+        Partition<?> heap = trb.createPartition("heapTopic", "heapPartition");
+        Partition<?> offHeap = trb.createPartition("offHeapTopic", "offHeapPartition");
+        trb.createProducer("firstProducer", Object.class, "Manual");
+        List<Object> values = List.of(false, 1.0, 7, 7L, "007", new JSONArray("[1,2]"));
+        for (Object value : values) {
+            trb.produceValue("firstProducer", "heapTopic", value, "heapPartition");
+            trb.produceValue("firstProducer", "offHeapTopic", value, "offHeapPartition");
+        }
+        for (String filter : List.of("value=yes", "value=false", "value=1", "value=1.0", "value=007", "value=7",
+                "value=[1,2]")) {
+            List<Long> matched = heap.getEvents(0, values.size(), EventFilter.parse(filter)).stream()
+                .map(Event::getOffset).collect(Collectors.toList());
+            assertEquals(offHeap.getEvents(0, values.size(), EventFilter.parse(filter)).stream()
+                .map(Event::getOffset).collect(Collectors.toList()), matched);
+        }
+        assertEquals(offHeap.getEvents(0, values.size(), EventFilter.parse("value=yes")).size(), 0);
+        assertEquals(offHeap.getEvents(0, values.size(), EventFilter.parse("value=7")).size(), 2);
+    }
+
+    @Test
+    @DisplayName("Test stream processing between topics")
+    public void testStream() throws InterruptedException {
+        Tributary trb = new Tributary();
+        trb.createTopic("numbers", Integer.class);
+        trb.createPartition("numbers", "firstPartition");
+        trb.createPartition("numbers", "secondPartition");
+        trb.createTopic("doubled", Integer.class);
+        Partition<?> doubled = trb.createPartition("doubled", "firstPartition");
+        trb.createTopic("totals", Object.class);
+        Partition<?> totals = trb.createPartition("totals", "firstPartition");
+        trb.createProducer("firstProducer", Integer.class, "Random");
+        EventStream stateless = trb.createStream("doubler", "numbers")
+                                   .filter(value -> (Integer) value % 3 != 0)
+                                   .flatMap(value -> List.of(value, (Integer) value * 2))
+                                   .to("doubled", 16);
+        EventStream windowed = trb.createStream("summer", "doubled")
+                                  .selectKey(value -> (Integer) value % 2 == 0 ? "even" : "odd")
+                                  .aggregate(200, 100, () -> 0, (sum, value) -> sum + (Integer) value)
+                                  .to("totals", 16);
+        stateless.start(2);
+        windowed.start(1);
+        int even = 0;
+        int odd = 0;
+        for (int i = 0; i < 90; i++) {
+            trb.produceKeyedValue("firstProducer", "numbers", "key" + i, i);
+            if (i % 3 != 0) {
+                even += 2 * i + (i % 2 == 0 ? i : 0);
+                odd += i % 2 == 0 ? 0 : i;
+            }
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        Map<String, Integer> sums = new ConcurrentHashMap<>();
+        // every value is in two overlapping windows
+        while (System.currentTimeMillis() < deadline
+            && (sums.getOrDefault("even", 0) < 2 * even || sums.getOrDefault("odd", 0) < 2 * odd)) {
+            Thread.sleep(50);
+            sums.clear();
+            totals.getEvents(0, 1000).forEach(event -> {
+                JSONObject result = (JSONObject) event.getValue();
+                sums.merge(result.getString("key"), result.getInt("value"), Integer::sum);
+            });
+        }
+        stateless.stop();
+        windowed.stop();
+        assertEquals(doubled.getNextOffset(), 120L);
+        assertEquals(sums.get("even").intValue(), 2 * even);
+        assertEquals(sums.get("odd").intValue(), 2 * odd);
+        assertEquals(trb.getMetrics().snapshot().get("stream.doubler.processed"), 90);
+        assertEquals(trb.getMetrics().snapshot().get("stream.summer.processed"), 120);
+    }
+
+    @Test
+    @DisplayName("Test off-heap partitions with retention")
+    public void testOffHeap() throws IOException {
+        Tributary trb = new Tributary();
+        trb.createOffHeapTopic("firstTopic", String.class);
+        Partition<?> partition = trb.createPartition("firstTopic", "firstPartition");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        Consumer<?> consumer = trb.createConsumer("firstGroup", "firstConsumer");
+        trb.createProducer("firstProducer", String.class, "Manual");
+        String payload = "x".repeat(64 * 1024);
+        for (int i = 0; i < 40; i++) {
+            trb.produceValue("firstProducer", "firstTopic", payload + i, "firstPartition");
+        }
+        assertTrue(partition.getQueue() instanceof OffsetQueue);
+        long allocated = partition.getOffHeapBytes();
+        assertTrue(allocated >= 40 * 64 * 1024);
+        trb.consumeEvent("firstConsumer", "firstPartition");
+        assertEquals(consumer.getEventsConsumed().get(0).getValue(), payload + 0);
+        assertEquals(partition.getQueue().size(), 39);
+
+        trb.setRetention("firstTopic", 10);
+        long start = partition.getLogStartOffset();
+        assertTrue(start > 0 && start <= 30);
+        assertTrue(partition.getOffHeapBytes() < allocated);
+        assertEquals(partition.getQueue().size(), 40 - start);
+        assertEquals(partition.getQueue().peek().getOffset(), start);
+        assertEquals(partition.getEvents(0, 1).get(0).getValue(), payload + start);
+
+        File file = File.createTempFile("tributary", ".snapshot");
+        try {
+            trb.checkpoint(file.getPath());
+            trb.restore(file.getPath());
+        } finally {
+            file.delete();
+        }
+        Topic<?> restored = trb.getTopic("firstTopic");
+        assertTrue(restored.isOffHeap());
+        assertEquals(restored.getRetention(), 10L);
+        Partition<?> restoredPartition = restored.getPartition("firstPartition");
+        assertEquals(restoredPartition.getLogStartOffset(), start);
+        assertEquals(restoredPartition.getQueue().size(), 40 - start);
+        trb.consumeEvent("firstConsumer", "firstPartition");
+        Event<?> event = trb.getTopic("firstTopic").getGroupWithConsumer("firstConsumer")
+                            .getConsumer("firstConsumer").getEventsConsumed().get(1);
+        assertEquals(event.getValue(), payload + start);
+    }
+
+    @Test
+    @DisplayName("Test off-heap topics keep value types")
+    public void testOffHeapValueTypes() {
+        Tributary trb = new Tributary();
+        trb.createOffHeapTopic("firstTopic", Object.class);
+        Partition<?> partition = trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("producerOne", Object.class, "Manual");
+        List<Object> values = List.of(new JSONArray("[1,2]"), new BigDecimal("1.5"), 1.5f, JSONObject.NULL);
+        values.forEach(value -> trb.produceValue("producerOne", "firstTopic", value, "firstPartition"));
+        List<? extends Event<?>> events = partition.getEvents(0, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(events.get(i).getValue().getClass(), values.get(i).getClass());
+            assertEquals(events.get(i).getPayloadType(), values.get(i).getClass().getSimpleName());
+        }
+        assertEquals(events.get(1).getValue(), new BigDecimal("1.5"));
+
+        // a value the log cannot store is rejected without taking an offset
+        assertThrows(IllegalArgumentException.class,
+            () -> trb.produceValue("producerOne", "firstTopic", new Object(), "firstPartition"));
+        assertEquals(partition.getNextOffset(), (long) values.size());
+        assertEquals(partition.getQueue().size(), values.size());
+    }
+
+    @Test
+    @DisplayName("Test interned identifiers")
+    public void testIdentifiers() {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        Partition<?> partition = trb.createPartition("firstTopic", "firstPartition");
+        Producer<?> producer = trb.createProducer("firstProducer", Integer.class, "Manual");
+        Event<?> first = trb.produceValue("firstProducer", "firstTopic", 1, "firstPartition");
+        Event<?> second = trb.produceValue("firstProducer", "firstTopic", 2, "firstPartition");
+        assertEquals(first.getSourceHandle(), producer.getHandle());
+        assertEquals(second.getSourceHandle(), producer.getHandle());
+        assertEquals(first.getPayloadTypeHandle(), Identifiers.intern("Integer"));
+        assertEquals(first.getSource(), "firstProducer");
+        assertEquals(first.getPayloadType(), "Integer");
+        assertEquals(Identifiers.lookup("firstPartition"), partition.getHandle());
+        assertEquals(Identifiers.lookup("neverRegisteredIdentifier"), Identifiers.NONE);
+        assertEquals(Identifiers.name(Identifiers.NONE), null);
+        assertEquals(trb.getTopic("firstTopic").getPartition("firstPartition"), partition);
+    }
+
+    @Test
+    @DisplayName("Test producer and topic quotas")
+    public void testQuotas() {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+        trb.createProducer("secondProducer", Integer.class, "Manual");
+        trb.setProducerQuota("firstProducer", 100, 0);
+        for (int i = 0; i < 300; i++) {
+            trb.produceValue("firstProducer", "firstTopic", i, "firstPartition");
+        }
+        // throttled producers are delayed, never refused
+        assertEquals(trb.getTopic("firstTopic").getPartition("firstPartition").getQueue().size(), 300);
+        assertTrue(trb.getThrottleMillis("firstProducer", "firstTopic") > 0);
+        assertTrue(trb.getMetrics().counter("quota.producer.firstProducer.throttled").sum() > 0);
+        assertEquals(trb.getMetrics().counter("quota.producer.firstProducer.events").sum(), 300L);
+        assertEquals(trb.getThrottleMillis("secondProducer", "firstTopic"), 0L);
+
+        trb.setTopicQuota("firstTopic", 0, 10);
+        trb.produceValue("secondProducer", "firstTopic", 1, "firstPartition");
+        trb.produceValue("secondProducer", "firstTopic", 2, "firstPartition");
+        trb.produceValue("secondProducer", "firstTopic", 3, "firstPartition");
+        assertTrue(trb.getThrottleMillis("secondProducer", "firstTopic") > 0);
+
+        trb.setProducerQuota("firstProducer", 0, 0);
+        trb.setTopicQuota("firstTopic", 0, 0);
+        assertEquals(trb.getThrottleMillis("firstProducer", "firstTopic"), 0L);
+        assertThrows(IllegalArgumentException.class, () -> trb.setProducerQuota("firstProducer", -1, 0));
+    }
+
+    @Test
+    @DisplayName("Test hierarchical timer wheel and delayed delivery")
+    public void testDelayed() throws InterruptedException, IOException {
+        // four slots per level, so these delays are spread over three levels
+        TimerWheel wheel = new TimerWheel("test-wheel", 1, 4);
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(4);
+        for (int delay : new int[] {60, 2, 25, 9}) {
+            wheel.schedule(() -> {
+                fired.add(delay);
+                done.countDown();
+            }, delay);
+        }
+        TimerWheel.Timeout cancelled = wheel.schedule(() -> fired.add(-1), 30);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(fired, List.of(2, 9, 25, 60));
+        assertEquals(wheel.getPending(), 0);
+        wheel.stop();
+
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        Partition<?> partition = trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+        trb.produceDelayedValue("firstProducer", "firstTopic", 1, "firstPartition",
+            LocalDateTime.now().plusNanos(200_000_000));
+        trb.produceValue("firstProducer", "firstTopic", 2, "firstPartition");
+        assertEquals(partition.getQueue().size(), 1);
+        assertEquals(trb.getMetrics().snapshot().get("delayed.pending"), 1L);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (partition.getQueue().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(partition.getQueue().size(), 2);
+        assertEquals(partition.getEvents(0, 2).get(1).getValue(), 1);
+        assertEquals(trb.getMetrics().counter("delayed.released").sum(), 1L);
+        assertThrows(NoSuchElementException.class, () ->
+            trb.produceDelayedValue("firstProducer", "firstTopic", 3, "noPartition", LocalDateTime.now()));
+
+        // pending payloads are accounted until they are released or cancelled
+        MemoryAccountant memory = trb.getMemory();
+        assertEquals(memory.getBytes("delayed"), 0L);
+        TimerWheel.Timeout dropped = trb.produceDelayedValue("firstProducer", "firstTopic", 3, "firstPartition",
+            LocalDateTime.now().plusSeconds(60));
+        assertTrue(memory.getBytes("delayed") > 0);
+        assertTrue(dropped.cancel());
+        assertEquals(memory.getBytes("delayed"), 0L);
+
+        // an event still pending at a restore is delivered to the restored topic
+        File checkpoint = File.createTempFile("tributary", ".snapshot");
+        checkpoint.deleteOnExit();
+        trb.checkpoint(checkpoint.getPath());
+        trb.produceDelayedValue("firstProducer", "firstTopic", 4, "firstPartition",
+            LocalDateTime.now().plusNanos(200_000_000));
+        trb.restore(checkpoint.getPath());
+        Partition<?> restored = trb.getTopic("firstTopic").getPartition("firstPartition");
+        deadline = System.currentTimeMillis() + 5000;
+        while (restored.getQueue().size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(restored.getQueue().size(), 3);
+        assertEquals(restored.getEvents(2, 1).get(0).getValue(), 4);
+        assertEquals(memory.getBytes("delayed"), 0L);
+    }
+
+    @Test
+    @DisplayName("Test asynchronous producer batching")
+    public void testAsyncProducer() throws Exception {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        Partition<?> first = trb.createPartition("firstTopic", "firstPartition");
+        Partition<?> second = trb.createPartition("firstTopic", "secondPartition");
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        try (AsyncProducer producer = trb.createAsyncProducer("firstProducer", "firstTopic", 10, 50, 1000, true)) {
+            for (int i = 0; i < 25; i++) {
+                futures.add(producer.send(i, "firstPartition"));
+            }
+            // two full batches are appended straight away and the rest after the linger time
+            assertEquals(futures.get(24).get(5, TimeUnit.SECONDS).longValue(), 24L);
+            for (int i = 0; i < 25; i++) {
+                assertEquals(futures.get(i).get().longValue(), (long) i);
+            }
+            CompletableFuture<Long> keyed = producer.sendKeyed("someKey", 100);
+            producer.flush();
+            assertTrue(keyed.isDone());
+            Partition<?> keyPartition = trb.getTopic("firstTopic").getPartitions()
+                                           .get(trb.getTopic("firstTopic").partitionIndexForKey("someKey"));
+            assertEquals(keyPartition.getEvents(keyed.get(), 1).get(0).getKey(), "someKey");
+        }
+        assertEquals(first.getEvents(0, 100).stream().map(Event::getValue).limit(25).collect(Collectors.toList()),
+            IntStream.range(0, 25).boxed().collect(Collectors.toList()));
+
+        long before = second.getNextOffset();
+        AsyncProducer bounded = trb.createAsyncProducer("firstProducer", "firstTopic", 100, 10_000, 2, false);
+        bounded.send(1, "secondPartition");
+        bounded.send(2, "secondPartition");
+        CompletableFuture<Long> rejected = bounded.send(3, "secondPartition");
+        assertTrue(rejected.isCompletedExceptionally());
+        bounded.close();
+        assertEquals(second.getNextOffset() - before, 2L);
+        assertTrue(bounded.send(4, "secondPartition").isCompletedExceptionally());
+    }
+
+    @Test
+    @DisplayName("Test prefetch buffers")
+    public void testPrefetch() throws InterruptedException {
+        Tributary trb = new Tributary();
+        Topic<Integer> topic = trb.createTopic("firstTopic", Integer.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        trb.createConsumer("firstGroup", "firstConsumer");
+        Partition<Integer> partition = topic.getPartition("firstPartition");
+        Consumer<Integer> consumer = topic.getGroupWithConsumer("firstConsumer").getConsumer("firstConsumer");
+        for (int i = 0; i < 100; i++) {
+            trb.produceValue("firstProducer", "firstTopic", i, "firstPartition");
+        }
+        PrefetchBuffer<Integer> buffer = new PrefetchBuffer<>(partition, consumer, 32);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(buffer.poll(5000).getValue(), i);
+        }
+        assertEquals(consumer.getEventsConsumed().size(), 10);
+        // events fetched but never polled go back to the head of the partition
+        buffer.close();
+        assertEquals(partition.getQueue().size(), 90);
+        assertEquals(partition.getQueue().peek().getValue(), 10);
+
+        List<Object> handled = new CopyOnWriteArrayList<>();
+        ConsumerRuntime<?> runtime = trb.startConsumerRuntime("firstConsumer",
+            (event, from) -> handled.add(event.getValue()), 16);
+        for (int i = 100; i < 1000; i++) {
+            trb.produceValue("firstProducer", "firstTopic", i, "firstPartition");
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handled.size() < 990 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        runtime.stop();
+        assertEquals(handled, IntStream.range(10, 1000).boxed().collect(Collectors.toList()));
+        assertEquals(partition.getQueue().size(), 0);
+    }
+
+    @Test
+    @DisplayName("Test tiered storage")
+    public void testTiering() throws IOException {
+        Tributary trb = new Tributary();
+        Topic<Integer> topic = trb.createOffHeapTopic("firstTopic", Integer.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        trb.createConsumer("firstGroup", "firstConsumer");
+        Partition<Integer> partition = topic.getPartition("firstPartition");
+        Consumer<Integer> consumer = topic.getGroupWithConsumer("firstConsumer").getConsumer("firstConsumer");
+        File directory = Files.createTempDirectory("tributary").toFile();
+        topic.setTiering(new DirectorySegmentStore(directory.getPath()), 0, 10);
+        for (int i = 0; i < 35; i++) {
+            trb.produceValue("firstProducer", "firstTopic", i, "firstPartition");
+        }
+        // nothing is archived while it is still waiting to be consumed
+        assertEquals(partition.tierSegments(), 0);
+        trb.consumeEvents("firstConsumer", "firstPartition", 25);
+        assertEquals(partition.tierSegments(), 2);
+        trb.consumeEvents("firstConsumer", "firstPartition", 10);
+        assertEquals(partition.tierSegments(), 1);
+        assertEquals(partition.tierSegments(), 0);
+        assertTrue(partition.getArchivedBytes() > 0);
+        assertEquals(directory.list().length, 3);
+
+        assertEquals(partition.getEvents(0, 35).stream().map(Event::getValue).collect(Collectors.toList()),
+            IntStream.range(0, 35).boxed().collect(Collectors.toList()));
+        trb.playback("firstConsumer", "firstPartition", 5);
+        assertEquals(consumer.getEventsConsumed().size(), 65);
+        assertEquals(consumer.getEventsConsumed().get(35).getValue(), 5);
+
+        // retention deletes whole archived segments
+        partition.truncateBefore(20);
+        assertEquals(directory.list().length, 1);
+        assertEquals(partition.getLogStartOffset(), 20L);
+        assertEquals(partition.getEvents(20, 1).get(0).getValue(), 20);
+        partition.truncateBefore(35);
+        assertEquals(directory.list().length, 0);
+        assertEquals(partition.getArchivedBytes(), 0L);
+        directory.delete();
+    }
+
+    @Test
+    @DisplayName("Test restoring a tiered topic keeps archiving and reads back archived segments")
+    public void testTieringRestore() throws IOException {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        trb.createConsumer("firstGroup", "firstConsumer");
+        trb.enableEventIndex("firstTopic");
+        File directory = Files.createTempDirectory("tributary").toFile();
+        trb.getTopic("firstTopic").setTiering(new DirectorySegmentStore(directory.getPath()), 0, 10);
+        for (int i = 0; i < 35; i++) {
+            trb.produceValue("firstProducer", "firstTopic", i, "firstPartition");
+        }
+        trb.consumeEvents("firstConsumer", "firstPartition", 25);
+        assertEquals(trb.getTopic("firstTopic").getPartition("firstPartition").tierSegments(), 2);
+        File file = File.createTempFile("tributary", ".snapshot");
+        try {
+            trb.checkpoint(file.getPath());
+            trb.restore(file.getPath());
+        } finally {
+            file.delete();
+        }
+
+        Topic<?> topic = trb.getTopic("firstTopic");
+        Partition<?> partition = topic.getPartition("firstPartition");
+        assertTrue(topic.isTiered());
+        assertEquals(topic.getTierSegmentEvents(), 10);
+        assertEquals(partition.getArchivedSegments().size(), 2);
+        assertTrue(partition.getArchivedBytes() > 0);
+        assertEquals(partition.getLogStartOffset(), 0L);
+        assertEquals(partition.getEvents(0, 35).stream().map(Event::getValue).collect(Collectors.toList()),
+            IntStream.range(0, 35).boxed().collect(Collectors.toList()));
+        assertEquals(partition.offsetOfId("firstPartition-5"), 5L);
+        trb.consumeEvents("firstConsumer", "firstPartition", 10);
+        assertEquals(partition.tierSegments(), 1);
+        assertEquals(directory.list().length, 3);
+        partition.truncateBefore(35);
+        assertEquals(directory.list().length, 0);
+        directory.delete();
+    }
+
+    @Test
+    @DisplayName("Test secondary event indexes")
+    public void testEventIndex() throws IOException {
+        Tributary trb = new Tributary();
+        Topic<Integer> topic = trb.createTopic("firstTopic", Integer.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createPartition("firstTopic", "secondPartition");
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+        trb.createProducer("secondProducer", Integer.class, "Manual");
+        Partition<Integer> partition = topic.getPartition("firstPartition");
+        for (int i = 0; i < 10; i++) {
+            trb.produceValue(i % 2 == 0 ? "firstProducer" : "secondProducer", "firstTopic", i, "firstPartition");
+        }
+        assertThrows(IllegalStateException.class, () -> partition.offsetOfId("firstPartition-3"));
+
+        // events already in the log are indexed, as are later ones and later partitions
+        trb.enableEventIndex("firstTopic");
+        trb.createPartition("firstTopic", "thirdPartition");
+        for (int i = 10; i < 100; i++) {
+            trb.produceValue(i % 2 == 0 ? "firstProducer" : "secondProducer", "firstTopic", i, "firstPartition");
+        }
+        trb.produceValue("secondProducer", "firstTopic", 0, "thirdPartition");
+        assertEquals(partition.offsetsBySource("secondProducer", 0, 3), List.of(1L, 3L, 5L));
+        assertEquals(partition.offsetsBySource("firstProducer", 51, 2), List.of(52L, 54L));
+        assertEquals(partition.offsetsBySource("unknownProducer", 0, 10), List.of());
+        assertEquals(partition.offsetOfId("firstPartition-42"), 42L);
+        assertEquals(partition.offsetOfId("missing"), -1L);
+        assertEquals(trb.findEventsBySource("firstTopic", "secondProducer").keySet(),
+            Set.of("firstPartition", "thirdPartition"));
+        assertEquals(trb.findEventById("firstTopic", "thirdPartition-0"), Map.of("thirdPartition", 0L));
+
+        // retention prunes the indexes along with the log
+        partition.truncateBefore(90);
+        assertEquals(partition.offsetsBySource("firstProducer", 0, 100), List.of(90L, 92L, 94L, 96L, 98L));
+        assertEquals(partition.offsetOfId("firstPartition-42"), -1L);
+        assertEquals(partition.offsetOfId("firstPartition-95"), 95L);
+        for (int i = 100; i < 1000; i++) {
+            trb.produceValue("firstProducer", "firstTopic", i, "firstPartition");
+        }
+        partition.truncateBefore(990);
+        assertEquals(partition.offsetsBySource("secondProducer", 0, 100), List.of());
+        assertEquals(partition.offsetsBySource("firstProducer", 0, 100).size(), 10);
+        assertEquals(partition.offsetOfId("firstPartition-990"), 990L);
+
+        // a restored topic is indexed again as its events are read
+        File file = File.createTempFile("tributary", ".snapshot");
+        try {
+            trb.checkpoint(file.getPath());
+            trb.restore(file.getPath());
+        } finally {
+            file.delete();
+        }
+        assertTrue(trb.getTopic("firstTopic").isEventIndexed());
+        assertEquals(trb.findEventById("firstTopic", "firstPartition-995"), Map.of("firstPartition", 995L));
+        assertEquals(trb.findEventsBySource("firstTopic", "secondProducer").get("thirdPartition"), List.of(0L));
+    }
+
+    @Test
+    @DisplayName("Test rebalance generations and commit fencing")
+    public void testRebalanceGenerations() {
+        Tributary trb = new Tributary();
+        Topic<Integer> topic = trb.createTopic("firstTopic", Integer.class);
+        for (String partitionId : List.of("p1", "p2", "p3", "p4")) {
+            trb.createPartition("firstTopic", partitionId);
+        }
+        ConsumerGroup<Integer> group = topic.addConsumerGroup("firstGroup", "Range");
+        trb.createConsumer("firstGroup", "firstConsumer");
+        Consumer<Integer> first = group.getConsumer("firstConsumer");
+        List<Partition<Integer>> before = first.getPartitions();
+        int oldGeneration = first.getGeneration();
+        assertEquals(before.size(), 4);
+
+        // a rebalance publishes new assignments rather than emptying and refilling the old ones
+        trb.createConsumer("firstGroup", "secondConsumer");
+        Consumer<Integer> second = group.getConsumer("secondConsumer");
+        assertEquals(before.size(), 4);
+        assertThrows(UnsupportedOperationException.class, () -> before.add(topic.getPartition("p1")));
+        assertEquals(first.getPartitions().stream().map(Partition::getId).collect(Collectors.toList()),
+            List.of("p1", "p2"));
+        assertEquals(first.getGeneration(), group.getGeneration());
+        assertTrue(group.getGeneration() > oldGeneration);
+
+        // a partition the consumer kept can still be committed from the old generation
+        trb.commitOffset("firstConsumer", "p1", 5, oldGeneration);
+        assertEquals(group.getCommittedOffset("p1"), 5L);
+        assertThrows(IllegalStateException.class, () -> trb.commitOffset("firstConsumer", "p3", 5, oldGeneration));
+        assertThrows(IllegalStateException.class, () -> group.commitOffset("secondConsumer", "p3", 5, oldGeneration));
+        int secondGeneration = second.getGeneration();
+        trb.commitOffset("secondConsumer", "p3", 7, secondGeneration);
+        assertEquals(group.getCommittedOffset("p3"), 7L);
+
+        // only consumers whose partitions change are told about a rebalance
+        int[] notified = new int[2];
+        first.addAssignmentListener(() -> notified[0]++);
+        second.addAssignmentListener(() -> notified[1]++);
+        trb.createPartition("firstTopic", "p5");
+        assertEquals(notified[0], 1);
+        assertEquals(notified[1], 0);
+
+        // once p3 moves back to the first consumer, commits from before the move are fenced off
+        trb.deleteConsumer("secondConsumer");
+        assertEquals(first.getPartitions().size(), 5);
+        assertThrows(IllegalStateException.class, () -> trb.commitOffset("firstConsumer", "p3", 9, secondGeneration));
+        assertThrows(IllegalStateException.class, () -> group.commitOffset("secondConsumer", "p3", 9,
+            group.getGeneration()));
+        trb.commitOffset("firstConsumer", "p3", 9, first.getGeneration());
+        assertEquals(group.getCommittedOffset("p3"), 9L);
+    }
+
+    @Test
+    @DisplayName("Test memory accounting and backpressure")
+    public void testMemoryBackpressure() {
+        Tributary trb = new Tributary();
+        Topic<String> topic = trb.createTopic("firstTopic", String.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        Topic<String> offHeap = trb.createOffHeapTopic("secondTopic", String.class);
+        trb.createPartition("secondTopic", "secondPartition");
+        trb.createProducer("firstProducer", String.class, "Manual");
+        Partition<String> partition = topic.getPartition("firstPartition");
+        MemoryAccountant memory = trb.getMemory();
+        for (int i = 0; i < 100; i++) {
+            trb.produceValue("firstProducer", "firstTopic", "message " + i, "firstPartition");
+            trb.produceValue("firstProducer", "secondTopic", "message " + i, "secondPartition");
+        }
+        long held = partition.getHeldBytes();
+        assertTrue(held > 100 * "message 10".length());
+        assertEquals(memory.getBytes("topic.firstTopic"), held);
+        assertEquals(memory.getBytes("topic.secondTopic"), offHeap.getPartition("secondPartition").getOffHeapBytes());
+        assertEquals(memory.getUsedBytes(), held + memory.getBytes("topic.secondTopic"));
+        assertEquals(trb.getMetrics().snapshot().get("memory.topic.firstTopic.bytes"), held);
+
+        // discarding events releases their memory
+        partition.truncateBefore(50);
+        assertTrue(partition.getHeldBytes() < held);
+        assertEquals(memory.getBytes("topic.firstTopic"), partition.getHeldBytes());
+
+        // producers are delayed between the watermarks and rejected above the high one
+        long used = memory.getUsedBytes();
+        trb.setMemoryLimits(used / 2, used * 2);
+        long delay = memory.admit();
+        assertTrue(delay > 0 && delay < MemoryAccountant.MAX_DELAY_MILLIS);
+        trb.setMemoryLimits(used / 2, used);
+        assertThrows(IllegalStateException.class,
+            () -> trb.produceValue("firstProducer", "firstTopic", "rejected", "firstPartition"));
+        assertEquals(partition.getNextOffset(), 100L);
+        assertEquals(trb.getMetrics().snapshot().get("memory.rejected"), 1);
+        AsyncProducer producer = trb.createAsyncProducer("firstProducer", "firstTopic", 10, 0, 100, true);
+        CompletableFuture<Long> rejected = producer.send("rejected", "firstPartition");
+        producer.flush();
+        assertTrue(rejected.isCompletedExceptionally());
+
+        partition.truncateBefore(100);
+        trb.produceValue("firstProducer", "firstTopic", "accepted", "firstPartition");
+        assertEquals((long) producer.send("accepted", "firstPartition").join(), 101L);
+        producer.close();
+        assertEquals(memory.getBytes(AsyncProducer.BUFFER_ACCOUNT), 0L);
+    }
+
+    @Test
+    @DisplayName("Test consuming events frees their memory once usage passes the low watermark")
+    public void testMemoryReleasedByConsumption() {
+        Tributary trb = new Tributary();
+        Topic<String> topic = trb.createTopic("firstTopic", String.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("firstProducer", String.class, "Manual");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        trb.createConsumer("firstGroup", "firstConsumer");
+        for (int i = 0; i < 200; i++) {
+            trb.produceValue("firstProducer", "firstTopic", "message " + i, "firstPartition");
+        }
+        MemoryAccountant memory = trb.getMemory();
+        long used = memory.getUsedBytes();
+        trb.setMemoryLimits(used / 4, used);
+        assertThrows(IllegalStateException.class,
+            () -> trb.produceValue("firstProducer", "firstTopic", "rejected", "firstPartition"));
+
+        // without any retention set, consumed events are discarded to make room
+        trb.poll("firstConsumer", 150);
+        trb.produceValue("firstProducer", "firstTopic", "accepted", "firstPartition");
+        Partition<String> partition = topic.getPartition("firstPartition");
+        assertEquals(partition.getLogStartOffset(), 150L);
+        assertTrue(memory.getUsedBytes() < used / 3);
+        assertEquals(partition.getQueue().size(), 51);
+        trb.poll("firstConsumer", 100);
+        assertEquals(memory.admit(), 0L);
+        assertEquals(partition.getLogStartOffset(), 201L);
+        assertEquals(memory.getUsedBytes(), 0L);
+
+        // below the low watermark consumed events are kept for playback
+        trb.produceValue("firstProducer", "firstTopic", "kept", "firstPartition");
+        trb.poll("firstConsumer", 1);
+        assertEquals(memory.admit(), 0L);
+        assertEquals(partition.getLogStartOffset(), 201L);
+    }
+
+    @Test
+    @DisplayName("Test freeing memory keeps events a prefetch buffer has taken but not handed out")
+    public void testMemoryReleaseKeepsPrefetched() throws InterruptedException {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        Partition<?> partition = trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("producerOne", Integer.class, "Manual");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        trb.createConsumer("firstGroup", "firstConsumer");
+        for (int i = 0; i < 51; i++) {
+            trb.produceValue("producerOne", "firstTopic", i, "firstPartition");
+        }
+        List<Object> handled = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        ConsumerRuntime<?> runtime = trb.startConsumerRuntime("firstConsumer", (event, part) -> {
+            handled.add(event.getValue());
+            started.countDown();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 64);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        trb.setMemoryLimits(1, Long.MAX_VALUE);
+        trb.produceValue("producerOne", "firstTopic", 51, "firstPartition");
+        trb.deleteConsumer("firstConsumer");
+        runtime.stop();
+        // every event was either handled or is back in the partition for the next owner
+        assertEquals(handled.size() + partition.getQueue().size(), 52);
+        assertTrue(partition.getLogStartOffset() <= handled.size());
+    }
+
+    @Test
+    @DisplayName("Test sharded execution")
+    public void testSharding() throws InterruptedException {
+        Tributary trb = new Tributary();
+        Topic<Integer> topic = trb.createTopic("firstTopic", Integer.class);
+        List<String> partitionIds = List.of("p0", "p1", "p2", "p3", "p4", "p5", "p6", "p7");
+        partitionIds.forEach(partitionId -> trb.createPartition("firstTopic", partitionId));
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        trb.createConsumer("firstGroup", "firstConsumer");
+        assertThrows(IllegalStateException.class, () -> trb.produceOnShard("firstProducer", "firstTopic", 0, "p0"));
+        ShardedExecutor executor = trb.enableSharding(4);
+        assertEquals(executor.getShardCount(), 4);
+
+        // every operation on a partition runs on the same thread, and partitions are spread evenly
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        Partition<Integer> first = topic.getPartition("p0");
+        for (int i = 0; i < 100; i++) {
+            futures.add(executor.submit(first, () -> threads.add(Thread.currentThread().getName())));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        assertEquals(threads, Set.of("shard-" + executor.shardOf(first)));
+        assertEquals(partitionIds.stream().map(id -> executor.shardOf(topic.getPartition(id)))
+            .collect(Collectors.toSet()), Set.of(0, 1, 2, 3));
+
+        // each producer thread's events are appended in the order it sent them
+        List<Thread> producers = new ArrayList<>();
+        List<CompletableFuture<Event<?>>> produced = new CopyOnWriteArrayList<>();
+        for (String partitionId : partitionIds) {
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    produced.add(trb.produceOnShard("firstProducer", "firstTopic", i, partitionId));
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        CompletableFuture.allOf(produced.toArray(new CompletableFuture<?>[0])).join();
+        for (String partitionId : partitionIds) {
+            Partition<Integer> partition = topic.getPartition(partitionId);
+            assertEquals(partition.getEvents(0, 500).stream().map(Event::getValue).collect(Collectors.toList()),
+                IntStream.range(0, 500).boxed().collect(Collectors.toList()));
+        }
+
+        List<Event<?>> consumed = trb.consumeOnShard("firstConsumer", "p3", 600).join();
+        assertEquals(consumed.size(), 500);
+        assertEquals(consumed.get(499).getValue(), 499);
+        assertEquals(trb.consumeOnShard("firstConsumer", "p3", 10).join().size(), 0);
+        assertTrue(trb.getMetrics().snapshot().get("shard." + executor.shardOf(first) + ".tasks") >= 100);
+
+        executor.close();
+        assertTrue(trb.produceOnShard("firstProducer", "firstTopic", 0, "p0").isCompletedExceptionally());
+    }
+
+    @Test
+    @DisplayName("Test consumers subscribed to several topics poll them together and are routed by partition")
+    public void testSubscriptions() {
+        Tributary trb = new Tributary();
+        trb.createTopic("orders.au", Integer.class);
+        trb.createTopic("orders.us", Integer.class);
+        trb.createTopic("payments", Integer.class);
+        trb.createPartition("orders.au", "au0");
+        trb.createPartition("orders.au", "au1");
+        trb.createPartition("orders.us", "us0");
+        trb.createPartition("payments", "pay0");
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+
+        // consuming only touches the topic the consumer is in, even with other topics on the broker
+        trb.createConsumerGroup("payGroup", "payments", "Range");
+        trb.createConsumer("payGroup", "payConsumer");
+        trb.produceValue("firstProducer", "payments", 1, "pay0");
+        trb.consumeEvent("payConsumer", "pay0");
+        assertEquals(trb.getConsumerTopics("payConsumer"), List.of(trb.getTopic("payments")));
+        assertThrows(NoSuchElementException.class, () -> trb.consumeEvent("payConsumer", "au0"));
+
+        // a pattern subscription also joins matching topics created later
+        trb.subscribe("orderGroup", "orderConsumer", Pattern.compile("orders\\..*"));
+        assertEquals(trb.getConsumerTopics("orderConsumer").size(), 2);
+        trb.createTopic("orders.eu", Integer.class);
+        trb.createPartition("orders.eu", "eu0");
+        assertEquals(trb.getConsumerTopics("orderConsumer").size(), 3);
+        for (int i = 0; i < 10; i++) {
+            trb.produceValue("firstProducer", "orders.au", i, "au0");
+            trb.produceValue("firstProducer", "orders.au", i, "au1");
+            trb.produceValue("firstProducer", "orders.us", i, "us0");
+        }
+        trb.produceValue("firstProducer", "orders.eu", 0, "eu0");
+
+        // the budget is shared between partitions, and drained ones give theirs up to the rest
+        Map<String, List<Event<?>>> polled = trb.poll("orderConsumer", 9);
+        assertEquals(polled.get("orders.au").size(), 6);
+        assertEquals(polled.get("orders.us").size(), 2);
+        assertEquals(polled.get("orders.eu").size(), 1);
+        polled = trb.poll("orderConsumer", 100);
+        assertEquals(polled.get("orders.au").size(), 14);
+        assertEquals(polled.get("orders.us").size(), 8);
+        assertEquals(polled.get("orders.eu").size(), 0);
+        trb.produceValue("firstProducer", "orders.us", 10, "us0");
+        trb.consumeEvent("orderConsumer", "us0");
+        assertEquals(trb.getTopic("orders.us").getGroupWithConsumer("orderConsumer")
+            .getConsumer("orderConsumer").getEventsConsumed().size(), 11);
+
+        // deleting the consumer removes it from every topic and ends its pattern subscription
+        trb.deleteConsumer("orderConsumer");
+        assertEquals(trb.getConsumerTopics("orderConsumer").size(), 0);
+        trb.createTopic("orders.nz", Integer.class);
+        assertFalse(trb.getTopic("orders.nz").containsConsumer("orderConsumer"));
+    }
+
+    @Test
+    @DisplayName("Test consumers reading partitions with the same id in several topics are routed by assignment")
+    public void testCollidingPartitionIds() {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Integer.class);
+        trb.createTopic("secondTopic", Integer.class);
+        trb.createPartition("firstTopic", "p0");
+        trb.createPartition("firstTopic", "a0");
+        trb.createPartition("secondTopic", "p0");
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+        trb.subscribe("firstGroup", "otherConsumer", List.of("firstTopic"));
+        trb.subscribe("firstGroup", "firstConsumer", List.of("firstTopic", "secondTopic"));
+        trb.produceValue("firstProducer", "firstTopic", 1, "p0");
+        trb.produceValue("firstProducer", "secondTopic", 2, "p0");
+
+        // firstConsumer is only assigned p0 in secondTopic, so that is where it reads it from
+        trb.consumeEvent("firstConsumer", "p0");
+        assertEquals(trb.getTopic("secondTopic").getPartition("p0").getQueue().size(), 0);
+        assertEquals(trb.getTopic("firstTopic").getPartition("p0").getQueue().size(), 1);
+        trb.commitOffset("firstConsumer", "p0", 1, trb.getTopic("secondTopic")
+            .getGroupWithConsumer("firstConsumer").getGeneration());
+        assertEquals(trb.getTopic("secondTopic").getGroupWithConsumer("firstConsumer")
+            .getCommittedOffset("p0"), 1L);
+
+        // a consumer assigned p0 in both topics has to say which one it means
+        trb.subscribe("secondGroup", "secondConsumer", List.of("firstTopic", "secondTopic"));
+        trb.produceValue("firstProducer", "secondTopic", 3, "p0");
+        assertThrows(IllegalArgumentException.class, () -> trb.consumeEvent("secondConsumer", "p0"));
+        trb.consumeEvent("secondConsumer", "secondTopic", "p0");
+        assertEquals(trb.getTopic("secondTopic").getPartition("p0").getQueue().size(), 0);
+        trb.consumeEvent("secondConsumer", "firstTopic", "p0");
+        assertEquals(trb.getTopic("firstTopic").getPartition("p0").getQueue().size(), 0);
+        assertThrows(NoSuchElementException.class, () -> trb.consumeEvent("otherConsumer", "secondTopic", "p0"));
+    }
+
+    @Test
+    @DisplayName("Test identical payloads are stored once and dropped when retention discards their events")
+    public void testPayloadDedup() throws IOException {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", String.class);
+        trb.createTopic("secondTopic", String.class);
+        trb.createTopic("copyTopic", String.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createPartition("secondTopic", "secondPartition");
+        trb.createPartition("copyTopic", "copyPartition");
+        trb.createProducer("firstProducer", String.class, "Random");
+        trb.enablePayloadDedup("firstTopic");
+        trb.enablePayloadDedup("secondTopic");
+        PayloadStore payloads = trb.getPayloads();
+
+        // every produce of the same file shares one stored payload
+        List<Event<?>> events = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            events.add(trb.produceEvent("firstProducer", "firstTopic", "sampleEventString"));
+            trb.produceEvent("firstProducer", "copyTopic", "sampleEventString");
+        }
+        assertEquals(payloads.size(), (long) 1);
+        events.forEach(event -> assertSame(event.getValue(), events.get(0).getValue()));
+        PayloadStore.Payload payload = events.get(0).getPayload();
+        assertEquals(payloads.getRefCount(payload), 10);
+        MemoryAccountant memory = trb.getMemory();
+        assertTrue(memory.getBytes("topic.firstTopic") + payloads.getBytes() < memory.getBytes("topic.copyTopic"));
+        assertEquals(memory.getBytes(PayloadStore.ACCOUNT), payloads.getBytes());
+
+        // a fan-out produce gives every topic the same value, stored once
+        List<Event<?>> fanout = trb.produceEventToTopics("firstProducer", List.of("firstTopic", "secondTopic",
+            "copyTopic"), "sampleEventString2");
+        assertEquals(payloads.size(), (long) 2);
+        assertSame(fanout.get(0).getPayload(), fanout.get(1).getPayload());
+        assertSame(fanout.get(2).getValue(), fanout.get(0).getValue());
+        assertNull(fanout.get(2).getPayload());
+        assertEquals(payloads.getRefCount(fanout.get(0).getPayload()), 2);
+
+        // retention gives up the references of the events it discards
+        trb.setRetention("firstTopic", 1);
+        assertEquals(payloads.size(), (long) 1);
+        assertEquals(payloads.getRefCount(fanout.get(1).getPayload()), 2);
+        trb.setRetention("secondTopic", 1);
+        trb.produceValue("firstProducer", "secondTopic", "other", "secondPartition");
+        assertEquals(payloads.size(), (long) 2);
+        assertEquals(payloads.getRefCount(fanout.get(1).getPayload()), 1);
+        trb.produceValue("firstProducer", "firstTopic", "other", "firstPartition");
+        assertEquals(payloads.size(), (long) 1);
+        assertEquals(memory.getBytes(PayloadStore.ACCOUNT), payloads.getBytes());
+
+        trb.createOffHeapTopic("offHeapTopic", String.class);
+        assertThrows(IllegalStateException.class, () -> trb.enablePayloadDedup("offHeapTopic"));
+
+        // a restored topic shares the payloads of its restored events again
+        trb.setRetention("firstTopic", 10);
+        trb.produceEvent("firstProducer", "firstTopic", "sampleEventString");
+        trb.produceEvent("firstProducer", "firstTopic", "sampleEventString");
+        File file = File.createTempFile("tributary", ".snapshot");
+        try {
+            trb.checkpoint(file.getPath());
+            trb.restore(file.getPath());
+        } finally {
+            file.delete();
+        }
+        PayloadStore restored = trb.getPayloads();
+        assertTrue(trb.getTopic("firstTopic").isDeduplicated());
+        assertTrue(trb.getTopic("secondTopic").isDeduplicated());
+        assertFalse(trb.getTopic("copyTopic").isDeduplicated());
+        assertEquals(restored.size(), (long) 2);
+        Partition<?> partition = trb.getTopic("firstTopic").getPartition("firstPartition");
+        List<? extends Event<?>> log = partition.getEvents(partition.getNextOffset() - 2, 2);
+        assertSame(log.get(0).getPayload(), log.get(1).getPayload());
+        assertEquals(restored.getRefCount(log.get(0).getPayload()), 2);
+        assertEquals(trb.getMemory().getBytes(PayloadStore.ACCOUNT), restored.getBytes());
+    }
+
+    @Test
+    @DisplayName("Test payloads of different types are never shared")
+    public void testPayloadDedupTypes() {
+        Tributary trb = new Tributary();
+        trb.createTopic("firstTopic", Object.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("firstProducer", Object.class, "Manual");
+        trb.enablePayloadDedup("firstTopic");
+        List<Object> values = List.of("[1,2]", new JSONArray("[1,2]"), new BigDecimal("1.5"), "1.5", 1.5, 1.5f);
+        List<Event<?>> events = values.stream()
+            .map(value -> trb.produceValue("firstProducer", "firstTopic", value, "firstPartition"))
+            .collect(Collectors.toList());
+        assertEquals(trb.getPayloads().size(), (long) values.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(events.get(i).getValue().getClass(), values.get(i).getClass());
+        }
+        assertSame(trb.produceValue("firstProducer", "firstTopic", "1.5", "firstPartition").getValue(),
+            events.get(3).getValue());
+    }
+
+    @Test
+    @DisplayName("Test archiving events of a deduplicated topic gives up their payloads")
+    public void testPayloadDedupTiering() throws IOException {
+        Tributary trb = new Tributary();
+        Topic<Integer> topic = trb.createTopic("firstTopic", Integer.class);
+        trb.createPartition("firstTopic", "firstPartition");
+        trb.createProducer("firstProducer", Integer.class, "Manual");
+        trb.createConsumerGroup("firstGroup", "firstTopic", "Range");
+        trb.createConsumer("firstGroup", "firstConsumer");
+        trb.enablePayloadDedup("firstTopic");
+        Partition<Integer> partition = topic.getPartition("firstPartition");
+        PayloadStore payloads = trb.getPayloads();
+        File directory = Files.createTempDirectory("tributary").toFile();
+        topic.setTiering(new DirectorySegmentStore(directory.getPath()), 0, 10);
+        for (int i = 0; i < 30; i++) {
+            trb.produceValue("firstProducer", "firstTopic", i, "firstPartition");
+        }
+        assertEquals(payloads.size(), 30L);
+        trb.consumeEvents("firstConsumer", "firstPartition", 20);
+        assertEquals(partition.tierSegments(), 2);
+        assertEquals(payloads.size(), 10L);
+        assertEquals(trb.getMemory().getBytes(PayloadStore.ACCOUNT), payloads.getBytes());
+        assertEquals(partition.getEvents(5, 1).get(0).getValue(), 5);
+
+        // discarding archived segments does not give up their payloads a second time
+        partition.truncateBefore(25);
+        assertEquals(payloads.size(), 5L);
+        partition.truncateBefore(30);
+        assertEquals(payloads.size(), 0L);
+        assertEquals(payloads.getBytes(), 0L);
+        directory.delete();
+    }
+
     // System tests
     @Test
     @DisplayName("Typical Message Lifespan")